@@ -30,6 +30,46 @@ public class App {
    */
   private static Database DB;
 
+  /**
+   * Background writer for the Audit table.
+   */
+  private static AuditWriter AUDIT_WRITER;
+
+  /**
+   * Bounded pool the claim items are processed on.
+   */
+  private static ClaimItemExecutor CLAIM_ITEM_EXECUTOR;
+
+  /**
+   * Client shared by every call to an external rules engine.
+   */
+  private static RulesEngineClient RULES_ENGINE_CLIENT;
+
+  /**
+   * In memory index of the Subscriptions by organization.
+   */
+  private static SubscriptionRegistry SUBSCRIPTION_REGISTRY;
+
+  /**
+   * Durable outbox delivering rest-hook notifications.
+   */
+  private static NotificationOutbox NOTIFICATION_OUTBOX;
+
+  /**
+   * Flow control for websocket notifications.
+   */
+  private static WebSocketSender WEBSOCKET_SENDER;
+
+  /**
+   * Pool sending subscription notifications.
+   */
+  private static NotificationDispatcher NOTIFICATION_DISPATCHER;
+
+  /**
+   * Durable scheduler for the updates of pended claims.
+   */
+  private static ClaimUpdateScheduler CLAIM_UPDATE_SCHEDULER;
+
   private static boolean debugMode = false;
 
   private static String baseUrl;
@@ -55,15 +95,125 @@ public class App {
   public static void initializeAppDB() {
     if (DB == null) {
       DB = new Database();
+      AUDIT_WRITER = AuditWriter.create(DB);
+      AUDIT_WRITER.start();
+      CLAIM_ITEM_EXECUTOR = ClaimItemExecutor.create();
+      RULES_ENGINE_CLIENT = RulesEngineClient.create();
+      SUBSCRIPTION_REGISTRY = new SubscriptionRegistry(DB);
+      SUBSCRIPTION_REGISTRY.reload();
+      NOTIFICATION_OUTBOX = NotificationOutbox.create(DB);
+      NOTIFICATION_OUTBOX.recover();
+      WEBSOCKET_SENDER = WebSocketSender.create();
+      NOTIFICATION_DISPATCHER = NotificationDispatcher.create(NOTIFICATION_OUTBOX);
+      CLAIM_UPDATE_SCHEDULER = ClaimUpdateScheduler.create(DB);
+      CLAIM_UPDATE_SCHEDULER.recover();
       PriorAuthRule.populateRulesTable();
+      PriorAuthRule.startWarmup();
       AuthUtils.populateClientTable();
+      Runtime.getRuntime().addShutdownHook(new Thread(App::shutdown, "PriorAuth-shutdown"));
     }
   }
 
+  /**
+   * Release the resources held by the application before the JVM exits
+   */
+  private static void shutdown() {
+    if (CLAIM_UPDATE_SCHEDULER != null)
+      CLAIM_UPDATE_SCHEDULER.close();
+    if (NOTIFICATION_DISPATCHER != null)
+      NOTIFICATION_DISPATCHER.close();
+    if (WEBSOCKET_SENDER != null)
+      WEBSOCKET_SENDER.close();
+    if (NOTIFICATION_OUTBOX != null)
+      NOTIFICATION_OUTBOX.close();
+    if (CLAIM_ITEM_EXECUTOR != null)
+      CLAIM_ITEM_EXECUTOR.close();
+    if (RULES_ENGINE_CLIENT != null)
+      RULES_ENGINE_CLIENT.close();
+    if (AUDIT_WRITER != null)
+      AUDIT_WRITER.close();
+    if (DB != null)
+      DB.close();
+  }
+
   public static Database getDB() {
     return DB;
   }
 
+  /**
+   * Get the background writer for the Audit table
+   * 
+   * @return the AuditWriter, or null before the database is initialized
+   */
+  public static AuditWriter getAuditWriter() {
+    return AUDIT_WRITER;
+  }
+
+  /**
+   * Get the pool the claim items are processed on
+   * 
+   * @return the ClaimItemExecutor, or null before the database is initialized
+   */
+  public static ClaimItemExecutor getClaimItemExecutor() {
+    return CLAIM_ITEM_EXECUTOR;
+  }
+
+  /**
+   * Get the client for the external rules engine
+   * 
+   * @return the RulesEngineClient, or null before the database is initialized
+   */
+  public static RulesEngineClient getRulesEngineClient() {
+    return RULES_ENGINE_CLIENT;
+  }
+
+  /**
+   * Get the pool sending subscription notifications
+   * 
+   * @return the NotificationDispatcher, or null before the database is
+   *         initialized
+   */
+  public static NotificationDispatcher getNotificationDispatcher() {
+    return NOTIFICATION_DISPATCHER;
+  }
+
+  /**
+   * Get the flow control for websocket notifications
+   * 
+   * @return the WebSocketSender, or null before the database is initialized
+   */
+  public static WebSocketSender getWebSocketSender() {
+    return WEBSOCKET_SENDER;
+  }
+
+  /**
+   * Get the in memory index of the Subscriptions
+   * 
+   * @return the SubscriptionRegistry, or null before the database is
+   *         initialized
+   */
+  public static SubscriptionRegistry getSubscriptionRegistry() {
+    return SUBSCRIPTION_REGISTRY;
+  }
+
+  /**
+   * Get the outbox delivering rest-hook notifications
+   * 
+   * @return the NotificationOutbox, or null before the database is initialized
+   */
+  public static NotificationOutbox getNotificationOutbox() {
+    return NOTIFICATION_OUTBOX;
+  }
+
+  /**
+   * Get the scheduler for the updates of pended claims
+   * 
+   * @return the ClaimUpdateScheduler, or null before the database is initialized
+   */
+  public static ClaimUpdateScheduler getClaimUpdateScheduler() {
+    return CLAIM_UPDATE_SCHEDULER;
+  }
+
   /**
    * Set the base URI for the microservice. This is necessary so
    * Bundle.entry.fullUrl data is accurately populated.
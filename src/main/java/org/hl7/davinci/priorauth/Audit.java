@@ -158,6 +158,17 @@ public class Audit {
         return auditEvent;
     }
 
+    /**
+     * Record an AuditEvent for an action. The row is handed to the AuditWriter
+     * and written in the background, the AuditEvent is encoded to JSON there.
+     * 
+     * @param eventType    - the type of event
+     * @param eventAction  - the kind of CRUDE action
+     * @param outcome      - the outcome of the action
+     * @param referenceUrl - url of the resource accessed
+     * @param request      - the servlet request
+     * @param description  - description of the action
+     */
     public static void createAuditEvent(AuditEventType eventType, AuditEventAction eventAction, AuditEventOutcome outcome, String referenceUrl,
             HttpServletRequest request, String description) {
         String query = request != null ? request.getRequestURL().toString() : null;
@@ -171,7 +182,9 @@ public class Audit {
         data.put("what", referenceUrl);
         data.put("query", query);
         data.put("ip", getIPAddress(request));
-        data.put("resource", FhirUtils.json(audit));
-        App.getDB().write(Table.AUDIT, data);
+        data.put("resource", audit);
+        AuditWriter writer = App.getAuditWriter();
+        if (writer == null || !writer.submit(data))
+            App.getDB().write(Table.AUDIT, data);
     }
 }
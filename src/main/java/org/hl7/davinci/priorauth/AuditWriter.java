@@ -0,0 +1,380 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Writes Audit table rows on a background thread. Rows are queued in a bounded
+ * buffer and inserted in batches so recording an AuditEvent does not wait on
+ * the database. When the buffer is full the overflow policy decides whether the
+ * caller blocks, the row is dropped, or the row is spilled to a file which is
+ * replayed into the database once the writer catches up.
+ */
+public class AuditWriter {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final String DEFAULT_SPILL_FILE = "databaseData/audit-spill.ndjson";
+    private static final long IDLE_POLL_MS = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SPILL;
+
+        public static OverflowPolicy fromString(String value) {
+            if (value == null)
+                return BLOCK;
+            try {
+                return OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warning("AuditWriter::OverflowPolicy:Unknown policy " + value + ", using BLOCK");
+                return BLOCK;
+            }
+        }
+    }
+
+    private final Database database;
+    private final BlockingQueue<Map<String, Object>> queue;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Path spillFile;
+    private final Object spillLock = new Object();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Create a new writer. The background thread is not running until start() is
+     * called.
+     *
+     * @param database       - the database to write the Audit rows to.
+     * @param queueSize      - the number of rows buffered before the overflow
+     *                       policy applies.
+     * @param batchSize      - the maximum number of rows in one insert.
+     * @param overflowPolicy - what to do with a row when the buffer is full.
+     * @param spillFile      - the file overflow rows are appended to for the
+     *                       SPILL policy.
+     */
+    public AuditWriter(Database database, int queueSize, int batchSize, OverflowPolicy overflowPolicy,
+            Path spillFile) {
+        this.database = database;
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        this.batchSize = Math.max(batchSize, 1);
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = spillFile;
+        this.thread = new Thread(this::drain, "Audit-writer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Create the AuditWriter described by config.properties
+     *
+     * @param database - the database to write the Audit rows to.
+     * @return the configured AuditWriter, not yet started
+     */
+    public static AuditWriter create(Database database) {
+        int queueSize = PropertyProvider.getIntProperty("audit_queue_size", DEFAULT_QUEUE_SIZE);
+        int batchSize = PropertyProvider.getIntProperty("audit_batch_size", DEFAULT_BATCH_SIZE);
+        OverflowPolicy policy = OverflowPolicy.fromString(PropertyProvider.getProperty("audit_overflow"));
+        String spillFile = PropertyProvider.getProperty("audit_spill_file", DEFAULT_SPILL_FILE);
+        return new AuditWriter(database, queueSize, batchSize, policy, Paths.get(spillFile));
+    }
+
+    /**
+     * Start draining the buffer on the background thread
+     */
+    public void start() {
+        logger.info("AuditWriter::start:overflow " + overflowPolicy + ", batch " + batchSize);
+        thread.start();
+    }
+
+    /**
+     * Queue a row for the Audit table. IBaseResource values are encoded on the
+     * writer thread.
+     *
+     * @param row - map of columns (keys) and values.
+     * @return true if the row was accepted (queued, spilled or dropped by
+     *         policy), false if the writer is closed and the caller should write
+     *         the row itself.
+     */
+    public boolean submit(Map<String, Object> row) {
+        if (closed)
+            return false;
+        submitted.incrementAndGet();
+        if (queue.offer(row))
+            return true;
+
+        switch (overflowPolicy) {
+            case DROP:
+                dropped.incrementAndGet();
+                return true;
+            case SPILL:
+                spill(row);
+                return true;
+            case BLOCK:
+            default:
+                try {
+                    queue.put(row);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    logger.warning("AuditWriter::submit:Interrupted while waiting to queue audit row");
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Stop accepting rows, write everything still buffered or spilled, and stop
+     * the background thread.
+     */
+    public void close() {
+        closed = true;
+        // The thread notices within one poll, interrupting it could interrupt H2 I/O
+        if (thread.isAlive()) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Pick up rows submitted while closing or before the thread was started
+        flushQueue();
+        replaySpill();
+        logger.info("AuditWriter::close:Closed with " + queue.size() + " rows unwritten");
+    }
+
+    /**
+     * Get the current metrics for this writer
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("overflowPolicy", overflowPolicy.name());
+        metrics.put("queued", queue.size());
+        metrics.put("capacity", queue.size() + queue.remainingCapacity());
+        metrics.put("submitted", submitted.get());
+        metrics.put("written", written.get());
+        metrics.put("batches", batches.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("spilled", spilled.get());
+        metrics.put("replayed", replayed.get());
+        metrics.put("failed", failed.get());
+        return metrics;
+    }
+
+    private void drain() {
+        while (!closed) {
+            try {
+                Map<String, Object> row = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (row == null) {
+                    replaySpill();
+                    continue;
+                }
+                List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+                batch.add(row);
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "AuditWriter::drain:Unexpected exception", e);
+            }
+        }
+        flushQueue();
+        replaySpill();
+    }
+
+    private synchronized void flushQueue() {
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            writeBatch(batch);
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    private void writeBatch(List<Map<String, Object>> batch) {
+        if (write(batch)) {
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+        } else if (overflowPolicy == OverflowPolicy.SPILL && !closed) {
+            for (Map<String, Object> row : batch)
+                spill(row);
+        } else {
+            failed.addAndGet(batch.size());
+            logger.warning("AuditWriter::writeBatch:Unable to write " + batch.size() + " audit rows");
+        }
+    }
+
+    /**
+     * Write a batch to the database. An unexpected exception fails the batch
+     * like a database error, so its rows are spilled or counted instead of lost.
+     */
+    private boolean write(List<Map<String, Object>> batch) {
+        try {
+            return database.writeBatch(Table.AUDIT, batch);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "AuditWriter::write:Unable to write " + batch.size() + " audit rows", e);
+            return false;
+        }
+    }
+
+    /**
+     * Append a row to the spill file as a single line of JSON
+     */
+    private void spill(Map<String, Object> row) {
+        Map<String, Object> encoded = new HashMap<>();
+        try {
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+                Object value = entry.getValue();
+                encoded.put(entry.getKey(),
+                        value instanceof IBaseResource ? FhirUtils.json((IBaseResource) value) : value);
+            }
+        } catch (RuntimeException e) {
+            dropped.incrementAndGet();
+            logger.log(Level.SEVERE, "AuditWriter::spill:Unable to encode audit row", e);
+            return;
+        }
+
+        synchronized (spillLock) {
+            try {
+                if (spillFile.getParent() != null)
+                    Files.createDirectories(spillFile.getParent());
+                try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(mapper.writeValueAsString(encoded));
+                    writer.newLine();
+                }
+                spilled.incrementAndGet();
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+                logger.log(Level.SEVERE, "AuditWriter::spill:Unable to spill audit row", e);
+            }
+        }
+    }
+
+    /**
+     * Move the spill file aside and insert its rows into the database. A replay
+     * file left behind by an earlier failure is replayed first. If a batch
+     * cannot be written, e.g. the database is down, the rows not yet written
+     * are kept in the replay file for the next replay.
+     */
+    private synchronized void replaySpill() {
+        Path replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+        synchronized (spillLock) {
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile))
+                    return;
+                try {
+                    Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "AuditWriter::replaySpill:Unable to move spill file", e);
+                    return;
+                }
+            }
+        }
+
+        TypeReference<Map<String, Object>> rowType = new TypeReference<Map<String, Object>>() {
+        };
+        Path remainderFile = replayFile.resolveSibling(replayFile.getFileName() + ".remainder");
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        List<String> lines = new ArrayList<>(batchSize);
+        boolean complete = true;
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+                String line;
+                while (complete && (line = reader.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    lines.add(line);
+                    batch.add(mapper.readValue(line, rowType));
+                    if (batch.size() == batchSize) {
+                        complete = replayBatch(batch);
+                        if (complete) {
+                            batch = new ArrayList<>(batchSize);
+                            lines = new ArrayList<>(batchSize);
+                        }
+                    }
+                }
+                if (complete && !batch.isEmpty())
+                    complete = replayBatch(batch);
+                if (!complete)
+                    writeRemainder(remainderFile, lines, reader);
+            }
+            if (complete)
+                Files.delete(replayFile);
+            else
+                Files.move(remainderFile, replayFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "AuditWriter::replaySpill:Unable to replay spill file", e);
+        }
+    }
+
+    /**
+     * Write the rows of the batch which failed and the rows after it, which
+     * have not been written yet, to the remainder file
+     */
+    private static void writeRemainder(Path remainderFile, List<String> lines, BufferedReader reader)
+            throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(remainderFile, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    private boolean replayBatch(List<Map<String, Object>> batch) {
+        if (write(batch)) {
+            replayed.addAndGet(batch.size());
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+            return true;
+        }
+        logger.warning("AuditWriter::replayBatch:Unable to write " + batch.size()
+                + " spilled audit rows, keeping them for the next replay");
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Stops calls to a remote service after it fails several times in a row. While
+ * the breaker is open calls are refused without waiting on the service. Once
+ * the open time has passed a single probe call is let through: if it succeeds
+ * the breaker closes again, if it fails the breaker stays open for another open
+ * time.
+ */
+public class CircuitBreaker {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openTimeMs;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probeInFlight;
+
+    private long opened;
+    private long rejected;
+
+    /**
+     * Create a new breaker
+     *
+     * @param name             - the service the breaker protects, for logging.
+     * @param failureThreshold - the number of failures in a row which open the
+     *                         breaker.
+     * @param openTimeMs       - how long the breaker stays open before probing.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTimeMs) {
+        this(name, failureThreshold, openTimeMs, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(String name, int failureThreshold, long openTimeMs, LongSupplier clock) {
+        this.name = name;
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openTimeMs = openTimeMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Ask to make a call. Every call allowed must be followed by exactly one of
+     * onSuccess, onFailure or onIgnored.
+     *
+     * @return true if the call may be made, false if it should fail fast
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && clock.getAsLong() >= openUntil) {
+            state = State.HALF_OPEN;
+            logger.info("CircuitBreaker::tryAcquire:" + name + " half open, probing");
+        }
+        if (state == State.CLOSED)
+            return true;
+        if (state == State.HALF_OPEN && !probeInFlight) {
+            probeInFlight = true;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Record a successful call
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            state = State.CLOSED;
+            logger.info("CircuitBreaker::onSuccess:" + name + " closed");
+        }
+    }
+
+    /**
+     * Record a failed call
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            probeInFlight = false;
+            state = State.OPEN;
+            openUntil = clock.getAsLong() + openTimeMs;
+            opened++;
+            logger.warning("CircuitBreaker::onFailure:" + name + " open for " + openTimeMs + "ms after "
+                    + consecutiveFailures + " failures");
+        }
+    }
+
+    /**
+     * Record an allowed call which was not made, e.g. it could not get a
+     * connection, so its outcome says nothing about the service
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN)
+            probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get the current state of the breaker
+     *
+     * @return map of metric name to value
+     */
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("state", state.name());
+        metrics.put("consecutiveFailures", consecutiveFailures);
+        metrics.put("failureThreshold", failureThreshold);
+        metrics.put("openTimeMs", openTimeMs);
+        metrics.put("opened", opened);
+        metrics.put("rejected", rejected);
+        return metrics;
+    }
+}
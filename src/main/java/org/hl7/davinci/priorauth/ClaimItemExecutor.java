@@ -0,0 +1,230 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs claim item tasks on a fixed size pool with a bounded queue. When the
+ * queue is full a task is rejected at once rather than run on the request
+ * thread, where it would not be bound by the claim timeout. Callers wait for
+ * all of the items of a claim with a single timeout and the unfinished items
+ * are cancelled when it expires or when the claim is cancelled.
+ */
+public class ClaimItemExecutor {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 200;
+    public static final int DEFAULT_TIMEOUT_SECONDS = 60;
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+    // The items of each claim being waited for, by claim id
+    private final Map<String, List<? extends CompletableFuture<?>>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Create a new executor
+     *
+     * @param threads   - the number of worker threads.
+     * @param queueSize - the number of tasks which can wait for a worker before
+     *                  tasks are rejected.
+     * @param timeoutMs - how long to wait for all of the items of one claim.
+     */
+    public ClaimItemExecutor(int threads, int queueSize, long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        int poolSize = Math.max(threads, 1);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)), new WorkerFactory(), (task, pool) -> {
+                    if (pool.isShutdown())
+                        throw new RejectedExecutionException("ClaimItemExecutor is closed");
+                    throw new RejectedExecutionException("ClaimItemExecutor queue is full");
+                });
+    }
+
+    /**
+     * Create the ClaimItemExecutor described by config.properties
+     *
+     * @return the configured ClaimItemExecutor
+     */
+    public static ClaimItemExecutor create() {
+        int threads = PropertyProvider.getIntProperty("claim_item_threads", DEFAULT_THREADS);
+        int queueSize = PropertyProvider.getIntProperty("claim_item_queue_size", DEFAULT_QUEUE_SIZE);
+        int timeout = PropertyProvider.getIntProperty("claim_item_timeout", DEFAULT_TIMEOUT_SECONDS);
+        logger.info("ClaimItemExecutor::create:" + threads + " threads, queue " + queueSize + ", timeout " + timeout
+                + "s");
+        return new ClaimItemExecutor(threads, queueSize, TimeUnit.SECONDS.toMillis(timeout));
+    }
+
+    /**
+     * Run a task on the pool. Cancelling the returned future stops a task which
+     * has not started yet. A running task is not interrupted so it is never
+     * stopped part way through a database write, it should check isCancelled()
+     * on its future before doing any more work.
+     *
+     * @param task - the task to run.
+     * @return a future completed with the result of the task, completed
+     *         exceptionally at once if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        submitted.incrementAndGet();
+        try {
+            Future<?> queued = executor.submit(() -> {
+                if (result.isDone())
+                    return;
+                try {
+                    if (result.complete(task.call()))
+                        completed.incrementAndGet();
+                } catch (CancellationException e) {
+                    // The task stopped because its claim was cancelled or timed
+                    // out, which is not a failure. A future cancelled by the caller
+                    // was counted when it was cancelled.
+                    if (result.cancel(false))
+                        cancelled.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    result.completeExceptionally(e);
+                }
+            });
+            result.whenComplete((value, e) -> {
+                if (result.isCancelled())
+                    queued.cancel(false);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for every future to complete. If the timeout expires, one of the
+     * futures fails or the claim is cancelled the rest are cancelled.
+     *
+     * @param futures - the futures of the items of one claim.
+     * @param claimId - the claim the items belong to.
+     * @return true if every future completed successfully in time, false
+     *         otherwise
+     */
+    public boolean awaitAll(List<? extends CompletableFuture<?>> futures, String claimId) {
+        String name = "Claim " + claimId;
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        inFlight.put(claimId, futures);
+        try {
+            all.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            logger.warning("ClaimItemExecutor::awaitAll:Timed out after " + timeoutMs + "ms waiting for " + name);
+        } catch (CancellationException e) {
+            logger.info("ClaimItemExecutor::awaitAll:Processing " + name + " was cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException)
+                logger.info("ClaimItemExecutor::awaitAll:Processing " + name + " was cancelled");
+            else
+                logger.log(Level.SEVERE, "ClaimItemExecutor::awaitAll:Failed processing " + name, e.getCause());
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "ClaimItemExecutor::awaitAll:Interrupted waiting for " + name, e);
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.remove(claimId, futures);
+        }
+        cancelAll(futures);
+        return false;
+    }
+
+    /**
+     * Cancel the items of a claim which are still being processed, e.g. because
+     * the claim has been cancelled. The request waiting for them returns at
+     * once and running items stop before storing their result.
+     *
+     * @param claimId - the claim the items belong to.
+     * @return true if items of the claim were being processed, false otherwise
+     */
+    public boolean cancel(String claimId) {
+        List<? extends CompletableFuture<?>> futures = inFlight.get(claimId);
+        if (futures == null)
+            return false;
+        logger.info("ClaimItemExecutor::cancel:Cancelling the items of Claim " + claimId);
+        cancelAll(futures);
+        return true;
+    }
+
+    private void cancelAll(List<? extends CompletableFuture<?>> futures) {
+        for (CompletableFuture<?> future : futures) {
+            if (future.cancel(false))
+                cancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop accepting tasks and wait for the running and queued tasks to finish
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                logger.warning("ClaimItemExecutor::close:Tasks still running after " + CLOSE_TIMEOUT_MS + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the current state of the executor
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("poolSize", executor.getPoolSize());
+        metrics.put("maxPoolSize", executor.getMaximumPoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("queueCapacity", executor.getQueue().size() + executor.getQueue().remainingCapacity());
+        metrics.put("submitted", submitted.get());
+        metrics.put("completed", completed.get());
+        metrics.put("failed", failed.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("cancelled", cancelled.get());
+        return metrics;
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ClaimItem-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
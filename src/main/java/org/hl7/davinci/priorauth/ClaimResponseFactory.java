@@ -1,8 +1,8 @@
 package org.hl7.davinci.priorauth;
 
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -17,13 +17,13 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.DefaultResourceLoader;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.type.TypeReference;
 
+import org.hl7.davinci.priorauth.Database.Row;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.priorauth.FhirUtils.Disposition;
 import org.hl7.davinci.priorauth.FhirUtils.ReviewAction;
 import org.hl7.davinci.rules.RequestMapping;
+import org.hl7.davinci.rules.RequestMappingRegistry;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
@@ -56,8 +56,14 @@ public class ClaimResponseFactory {
     static final Logger logger = PALogger.getLogger();
     static final String TEMP_REQUEST_CODE = "73722";
     static final String TEMP_REQUEST_SYSTEM = "http://www.ama-assn.org/go/cpt";
-    
-    //Resource mappingTable = resourceLoader.getResource("requestMappingTable.json");
+
+    /**
+     * The request mapping table, parsed on first use and reloaded through
+     * /debug/ReloadRequestMappings
+     */
+    private static final RequestMappingRegistry REQUEST_MAPPINGS = new RequestMappingRegistry(
+            PropertyProvider.getProperty("request_mapping_table", RequestMappingRegistry.DEFAULT_TABLE));
+
     /**
      * Generate a new ClaimResponse and store it in the database.
      *
@@ -108,7 +114,6 @@ public class ClaimResponseFactory {
         }
         // Check Claim product or services for a special code that requires a pending response with a request for more information from code in "requestMappingTable.json"
         //DefaultResourceLoader resourceLoader = new DefaultResourceLoader();
-		//Resource mappingTable = resourceLoader.getResource("requestMappingTable.json");
         //claim
         // Generate the claim response...
         // logger.info("ClaimResponseFactory::generateAndStoreClaimResponse:Generating ClaimResponse for claim id: " + claim.getId() + ", disposition: " + responseDisposition + ", status: " + responseStatus);
@@ -147,77 +152,36 @@ public class ClaimResponseFactory {
 
         return responseBundle;
     }
+
+    /**
+     * Check whether an item's productOrService is in the request mapping table
+     *
+     * @param item - the Claim item.
+     * @return true if additional information has to be requested for the item
+     */
     public static boolean ItemRequiresFollowup(ItemComponent item)
     {
-
-        // TODO, this is not very effective and reloads the file every time (because it is a static function. Needs some rework
-        boolean hasRequestTrigger = false;
-        List<RequestMapping> requestMapping = new ArrayList<RequestMapping>();
-
-    
-        //ObjectMapper objectMapper = new ObjectMapper(); 
-        // TODO: This should not have to be loaded for each call. Doing now for static functions, but needs to be fixed.
-        // This mapping has to be used for several uses beyond this function
-        //DefaultResourceLoader resourceLoader = new DefaultResourceLoader();
-
-
-        try(InputStream in=Thread.currentThread().getContextClassLoader().getResourceAsStream("requestMappingTable.json")){
-            ObjectMapper mapper = new ObjectMapper();
-            requestMapping = mapper.readValue(in, new TypeReference<List<RequestMapping>>() {});
-        }
-        catch(Exception e){
-        
-            logger.info("Exception on ItemRequiresFollowup :" + e.getMessage());
-        }
-        
-        
-        for(Coding procedureCoding : item.getProductOrService().getCoding())
-        {
-            for(RequestMapping mapping : requestMapping)
-            {
-                if(procedureCoding.getCode().equals(mapping.getProductOrService().getCode()) && procedureCoding.getSystem().equals(mapping.getProductOrService().getSystem()))
-                {
-                    logger.info("Found a pending information Request Procedure Code");
-                    hasRequestTrigger = true;
-                    break;
-                }
-                
-            }
-            if(hasRequestTrigger == true)
-            {
-                break;
-            }
-        }
-        return hasRequestTrigger;
+        return REQUEST_MAPPINGS.lookup(item.getProductOrService()) != null;
     }
 
+    /**
+     * Get the request mapping of an item's productOrService
+     *
+     * @param item - the Claim item.
+     * @return the mapping, or an empty RequestMapping if the item has none
+     */
     public static RequestMapping GetRequestMapping(ItemComponent item)
     {
-        RequestMapping request = new RequestMapping();
-        List<RequestMapping> requestMapping = new ArrayList<RequestMapping>();
+        RequestMapping request = REQUEST_MAPPINGS.lookup(item.getProductOrService());
+        return request != null ? request : new RequestMapping();
+    }
 
-        try(InputStream in=Thread.currentThread().getContextClassLoader().getResourceAsStream("requestMappingTable.json")){
-            ObjectMapper mapper = new ObjectMapper();
-            requestMapping = mapper.readValue(in, new TypeReference<List<RequestMapping>>() {});
-        }
-        catch(Exception e){
-        
-            logger.info("Exception on GetRequestMapping :" + e.getMessage());
-        }
-        
-        for(Coding procedureCoding : item.getProductOrService().getCoding())
-        {
-            for(RequestMapping mapping : requestMapping)
-            {
-                if(procedureCoding.getCode().equals(mapping.getProductOrService().getCode()) && procedureCoding.getSystem().equals(mapping.getProductOrService().getSystem()))
-                {
-                    logger.info("Found a pending information Request Procedure Code");
-                    request = mapping;
-                    break;
-                }
-            }
-        }
-        return request;
+    /**
+     * @return the request mapping table used for follow-up requests
+     */
+    public static RequestMappingRegistry getRequestMappings()
+    {
+        return REQUEST_MAPPINGS;
     }
 
     /**
@@ -312,11 +276,13 @@ public class ClaimResponseFactory {
             boolean atleastOneGranted = false;
             boolean atleastOneDenied = false;
             boolean atleastOnePended = false;
+            // Read every item outcome in one query, most recent first
+            Map<String, String> outcomes = new HashMap<>();
+            for (Row row : App.getDB().selectColumns(Table.CLAIM_ITEM, Collections.singletonMap("id", claimId),
+                    "sequence", "outcome"))
+                outcomes.putIfAbsent(row.getString("sequence"), row.getString("outcome"));
             for (ItemComponent item : claim.getItem()) {
-                Map<String, Object> constraintMap = new HashMap<>();
-                constraintMap.put("id", claimId);
-                constraintMap.put("sequence", item.getSequence());
-                String outcome = App.getDB().readString(Table.CLAIM_ITEM, constraintMap, "outcome");
+                String outcome = outcomes.get(String.valueOf(item.getSequence()));
                 ReviewAction reviewAction = ReviewAction.fromString(outcome);
 
                 if (reviewAction == ReviewAction.APPROVED)
@@ -0,0 +1,412 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Row;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Runs the updates of pended claims. Every update is written to the
+ * ScheduledUpdate table before it is queued on a small shared pool, so
+ * pending updates survive a restart and are queued again by recover(). The
+ * Bundle of the claim is read from the database when the update runs instead
+ * of being held in memory while it waits.
+ *
+ * An update moves from scheduled to running to done, failed or cancelled. Each
+ * move is a compare-and-set, both on the in-memory entry and on the status
+ * column, so a cancel racing with the update firing has exactly one winner.
+ * The row is the source of truth: an update only runs if it can move its row
+ * from scheduled to running, so an update cancelled by another server sharing
+ * the database, or already run by one, is skipped.
+ *
+ * Moving a row to running records when it was claimed. A row still running
+ * after the lease, because the server running it stopped mid-update, is moved
+ * back to scheduled and queued again. The lease must be longer than an update
+ * takes, otherwise an update still running could be run a second time.
+ */
+public class ClaimUpdateScheduler {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final long DEFAULT_DELAY_MS = 15000;
+    public static final long DEFAULT_LEASE_MS = 300000;
+
+    /**
+     * Values of the status column of the ScheduledUpdate table
+     */
+    public enum Status {
+        SCHEDULED("scheduled"), RUNNING("running"), DONE("done"), CANCELLED("cancelled"), FAILED("failed");
+
+        private final String value;
+
+        Status(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+    }
+
+    private final Database database;
+    private final long leaseMs;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, PendingUpdate> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /**
+     * Create a new scheduler
+     *
+     * @param database - the database holding the ScheduledUpdate table.
+     * @param threads  - the number of threads running updates.
+     */
+    public ClaimUpdateScheduler(Database database, int threads) {
+        this(database, threads, DEFAULT_LEASE_MS);
+    }
+
+    /**
+     * Create a new scheduler
+     *
+     * @param database - the database holding the ScheduledUpdate table.
+     * @param threads  - the number of threads running updates.
+     * @param leaseMs  - how long an update can stay running before it is
+     *                 scheduled again.
+     */
+    public ClaimUpdateScheduler(Database database, int threads, long leaseMs) {
+        this.database = database;
+        this.leaseMs = Math.max(leaseMs, 1);
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new WorkerFactory());
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor.scheduleWithFixedDelay(this::reclaim, this.leaseMs, this.leaseMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the ClaimUpdateScheduler described by config.properties
+     *
+     * @param database - the database holding the ScheduledUpdate table.
+     * @return the configured ClaimUpdateScheduler, not yet recovered
+     */
+    public static ClaimUpdateScheduler create(Database database) {
+        int threads = PropertyProvider.getIntProperty("claim_update_threads", DEFAULT_THREADS);
+        long lease = PropertyProvider.getLongProperty("claim_update_lease", DEFAULT_LEASE_MS);
+        logger.info("ClaimUpdateScheduler::create:" + threads + " threads, lease " + lease + "ms");
+        return new ClaimUpdateScheduler(database, threads, lease);
+    }
+
+    /**
+     * Get the delay before a pended claim is updated, from the DELAY environment
+     * variable if it is set
+     *
+     * @return the delay in milliseconds
+     */
+    public static long getDelay() {
+        String delayEnv = System.getenv("DELAY");
+        if (delayEnv != null) {
+            try {
+                return Long.parseLong(delayEnv);
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid DELAY environment variable, using default " + DEFAULT_DELAY_MS + "ms");
+            }
+        }
+        return DEFAULT_DELAY_MS;
+    }
+
+    /**
+     * Schedule the update of a pended claim
+     *
+     * @param id      - the Claim ID.
+     * @param patient - the Patient ID.
+     * @param delayMs - how long to wait before updating the claim.
+     * @return true if the update was stored and queued, false otherwise
+     */
+    public boolean schedule(String id, String patient, long delayMs) {
+        long dueAt = System.currentTimeMillis() + delayMs;
+        Map<String, Object> dataMap = new HashMap<>();
+        dataMap.put("patient", patient);
+        dataMap.put("dueAt", dueAt);
+        dataMap.put("status", Status.SCHEDULED.value());
+        if (!database.update(Table.SCHEDULED_UPDATE, Collections.singletonMap("id", id), dataMap)) {
+            dataMap.put("id", id);
+            if (!database.write(Table.SCHEDULED_UPDATE, dataMap)) {
+                logger.severe("ClaimUpdateScheduler::schedule:Unable to store the update of " + id);
+                return false;
+            }
+        }
+        scheduled.incrementAndGet();
+        queue(id, patient, dueAt);
+        return true;
+    }
+
+    /**
+     * Queue every update still scheduled in the database, e.g. after a restart,
+     * and every update left running past its lease. Updates which became due
+     * while the server was down run immediately.
+     *
+     * @return the number of updates queued
+     */
+    public int recover() {
+        // Counted as reclaimed, not recovered
+        int reclaimedCount = reclaim();
+        int count = 0;
+        for (Row row : database.selectColumns(Table.SCHEDULED_UPDATE,
+                Collections.singletonMap("status", Status.SCHEDULED.value()), "id", "patient", "dueAt")) {
+            String id = row.getString("id");
+            if (pending.containsKey(id))
+                continue;
+            long dueAt;
+            try {
+                dueAt = Long.parseLong(row.getString("dueAt"));
+            } catch (NumberFormatException e) {
+                dueAt = System.currentTimeMillis();
+            }
+            queue(id, row.getString("patient"), dueAt);
+            count++;
+        }
+        recovered.addAndGet(count);
+        if (count > 0)
+            logger.info("ClaimUpdateScheduler::recover:Queued " + count + " scheduled updates");
+        return reclaimedCount + count;
+    }
+
+    /**
+     * Move the updates left running past their lease back to scheduled and
+     * queue them. Runs every lease on the pool, so an update claimed by a server
+     * which stopped is picked up without a restart. A running update without a
+     * readable claimedAt is left alone, its lease cannot be shown to have
+     * expired.
+     *
+     * @return the number of updates queued
+     */
+    public int reclaim() {
+        int count = 0;
+        long expired = System.currentTimeMillis() - leaseMs;
+        try {
+            for (Row row : database.selectColumns(Table.SCHEDULED_UPDATE,
+                    Collections.singletonMap("status", Status.RUNNING.value()), "id", "patient", "claimedAt")) {
+                String id = row.getString("id");
+                // Running here, not abandoned
+                if (pending.containsKey(id))
+                    continue;
+                String claimedAt = row.getString("claimedAt");
+                try {
+                    if (Long.parseLong(claimedAt) > expired)
+                        continue;
+                } catch (NumberFormatException e) {
+                    logger.fine("ClaimUpdateScheduler::reclaim:Update of " + id + " is running without a lease");
+                    continue;
+                }
+                // Only if no one reclaimed it since it was read
+                Map<String, Object> constraintMap = constraints(id, Status.RUNNING);
+                constraintMap.put("claimedAt", claimedAt);
+                if (!database.update(Table.SCHEDULED_UPDATE, constraintMap,
+                        Collections.singletonMap("status", Status.SCHEDULED.value())))
+                    continue;
+                logger.warning("ClaimUpdateScheduler::reclaim:Update of " + id
+                        + " was left running, scheduling it again");
+                queue(id, row.getString("patient"), System.currentTimeMillis());
+                count++;
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "ClaimUpdateScheduler::reclaim:Unable to reclaim updates", e);
+        }
+        reclaimed.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Cancel the scheduled update of a claim. The update is cancelled in the
+     * database so it is also skipped if it is queued on another server. An
+     * update which has already started running is not stopped.
+     *
+     * @param id - the Claim ID.
+     * @return true if an update was waiting and has been cancelled, false
+     *         otherwise
+     */
+    public boolean cancel(String id) {
+        PendingUpdate update = pending.get(id);
+        boolean result = update != null && update.cancel();
+        // A running update removes itself once it is done
+        if (result)
+            pending.remove(id, update);
+        if (move(id, Status.SCHEDULED, Status.CANCELLED))
+            result = true;
+        if (result)
+            cancelled.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Stop running updates. Updates which have not run stay scheduled in the
+     * database and are recovered on the next start.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the current state of the scheduler
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("threads", executor.getCorePoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("pending", pending.size());
+        metrics.put("running", pending.values().stream().filter(update -> update.state.get() == Status.RUNNING)
+                .count());
+        metrics.put("stored", database.count(Table.SCHEDULED_UPDATE,
+                Collections.singletonMap("status", Status.SCHEDULED.value())));
+        metrics.put("scheduled", scheduled.get());
+        metrics.put("recovered", recovered.get());
+        metrics.put("completed", completed.get());
+        metrics.put("cancelled", cancelled.get());
+        metrics.put("failed", failed.get());
+        metrics.put("skipped", skipped.get());
+        metrics.put("reclaimed", reclaimed.get());
+        return metrics;
+    }
+
+    private void queue(String id, String patient, long dueAt) {
+        PendingUpdate update = new PendingUpdate(id, patient);
+        PendingUpdate previous = pending.put(id, update);
+        if (previous != null)
+            previous.cancel();
+        long delay = Math.max(dueAt - System.currentTimeMillis(), 0);
+        update.future = executor.schedule(update, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * An update queued on the pool. The entry is put in the pending map before
+     * it is scheduled and stays there while it runs, then removes itself and not
+     * an entry queued after it.
+     */
+    private class PendingUpdate implements Runnable {
+        private final String id;
+        private final String patient;
+        private final AtomicReference<Status> state = new AtomicReference<>(Status.SCHEDULED);
+        private volatile ScheduledFuture<?> future;
+
+        PendingUpdate(String id, String patient) {
+            this.id = id;
+            this.patient = patient;
+        }
+
+        /**
+         * @return true if the update had not started and is now cancelled
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(Status.SCHEDULED, Status.CANCELLED))
+                return false;
+            ScheduledFuture<?> scheduledFuture = future;
+            if (scheduledFuture != null)
+                scheduledFuture.cancel(false);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!state.compareAndSet(Status.SCHEDULED, Status.RUNNING))
+                    return;
+                // Claim the row, it may have been cancelled or run elsewhere
+                if (!claim(id)) {
+                    skipped.incrementAndGet();
+                    logger.info("ClaimUpdateScheduler::run:Update of " + id + " is no longer scheduled, skipping");
+                    state.set(Status.CANCELLED);
+                    return;
+                }
+                Status outcome = update(id, patient);
+                state.set(outcome);
+                move(id, Status.RUNNING, outcome);
+            } finally {
+                pending.remove(id, this);
+            }
+        }
+    }
+
+    /**
+     * Move the row of an update from one status to another
+     *
+     * @return true if the row was in the from status and has been moved
+     */
+    private boolean move(String id, Status from, Status to) {
+        return database.update(Table.SCHEDULED_UPDATE, constraints(id, from),
+                Collections.singletonMap("status", to.value()));
+    }
+
+    /**
+     * Move the row of an update from scheduled to running, starting its lease
+     *
+     * @return true if the row was scheduled and has been claimed
+     */
+    private boolean claim(String id) {
+        Map<String, Object> dataMap = new HashMap<>();
+        dataMap.put("status", Status.RUNNING.value());
+        dataMap.put("claimedAt", System.currentTimeMillis());
+        return database.update(Table.SCHEDULED_UPDATE, constraints(id, Status.SCHEDULED), dataMap);
+    }
+
+    private Status update(String id, String patient) {
+        Status outcome = Status.DONE;
+        try {
+            Bundle bundle = (Bundle) database.read(Table.BUNDLE, Collections.singletonMap("id", id));
+            if (bundle == null) {
+                logger.warning("ClaimUpdateScheduler::run:Bundle " + id + " no longer exists");
+                outcome = Status.CANCELLED;
+            } else {
+                new UpdateClaimTask(bundle, id, patient).run();
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "ClaimUpdateScheduler::run:Unable to update claim " + id, e);
+            outcome = Status.FAILED;
+        }
+
+        if (outcome == Status.DONE)
+            completed.incrementAndGet();
+        else if (outcome == Status.FAILED)
+            failed.incrementAndGet();
+        return outcome;
+    }
+
+    private static Map<String, Object> constraints(String id, Status status) {
+        Map<String, Object> constraintMap = new HashMap<>();
+        constraintMap.put("id", id);
+        constraintMap.put("status", status.value());
+        return constraintMap;
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ClaimUpdate-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
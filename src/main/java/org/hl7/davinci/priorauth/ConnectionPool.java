@@ -0,0 +1,483 @@
+package org.hl7.davinci.priorauth;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of JDBC connections. Idle connections are validated before
+ * they are handed out, returned to the pool when the caller closes them, and
+ * reported as leaked if they are held longer than the leak threshold. Each
+ * pooled connection keeps its most recently used PreparedStatements open so
+ * the same SQL is only parsed once per connection. Cached statements are
+ * handed out wrapped, so closing one returns it to the cache, and only
+ * statements which are not in use are evicted.
+ */
+public class ConnectionPool implements ConnectionProvider {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final int DEFAULT_POOL_SIZE = 10;
+    public static final int DEFAULT_BORROW_TIMEOUT_MS = 30000;
+    public static final int DEFAULT_LEAK_THRESHOLD_MS = 60000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    private static final int VALIDATION_TIMEOUT_SEC = 2;
+
+    private final String jdbcUrl;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Map<PooledConnection, Lease> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService leakDetector;
+    private volatile boolean closed = false;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    /**
+     * Track when and where a connection was borrowed
+     */
+    private static class Lease {
+        final long borrowedAt = System.currentTimeMillis();
+        final Throwable origin;
+        volatile boolean reported = false;
+
+        Lease(Throwable origin) {
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * A physical connection together with the statements cached on it, least
+     * recently used first. The statement cache is only touched by the thread
+     * currently holding the lease.
+     */
+    private static class PooledConnection {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Create a new pool without statement caching. Connections are opened lazily
+     * up to maxSize.
+     *
+     * @param jdbcUrl         - the JDBC connection string.
+     * @param maxSize         - the maximum number of open connections.
+     * @param borrowTimeoutMs - how long to wait for a free connection.
+     * @param leakThresholdMs - how long a connection may be held before it is
+     *                        reported as leaked. 0 disables leak detection.
+     */
+    public ConnectionPool(String jdbcUrl, int maxSize, long borrowTimeoutMs, long leakThresholdMs) {
+        this(jdbcUrl, maxSize, borrowTimeoutMs, leakThresholdMs, 0);
+    }
+
+    /**
+     * Create a new pool. Connections are opened lazily up to maxSize.
+     *
+     * @param jdbcUrl            - the JDBC connection string.
+     * @param maxSize            - the maximum number of open connections.
+     * @param borrowTimeoutMs    - how long to wait for a free connection.
+     * @param leakThresholdMs    - how long a connection may be held before it is
+     *                           reported as leaked. 0 disables leak detection.
+     * @param statementCacheSize - the number of PreparedStatements kept open per
+     *                           connection. 0 disables statement caching.
+     */
+    public ConnectionPool(String jdbcUrl, int maxSize, long borrowTimeoutMs, long leakThresholdMs,
+            int statementCacheSize) {
+        this.jdbcUrl = jdbcUrl;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = Math.max(statementCacheSize, 0);
+        this.permits = new Semaphore(maxSize, true);
+
+        if (leakThresholdMs > 0) {
+            this.leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ConnectionPool-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(leakThresholdMs / 2, 1000);
+            this.leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.leakDetector = null;
+        }
+
+        logger.info("ConnectionPool::ConnectionPool:size " + maxSize + ", timeout " + borrowTimeoutMs
+                + "ms, leak threshold " + leakThresholdMs + "ms, statement cache " + this.statementCacheSize);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed)
+            throw new SQLException("ConnectionPool::getConnection:Pool has been closed");
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("ConnectionPool::getConnection:Timed out after " + borrowTimeoutMs
+                        + "ms waiting for one of " + maxSize + " connections");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("ConnectionPool::getConnection:Interrupted waiting for a connection", e);
+        }
+        totalWaitNanos.addAndGet(System.nanoTime() - start);
+
+        try {
+            PooledConnection connection = takeIdleOrCreate();
+            leased.put(connection, new Lease(leakDetector != null ? new Throwable("Connection borrowed here") : null));
+            borrowed.incrementAndGet();
+            return wrap(connection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long borrowCount = borrowed.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pooled", true);
+        metrics.put("maxSize", maxSize);
+        metrics.put("active", leased.size());
+        metrics.put("idle", idle.size());
+        metrics.put("waiting", permits.getQueueLength());
+        metrics.put("created", created.get());
+        metrics.put("destroyed", destroyed.get());
+        metrics.put("borrowed", borrowCount);
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("validationFailures", validationFailures.get());
+        metrics.put("leaksDetected", leaks.get());
+        metrics.put("averageWaitMs", borrowCount == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / borrowCount);
+        metrics.put("statementCacheSize", statementCacheSize);
+        metrics.put("statementCacheHits", statementCacheHits.get());
+        metrics.put("statementCacheMisses", statementCacheMisses.get());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (leakDetector != null)
+            leakDetector.shutdownNow();
+
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null)
+            destroy(connection);
+        logger.info("ConnectionPool::close:Closed pool with " + leased.size() + " connections still in use");
+    }
+
+    /**
+     * Take the most recently used idle connection which is still valid, or open
+     * a new one if none are available.
+     */
+    private PooledConnection takeIdleOrCreate() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (isValid(pooled.connection))
+                return pooled;
+            validationFailures.incrementAndGet();
+            logger.warning("ConnectionPool::takeIdleOrCreate:Discarding invalid connection");
+            destroy(pooled);
+        }
+
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        connection.setAutoCommit(true);
+        created.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    private boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SEC);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a PreparedStatement for the SQL from the connection's statement cache,
+     * preparing and caching it on a miss. A cached statement is in use from when
+     * it is handed out until it is closed or the lease ends, and is not handed
+     * out again meanwhile so two open statements never share parameters. Its
+     * parameters and batch are cleared so nothing left by an earlier lease which
+     * failed part way is executed again.
+     */
+    private PreparedStatement prepareCached(PooledConnection pooled, String sql, PooledConnectionHandler lease)
+            throws SQLException {
+        PreparedStatement statement = pooled.statements.get(sql);
+        if (statement != null && !statement.isClosed() && !lease.inUse.contains(statement)) {
+            statementCacheHits.incrementAndGet();
+            statement.clearParameters();
+            statement.clearBatch();
+            return lease.handOut(statement);
+        }
+
+        statementCacheMisses.incrementAndGet();
+        PreparedStatement prepared = pooled.connection.prepareStatement(sql);
+        if (statement != null && !statement.isClosed()) {
+            // The cached statement is in use, this one is closed on release
+            lease.statements.add(prepared);
+            return prepared;
+        }
+        pooled.statements.put(sql, prepared);
+        evict(pooled, lease.inUse);
+        return lease.handOut(prepared);
+    }
+
+    /**
+     * Close the least recently used statements over the cache size, skipping
+     * those in use. The cache may stay over its size while they are.
+     */
+    private void evict(PooledConnection pooled, Set<PreparedStatement> inUse) {
+        Iterator<PreparedStatement> statements = pooled.statements.values().iterator();
+        while (pooled.statements.size() > statementCacheSize && statements.hasNext()) {
+            PreparedStatement statement = statements.next();
+            if (!inUse.contains(statement)) {
+                closeQuietly(statement);
+                statements.remove();
+            }
+        }
+    }
+
+    /**
+     * Return a connection to the pool, closing any uncached statements the caller
+     * left open and restoring auto commit.
+     */
+    private void release(PooledConnection pooled, List<Statement> statements) {
+        Connection connection = pooled.connection;
+        leased.remove(pooled);
+        for (Statement statement : statements)
+            closeQuietly(statement);
+
+        boolean reusable = !closed;
+        try {
+            if (connection.isClosed()) {
+                reusable = false;
+            } else if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "ConnectionPool::release:Unable to reset connection", e);
+            reusable = false;
+        }
+
+        if (reusable)
+            idle.offerFirst(pooled);
+        else
+            destroy(pooled);
+        permits.release();
+    }
+
+    private void destroy(PooledConnection pooled) {
+        destroyed.incrementAndGet();
+        for (PreparedStatement statement : pooled.statements.values())
+            closeQuietly(statement);
+        pooled.statements.clear();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "ConnectionPool::destroy:Unable to close connection", e);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "ConnectionPool::closeQuietly:Unable to close statement", e);
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leased.values()) {
+            long held = now - lease.borrowedAt;
+            if (!lease.reported && held > leakThresholdMs) {
+                lease.reported = true;
+                leaks.incrementAndGet();
+                logger.log(Level.WARNING,
+                        "ConnectionPool::detectLeaks:Connection has been held for " + held + "ms and may have leaked",
+                        lease.origin);
+            }
+        }
+    }
+
+    private Connection wrap(PooledConnection pooled) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new PooledConnectionHandler(pooled));
+    }
+
+    /**
+     * Intercept close() on a borrowed connection so it is returned to the pool
+     * instead of closed, serve prepareStatement(sql) from the statement cache,
+     * and remember any other statements created on it.
+     */
+    private class PooledConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final Connection connection;
+        private final List<Statement> statements = new ArrayList<>();
+        // Cached statements handed out during this lease and not closed yet
+        private final Set<PreparedStatement> inUse = new HashSet<>();
+        private final List<CachedStatementHandler> handedOut = new ArrayList<>();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private Connection proxy;
+
+        PooledConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+            this.connection = pooled.connection;
+        }
+
+        PreparedStatement handOut(PreparedStatement statement) {
+            CachedStatementHandler handler = new CachedStatementHandler(statement, this);
+            inUse.add(statement);
+            handedOut.add(handler);
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, handler);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            this.proxy = (Connection) proxy;
+            switch (method.getName()) {
+                case "close":
+                    if (released.compareAndSet(false, true)) {
+                        // Statements still open go back to the cache with the
+                        // connection, the caller's references stop working
+                        for (CachedStatementHandler handler : handedOut)
+                            handler.detach();
+                        handedOut.clear();
+                        inUse.clear();
+                        release(pooled, statements);
+                    }
+                    return null;
+                case "isClosed":
+                    return released.get() || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + connection + "]";
+                default:
+                    break;
+            }
+
+            if (released.get())
+                throw new SQLException("ConnectionPool::Connection has already been returned to the pool");
+
+            if (statementCacheSize > 0 && method.getName().equals("prepareStatement") && args.length == 1)
+                return prepareCached(pooled, (String) args[0], this);
+
+            try {
+                Object result = method.invoke(connection, args);
+                if (result instanceof Statement)
+                    statements.add((Statement) result);
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Intercept close() on a cached statement so it is returned to the cache
+     * instead of closed. The statement can be handed out again once it has been
+     * closed or its lease has ended, after which this handle no longer works.
+     */
+    private static class CachedStatementHandler implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final PooledConnectionHandler lease;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        CachedStatementHandler(PreparedStatement statement, PooledConnectionHandler lease) {
+            this.statement = statement;
+            this.lease = lease;
+        }
+
+        void detach() {
+            closed.set(true);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        // Closing a statement closes its results
+                        ResultSet results = statement.getResultSet();
+                        if (results != null)
+                            results.close();
+                        lease.inUse.remove(statement);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() || statement.isClosed();
+                case "getConnection":
+                    return lease.proxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                default:
+                    break;
+            }
+
+            if (closed.get())
+                throw new SQLException("ConnectionPool::Statement has already been closed");
+
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
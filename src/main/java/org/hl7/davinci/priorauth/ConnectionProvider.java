@@ -0,0 +1,56 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Source of JDBC connections for the Database. Callers must close every
+ * connection they obtain, which hands it back to the provider.
+ */
+public interface ConnectionProvider {
+
+    /**
+     * Obtain a connection with auto commit enabled.
+     *
+     * @return a connection which must be closed by the caller
+     * @throws SQLException if no connection could be obtained
+     */
+    Connection getConnection() throws SQLException;
+
+    /**
+     * Get the current metrics for this provider
+     *
+     * @return map of metric name to value
+     */
+    Map<String, Object> getMetrics();
+
+    /**
+     * Release all resources held by this provider. Connections obtained after
+     * this call will fail.
+     */
+    void close();
+
+    /**
+     * Create the ConnectionProvider described by config.properties. Setting
+     * database_pool_size to 0 opens a new connection for every request instead
+     * of pooling them, and database_statement_cache_size to 0 prepares every
+     * statement from scratch.
+     *
+     * @param jdbcUrl - the JDBC connection string
+     * @return the configured ConnectionProvider
+     */
+    static ConnectionProvider create(String jdbcUrl) {
+        int poolSize = PropertyProvider.getIntProperty("database_pool_size", ConnectionPool.DEFAULT_POOL_SIZE);
+        if (poolSize <= 0)
+            return new DirectConnectionProvider(jdbcUrl);
+
+        int borrowTimeout = PropertyProvider.getIntProperty("database_pool_timeout",
+                ConnectionPool.DEFAULT_BORROW_TIMEOUT_MS);
+        int leakThreshold = PropertyProvider.getIntProperty("database_pool_leak_threshold",
+                ConnectionPool.DEFAULT_LEAK_THRESHOLD_MS);
+        int statementCacheSize = PropertyProvider.getIntProperty("database_statement_cache_size",
+                ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE);
+        return new ConnectionPool(jdbcUrl, poolSize, borrowTimeout, leakThreshold, statementCacheSize);
+    }
+}
@@ -2,26 +2,31 @@ package org.hl7.davinci.priorauth;
 
 import java.util.*;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.h2.jdbc.JdbcSQLIntegrityConstraintViolationException;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 
 /**
  * The Database is responsible for storing and retrieving FHIR resources.
@@ -32,7 +37,8 @@ public class Database {
 
   public enum Table {
     BUNDLE("Bundle"), CLAIM("Claim"), CLAIM_ITEM("ClaimItem"), CLAIM_RESPONSE("ClaimResponse"),
-    SUBSCRIPTION("Subscription"), RULES("Rules"), AUDIT("Audit"), CLIENT("Client");
+    SUBSCRIPTION("Subscription"), RULES("Rules"), AUDIT("Audit"), CLIENT("Client"),
+    SCHEDULED_UPDATE("ScheduledUpdate"), NOTIFICATION_OUTBOX("NotificationOutbox");
 
     private final String value;
 
@@ -45,7 +51,61 @@ public class Database {
     }
   }
 
-  private String SQL_FILE;
+  /**
+   * The kinds of SQL statements generated from a table and a set of columns
+   */
+  private enum Operation {
+    COUNT, PAGE_FIRST, PAGE_AFTER, PAGE_BEFORE, READ, READ_ALL, READ_COLUMNS, SELECT_COLUMNS, INSERT, UPDATE,
+    DELETE_BEFORE
+  }
+
+  /**
+   * Identifies a generated SQL statement by its operation, table and the sorted
+   * columns it binds. Values are always bound in that sorted order so every
+   * call with the same keys shares one SQL string.
+   */
+  private static final class StatementShape {
+    private final Operation operation;
+    private final Table table;
+    private final String column;
+    private final List<String> dataColumns;
+    private final List<String> constraintColumns;
+
+    StatementShape(Operation operation, Table table, String column, Map<String, Object> data,
+        Map<String, Object> constraints) {
+      this.operation = operation;
+      this.table = table;
+      this.column = column;
+      this.dataColumns = sortedColumns(data);
+      this.constraintColumns = sortedColumns(constraints);
+    }
+
+    private static List<String> sortedColumns(Map<String, Object> map) {
+      if (map == null)
+        return Collections.emptyList();
+      List<String> columns = new ArrayList<>(map.keySet());
+      Collections.sort(columns);
+      return columns;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof StatementShape))
+        return false;
+      StatementShape other = (StatementShape) o;
+      return operation == other.operation && table == other.table && Objects.equals(column, other.column)
+          && dataColumns.equals(other.dataColumns) && constraintColumns.equals(other.constraintColumns);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(operation, table, column, dataColumns, constraintColumns);
+    }
+  }
+
+  private int schemaVersion = 0;
 
   private static final String styleFile = "src/main/resources/style.html";
   private static final String scriptFile = "src/main/resources/script.html";
@@ -53,6 +113,36 @@ public class Database {
   private static String style = "";
   private static String script = "";
 
+  private static final String CURSOR_NEXT = "n";
+  private static final String CURSOR_PREVIOUS = "p";
+  private static final String CURSOR_SEPARATOR = "|";
+  // Results read per query by a streaming search
+  public static final int SEARCH_PAGE_SIZE = 100;
+
+  // Walks up the related column and down the Claims referencing each update.
+  // When a Claim was updated more than once only the most recent update is
+  // followed, as a read of the related column does. Ancestors have negative
+  // depth so the whole chain orders oldest first.
+  private static final String CLAIM_LINEAGE_SQL = "WITH RECURSIVE "
+      + "descendants(id, timestamp, depth) AS (SELECT id, timestamp, 0 FROM Claim WHERE id = ? "
+      + "UNION ALL SELECT c.id, c.timestamp, d.depth + 1 FROM Claim c INNER JOIN descendants d ON c.related = d.id "
+      + "WHERE d.depth < ? AND NOT EXISTS (SELECT 1 FROM Claim n WHERE n.related = c.related "
+      + "AND (n.timestamp > c.timestamp OR (n.timestamp = c.timestamp AND n.id > c.id)))), "
+      + "ancestors(id, related, timestamp, depth) AS (SELECT id, related, timestamp, 0 FROM Claim WHERE id = ? "
+      + "UNION ALL SELECT c.id, c.related, c.timestamp, a.depth - 1 FROM Claim c INNER JOIN ancestors a ON c.id = a.related "
+      + "WHERE a.depth > ?) "
+      + "SELECT id, timestamp, depth FROM ancestors WHERE depth < 0 "
+      + "UNION ALL SELECT id, timestamp, depth FROM descendants ORDER BY depth ASC;";
+  // Followed by one placeholder per id, an IN list binds on every H2 version
+  // unlike an array parameter
+  private static final String READ_CLAIMS_SQL = "SELECT id, resource FROM Claim WHERE id IN ";
+  private static final String UPDATE_CLAIM_STATUS_SQL = "UPDATE Claim SET status = ?, resource = ?, "
+      + "timestamp = CURRENT_TIMESTAMP WHERE id = ?;";
+  // Guards against a cycle in the related column
+  private static final int MAX_LINEAGE_DEPTH = 1000;
+  private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+  private static final String RESOURCE_COLUMN = "resource";
+
   private static final String SET_CONCAT = ", ";
   private static final String WHERE_CONCAT = " AND ";
 
@@ -64,6 +154,9 @@ public class Database {
   private static final String JDBC_OPTIONS = ";DB_CLOSE_DELAY=-1";
   private String JDBC_STRING;
 
+  private ConnectionProvider connectionProvider;
+  private final Map<StatementShape, String> statementSql = new ConcurrentHashMap<>();
+
   static {
     try {
       Class.forName("org.h2.Driver");
@@ -73,9 +166,7 @@ public class Database {
   }
 
   private Connection getConnection() throws SQLException {
-    Connection connection = DriverManager.getConnection(JDBC_STRING);
-    connection.setAutoCommit(true);
-    return connection;
+    return connectionProvider.getConnection();
   }
 
   public Database() {
@@ -86,11 +177,16 @@ public class Database {
   public Database(String relativePath) {
     JDBC_STRING = JDBC_TYPE + relativePath + JDBC_FILE + JDBC_OPTIONS;
     logger.info("JDBC: " + JDBC_STRING);
-    SQL_FILE = relativePath + PropertyProvider.getProperty("database_sql");
+    connectionProvider = ConnectionProvider.create(JDBC_STRING);
+    // The packaged migrations are used unless a folder is configured instead
+    String migrationsDir = PropertyProvider.getProperty("database_migrations");
     try (Connection connection = getConnection()) {
-      String sql = new String(Files.readAllBytes(Paths.get(SQL_FILE).toAbsolutePath()));
-      connection.prepareStatement(sql.replace("\"", "")).execute();
-      logger.fine(sql);
+      if (migrationsDir == null || migrationsDir.isEmpty()) {
+        schemaVersion = SchemaMigrator.migrate(connection);
+      } else {
+        logger.info("Database::Database:Migrations from " + relativePath + migrationsDir);
+        schemaVersion = SchemaMigrator.migrate(connection, Paths.get(relativePath + migrationsDir).toAbsolutePath());
+      }
 
       style = new String(Files.readAllBytes(Paths.get(relativePath + styleFile).toAbsolutePath()));
       script = new String(Files.readAllBytes(Paths.get(relativePath + scriptFile).toAbsolutePath()));
@@ -101,6 +197,96 @@ public class Database {
     }
   }
 
+  /**
+   * Get the metrics of the underlying connection provider
+   * 
+   * @return map of metric name to value
+   */
+  public Map<String, Object> getConnectionMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>(connectionProvider.getMetrics());
+    metrics.put("statementShapes", statementSql.size());
+    metrics.put("schemaVersion", schemaVersion);
+    return metrics;
+  }
+
+  /**
+   * Get the version of the schema after the migrations were run
+   * 
+   * @return the schema version
+   */
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * Get the plan H2 would use to run a query. Used to check the hot queries are
+   * served by an index.
+   * 
+   * @param sql    - the query to explain.
+   * @param values - the values of the query parameters.
+   * @return the query plan
+   * @throws SQLException
+   */
+  String explain(String sql, Object... values) throws SQLException {
+    try (Connection connection = getConnection();
+        PreparedStatement stmt = connection.prepareStatement("EXPLAIN " + sql)) {
+      for (int i = 0; i < values.length; i++)
+        stmt.setObject(i + 1, values[i]);
+      try (ResultSet rs = stmt.executeQuery()) {
+        StringBuilder plan = new StringBuilder();
+        while (rs.next())
+          plan.append(rs.getString(1));
+        return plan.toString();
+      }
+    }
+  }
+
+  /**
+   * Get the SQL a search runs for one page of results. Used to explain the
+   * statements the hot paths run.
+   * 
+   * @param table         - the Table searched.
+   * @param constraintMap - the search constraints, only the keys are used.
+   * @param after         - true for a page after a cursor, false for the first
+   *                      page.
+   * @return query string with '?' denoting the constraint values in sorted
+   *         column order, then the cursor and the limit
+   */
+  String getPageSql(Table table, Map<String, Object> constraintMap, boolean after) {
+    return getSql(new StatementShape(after ? Operation.PAGE_AFTER : Operation.PAGE_FIRST, table, null, null,
+        constraintMap));
+  }
+
+  /**
+   * Get the SQL readString and readColumns run. Used to explain the statements
+   * the hot paths run.
+   * 
+   * @param table         - the Table read.
+   * @param constraintMap - the read constraints, only the keys are used.
+   * @param columns       - the columns read.
+   * @return query string with '?' denoting the constraint values in sorted
+   *         column order
+   */
+  String getReadColumnsSql(Table table, Map<String, Object> constraintMap, String... columns) {
+    return getSql(new StatementShape(Operation.READ_COLUMNS, table, String.join(SET_CONCAT, columns), null,
+        constraintMap));
+  }
+
+  /**
+   * @return the SQL getClaimLineage runs, its values are the claim id, the
+   *         maximum depth, the claim id and the negated maximum depth
+   */
+  static String getClaimLineageSql() {
+    return CLAIM_LINEAGE_SQL;
+  }
+
+  /**
+   * Close all connections held by the database
+   */
+  public void close() {
+    connectionProvider.close();
+  }
+
   public String generateAndRunQuery(Table table) {
     String sql = "SELECT * FROM " + table.value() + " ORDER BY TIMESTAMP DESC";
     return runQuery(sql, true, true);
@@ -186,6 +372,20 @@ public class Database {
     return ret;
   }
 
+  /**
+   * Callback for each resource found by a streaming search
+   */
+  public interface SearchHandler {
+    /**
+     * Handle one search result.
+     * 
+     * @param fullUrl  - the absolute url of the resource.
+     * @param resource - the resource with its id set.
+     * @throws IOException if the result could not be written
+     */
+    void handle(String fullUrl, Resource resource) throws IOException;
+  }
+
   /**
    * Search the database for the given resourceType.
    * 
@@ -194,41 +394,262 @@ public class Database {
    * @return Bundle - the search result Bundle.
    */
   public Bundle search(Table table, Map<String, Object> constraintMap) {
-    logger.info("Database::search(" + table.value() + ", " + constraintMap.toString() + ")");
-    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     Bundle results = new Bundle();
     results.setType(BundleType.SEARCHSET);
     results.setTimestamp(new Date());
-    try (Connection connection = getConnection()) {
-      String sql = "SELECT id, patient, resource FROM " + table.value() + " WHERE "
-          + generateClause(constraintMap, WHERE_CONCAT) + ";";
-      Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-      maps.add(constraintMap);
-      PreparedStatement stmt = generateStatement(sql, maps, connection);
-      logger.fine("search query: " + stmt.toString());
-      ResultSet rs = stmt.executeQuery();
-      int total = 0;
-      while (rs.next()) {
-        String id = rs.getString("id");
-        String patientOut = rs.getString("patient");
-        String json = rs.getString("resource");
-        logger.info("search: " + id + "/" + patientOut);
-        Resource resource = (Resource) App.getFhirContext().newJsonParser().parseResource(json);
-        resource.setId(id);
+    try {
+      search(table, constraintMap, (fullUrl, resource) -> {
         BundleEntryComponent entry = new BundleEntryComponent();
-        entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + id);
+        entry.setFullUrl(fullUrl);
         entry.setResource(resource);
         results.addEntry(entry);
-        total += 1;
+      });
+    } catch (IOException e) {
+      // Adding to the Bundle does not throw
+      logger.log(Level.SEVERE, "Database::search:IOException", e);
+    }
+    results.setTotal(results.getEntry().size());
+    return results;
+  }
+
+  /**
+   * Search the database for the given resourceType, handing each result to the
+   * handler so the results never all need to be in memory. Results are read
+   * SEARCH_PAGE_SIZE at a time, newest first, and the connection is returned
+   * to the pool before the page is handed out, so a slow handler (e.g. writing
+   * to a slow client) never holds a connection.
+   * 
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints for the SQL query.
+   * @param handler       - called for each resource found.
+   * @return the number of resources found or -1 if a query failed.
+   * @throws IOException if the handler fails
+   */
+  public int search(Table table, Map<String, Object> constraintMap, SearchHandler handler) throws IOException {
+    return search(table, constraintMap, SEARCH_PAGE_SIZE, handler);
+  }
+
+  /**
+   * Search the database for the given resourceType, reading pageSize results
+   * at a time.
+   * 
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints for the SQL query.
+   * @param pageSize      - the number of results read per query.
+   * @param handler       - called for each resource found.
+   * @return the number of resources found or -1 if a query failed.
+   * @throws IOException if the handler fails
+   */
+  public int search(Table table, Map<String, Object> constraintMap, int pageSize, SearchHandler handler)
+      throws IOException {
+    logger.info("Database::search(" + table.value() + ", " + constraintMap.toString() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+    int total = 0;
+    Operation operation = Operation.PAGE_FIRST;
+    Timestamp cursorTimestamp = null;
+    String cursorId = null;
+    try {
+      while (true) {
+        List<Resource> resources = new ArrayList<>();
+        List<Timestamp> timestamps = new ArrayList<>();
+        try (Connection connection = getConnection()) {
+          readPage(connection, table, constraintMap, operation, cursorTimestamp, cursorId, pageSize, resources,
+              timestamps);
+        }
+        for (Resource resource : resources) {
+          String id = resource.getIdElement().getIdPart();
+          handler.handle(App.getBaseUrl() + "/" + table.value() + "/" + id, resource);
+          total += 1;
+        }
+        if (resources.size() < pageSize)
+          break;
+        // Carry on after the last result of the page
+        int last = resources.size() - 1;
+        operation = Operation.PAGE_AFTER;
+        cursorTimestamp = timestamps.get(last);
+        cursorId = resources.get(last).getIdElement().getIdPart();
       }
-      results.setTotal(total);
+      auditOutcome = AuditEventOutcome.SUCCESS;
     } catch (SQLException e) {
-      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
-      logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
+      total = -1;
+      logger.log(Level.SEVERE, "Database::search:SQLException", e);
+    } finally {
+      Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+          "Search " + table.value());
+    }
+    return total;
+  }
+
+  /**
+   * Read one page of search results ordered by timestamp and id.
+   * 
+   * @param connection      - the connection to read with.
+   * @param table           - the Table to search in.
+   * @param constraintMap   - the search constraints for the SQL query.
+   * @param operation       - PAGE_FIRST, PAGE_AFTER or PAGE_BEFORE.
+   * @param cursorTimestamp - the timestamp of the cursor, null for PAGE_FIRST.
+   * @param cursorId        - the id of the cursor, null for PAGE_FIRST.
+   * @param limit           - the number of rows to read.
+   * @param resources       - the resources read are added to this list.
+   * @param timestamps      - the timestamps of the resources are added to this
+   *                        list.
+   * @throws SQLException
+   */
+  private void readPage(Connection connection, Table table, Map<String, Object> constraintMap,
+      Operation operation, Timestamp cursorTimestamp, String cursorId, int limit, List<Resource> resources,
+      List<Timestamp> timestamps) throws SQLException {
+    StatementShape shape = new StatementShape(operation, table, null, null, constraintMap);
+    PreparedStatement stmt = generateStatement(shape, null, constraintMap, connection);
+    int valueIndex = shape.constraintColumns.size() + 1;
+    if (operation != Operation.PAGE_FIRST) {
+      stmt.setTimestamp(valueIndex++, cursorTimestamp);
+      stmt.setTimestamp(valueIndex++, cursorTimestamp);
+      stmt.setString(valueIndex++, cursorId);
+    }
+    stmt.setInt(valueIndex, limit);
+    ResultSet rs = stmt.executeQuery();
+    while (rs.next()) {
+      String id = rs.getString("id");
+      Resource resource = (Resource) FhirSerializer.parse(rs.getString("resource"), RequestType.JSON);
+      resource.setId(id);
+      resources.add(resource);
+      timestamps.add(rs.getTimestamp("timestamp"));
+    }
+  }
+
+  /**
+   * One page of search results, newest first, with opaque cursors to the pages
+   * on either side.
+   */
+  public static class SearchPage {
+    private final List<Resource> resources;
+    private final String nextCursor;
+    private final String previousCursor;
+
+    SearchPage(List<Resource> resources, String nextCursor, String previousCursor) {
+      this.resources = resources;
+      this.nextCursor = nextCursor;
+      this.previousCursor = previousCursor;
+    }
+
+    public List<Resource> getResources() {
+      return resources;
+    }
+
+    /**
+     * @return the cursor for the next (older) page or null if this is the last
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+
+    /**
+     * @return the cursor for the previous (newer) page or null if this is the
+     *         first
+     */
+    public String getPreviousCursor() {
+      return previousCursor;
+    }
+  }
+
+  /**
+   * Search the database for one page of results ordered by timestamp and id,
+   * newest first. The cursor is a keyset position so each page only reads the
+   * rows it returns, however deep into the results it is.
+   * 
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints for the SQL query.
+   * @param count         - the page size.
+   * @param cursor        - a cursor from a previous SearchPage or null for the
+   *                      first page.
+   * @return the page of results, empty if the query failed.
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  public SearchPage searchPage(Table table, Map<String, Object> constraintMap, int count, String cursor) {
+    logger.info("Database::searchPage(" + table.value() + ", " + constraintMap.toString() + ", " + count + ")");
+    Operation operation = Operation.PAGE_FIRST;
+    Timestamp cursorTimestamp = null;
+    String cursorId = null;
+    if (cursor != null) {
+      String[] parts = decodeCursor(cursor);
+      operation = parts[0].equals(CURSOR_NEXT) ? Operation.PAGE_AFTER : Operation.PAGE_BEFORE;
+      cursorTimestamp = Timestamp.valueOf(parts[1]);
+      cursorId = parts[2];
+    }
+
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+    List<Resource> resources = new ArrayList<>();
+    List<Timestamp> timestamps = new ArrayList<>();
+    try (Connection connection = getConnection()) {
+      // Read one extra row to know if there is another page
+      readPage(connection, table, constraintMap, operation, cursorTimestamp, cursorId, count + 1, resources,
+          timestamps);
+      auditOutcome = AuditEventOutcome.SUCCESS;
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::searchPage:SQLException", e);
     }
     Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
         "Search " + table.value());
-    return results;
+
+    boolean hasMore = resources.size() > count;
+    if (hasMore) {
+      resources = resources.subList(0, count);
+      timestamps = timestamps.subList(0, count);
+    }
+    if (operation == Operation.PAGE_BEFORE) {
+      // Rows were read oldest first walking back towards the newest
+      Collections.reverse(resources);
+      Collections.reverse(timestamps);
+    }
+    if (resources.isEmpty())
+      return new SearchPage(resources, null, null);
+
+    int last = resources.size() - 1;
+    String next = operation != Operation.PAGE_BEFORE && !hasMore ? null
+        : encodeCursor(CURSOR_NEXT, timestamps.get(last), resources.get(last).getIdElement().getIdPart());
+    String previous = operation == Operation.PAGE_FIRST || (operation == Operation.PAGE_BEFORE && !hasMore) ? null
+        : encodeCursor(CURSOR_PREVIOUS, timestamps.get(0), resources.get(0).getIdElement().getIdPart());
+    return new SearchPage(resources, next, previous);
+  }
+
+  private static String encodeCursor(String direction, Timestamp timestamp, String id) {
+    String cursor = direction + CURSOR_SEPARATOR + timestamp.toString() + CURSOR_SEPARATOR + id;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String[] decodeCursor(String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      String[] parts = decoded.split(Pattern.quote(CURSOR_SEPARATOR), 3);
+      if (parts.length == 3 && (parts[0].equals(CURSOR_NEXT) || parts[0].equals(CURSOR_PREVIOUS))) {
+        Timestamp.valueOf(parts[1]);
+        return parts;
+      }
+    } catch (IllegalArgumentException e) {
+      // Fall through to the invalid cursor error
+    }
+    throw new IllegalArgumentException("Invalid search cursor " + cursor);
+  }
+
+  /**
+   * Count the resources matching a search.
+   * 
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints for the SQL query.
+   * @return the number of matching resources or -1 if the query failed.
+   */
+  public int count(Table table, Map<String, Object> constraintMap) {
+    logger.info("Database::count(" + table.value() + ", " + constraintMap.toString() + ")");
+    try (Connection connection = getConnection()) {
+      StatementShape shape = new StatementShape(Operation.COUNT, table, null, null, constraintMap);
+      PreparedStatement stmt = generateStatement(shape, null, constraintMap, connection);
+      ResultSet rs = stmt.executeQuery();
+      if (rs.next())
+        return rs.getInt(1);
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::count:SQLException", e);
+    }
+    return -1;
   }
 
   /**
@@ -244,11 +665,8 @@ public class Database {
     IBaseResource result = null;
     if (table != null && constraintParams != null) {
       try (Connection connection = getConnection()) {
-        String sql = "SELECT TOP 1 id, patient, resource FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+        StatementShape shape = new StatementShape(Operation.READ, table, null, null, constraintParams);
+        PreparedStatement stmt = generateStatement(shape, null, constraintParams, connection);
         logger.fine("read query: " + stmt.toString());
         ResultSet rs = stmt.executeQuery();
 
@@ -257,7 +675,7 @@ public class Database {
           String json = rs.getString("resource");
           String patientOut = rs.getString("patient");
           logger.info("read: " + id + "/" + patientOut);
-          result = (Resource) App.getFhirContext().newJsonParser().parseResource(json);
+          result = (Resource) FhirSerializer.parse(json, RequestType.JSON);
         }
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
@@ -283,11 +701,8 @@ public class Database {
     List<IBaseResource> results = new ArrayList<IBaseResource>();
     if (table != null && constraintParams != null) {
       try (Connection connection = getConnection()) {
-        String sql = "SELECT id, patient, resource FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+        StatementShape shape = new StatementShape(Operation.READ_ALL, table, null, null, constraintParams);
+        PreparedStatement stmt = generateStatement(shape, null, constraintParams, connection);
         logger.fine("read query: " + stmt.toString());
         ResultSet rs = stmt.executeQuery();
 
@@ -296,7 +711,7 @@ public class Database {
           String json = rs.getString("resource");
           String patientOut = rs.getString("patient");
           logger.info("read: " + id + "/" + patientOut);
-          results.add((Resource) App.getFhirContext().newJsonParser().parseResource(json));
+          results.add((Resource) FhirSerializer.parse(json, RequestType.JSON));
         }
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
@@ -341,29 +756,112 @@ public class Database {
    */
   public String readString(Table table, Map<String, Object> constraintParams, String column) {
     logger.info("Database::read(" + table.value() + ", " + constraintParams.toString() + ", " + column + ")");
-    if (table != null && constraintParams != null && column != null) {
-      try (Connection connection = getConnection()) {
-        // TODO: fix this so it does not insert a string (column) into the SQL
-        String sql = "SELECT TOP 1 " + column + " FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
-        logger.fine("read query: " + stmt.toString());
-        ResultSet rs = stmt.executeQuery();
+    List<Row> rows = selectColumns(Operation.READ_COLUMNS, table, constraintParams, column);
+    Row row = rows.isEmpty() ? null : rows.get(0);
+    AuditEventOutcome auditOutcome = row != null ? AuditEventOutcome.SUCCESS : AuditEventOutcome.SERIOUS_FAILURE;
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read " + column + " from " + table.value());
+    return row != null ? row.getString(column) : null;
+  }
 
-        if (rs.next()) {
-          Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, null,
-              "Read " + column + " from " + table.value());
-          return rs.getString(column);
-        }
-      } catch (SQLException e) {
-        logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
-      }
+  /**
+   * A projection of named columns from a single row. The resource column, when
+   * selected, is only parsed the first time it is asked for.
+   */
+  public static class Row {
+    private final Map<String, String> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private IBaseResource resource;
+
+    private Row(ResultSet rs, List<String> names) throws SQLException {
+      for (String name : names)
+        columns.put(name, rs.getString(name));
     }
-    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SERIOUS_FAILURE, null, null,
-        "Read " + column + " from " + table.value());
-    return null;
+
+    /**
+     * @param column - the column name.
+     * @return the value of the column or null if it is null or was not selected
+     */
+    public String getString(String column) {
+      return columns.get(column);
+    }
+
+    /**
+     * @return whether the column was selected
+     */
+    public boolean has(String column) {
+      return columns.containsKey(column);
+    }
+
+    /**
+     * @return the parsed resource or null if the resource column was not selected
+     */
+    public IBaseResource getResource() {
+      String json = columns.get(RESOURCE_COLUMN);
+      if (resource == null && json != null)
+        resource = FhirSerializer.parse(json, RequestType.JSON);
+      return resource;
+    }
+  }
+
+  /**
+   * Read only the named columns of the most recent matching row. Use in place of
+   * read when the resource is not needed to skip reading and parsing it.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints for the SQL query.
+   * @param columns          - the columns to select.
+   * @return the row or null if nothing matched
+   */
+  public Row readColumns(Table table, Map<String, Object> constraintParams, String... columns) {
+    List<Row> rows = selectColumns(Operation.READ_COLUMNS, table, constraintParams, columns);
+    auditSelect(table, columns, !rows.isEmpty());
+    return rows.isEmpty() ? null : rows.get(0);
+  }
+
+  /**
+   * Read only the named columns of every matching row, most recent first.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints for the SQL query, empty
+   *                         to read every row.
+   * @param columns          - the columns to select.
+   * @return the matching rows, empty if nothing matched or the query failed
+   */
+  public List<Row> selectColumns(Table table, Map<String, Object> constraintParams, String... columns) {
+    List<Row> rows = selectColumns(Operation.SELECT_COLUMNS, table, constraintParams, columns);
+    auditSelect(table, columns, true);
+    return rows;
+  }
+
+  private void auditSelect(Table table, String[] columns, boolean success) {
+    AuditEventOutcome auditOutcome = success ? AuditEventOutcome.SUCCESS : AuditEventOutcome.SERIOUS_FAILURE;
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read " + String.join(SET_CONCAT, columns) + " from " + table.value());
+  }
+
+  private List<Row> selectColumns(Operation operation, Table table, Map<String, Object> constraintParams,
+      String... columns) {
+    List<Row> rows = new ArrayList<>();
+    if (table == null || constraintParams == null || columns.length == 0)
+      return rows;
+    List<String> names = Arrays.asList(columns);
+    for (String name : names) {
+      if (!COLUMN_NAME.matcher(name).matches())
+        throw new IllegalArgumentException("Invalid column name " + name);
+    }
+
+    try (Connection connection = getConnection()) {
+      StatementShape shape = new StatementShape(operation, table, String.join(SET_CONCAT, names), null,
+          constraintParams);
+      PreparedStatement stmt = generateStatement(shape, null, constraintParams, connection);
+      logger.fine("select query: " + stmt.toString());
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next())
+        rows.add(new Row(rs, names));
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::selectColumns:SQLException", e);
+    }
+    return rows;
   }
 
   /**
@@ -379,16 +877,8 @@ public class Database {
     boolean result = false;
     if (data != null) {
       try (Connection connection = getConnection()) {
-        String valueClause = "";
-        for (int i = 0; i < data.values().size() - 1; i++)
-          valueClause += "?,";
-        valueClause += "?";
-
-        String sql = "INSERT INTO " + table.value() + " (" + setColumns(data.keySet()) + ") VALUES (" + valueClause
-            + ");";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(data);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+        StatementShape shape = new StatementShape(Operation.INSERT, table, null, data, null);
+        PreparedStatement stmt = generateStatement(shape, data, null, connection);
         result = stmt.execute();
         logger.fine(stmt.toString());
         result = true;
@@ -408,6 +898,53 @@ public class Database {
     return result;
   }
 
+  /**
+   * Insert many rows into the database in a single transaction. Rows with the
+   * same columns share one PreparedStatement and are sent as a JDBC batch.
+   * 
+   * @param table - the Table to write to.
+   * @param rows  - list of maps of columns (keys) and values.
+   * @return boolean - whether or not all of the rows were written.
+   */
+  public boolean writeBatch(Table table, List<Map<String, Object>> rows) {
+    logger.fine("Database::writeBatch(" + table.value() + ", " + rows.size() + " rows)");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    boolean result = false;
+    if (!rows.isEmpty()) {
+      try (Connection connection = getConnection()) {
+        connection.setAutoCommit(false);
+        StatementShape currentShape = null;
+        PreparedStatement stmt = null;
+        for (Map<String, Object> row : rows) {
+          StatementShape shape = new StatementShape(Operation.INSERT, table, null, row, null);
+          if (!shape.equals(currentShape)) {
+            if (stmt != null)
+              stmt.executeBatch();
+            currentShape = shape;
+            stmt = connection.prepareStatement(getSql(shape));
+          }
+          setValues(stmt, shape, row, null);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+        connection.commit();
+        result = true;
+      } catch (SQLException e) {
+        auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+        logger.log(Level.SEVERE, "Database::writeBatch:SQLException", e);
+      } catch (RuntimeException e) {
+        // For example a value which cannot be encoded, the transaction is rolled
+        // back when the connection is released
+        auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+        logger.log(Level.SEVERE, "Database::writeBatch:Unable to write rows", e);
+      }
+    }
+    if (table != Table.AUDIT)
+      Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C, auditOutcome, null, null,
+          "Write " + rows.size() + " rows to " + table.value());
+    return result;
+  }
+
   /**
    * Update a single column in a row to a new value
    * 
@@ -421,14 +958,11 @@ public class Database {
         + data.toString() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
-    String sql = "UPDATE " + table.value() + " SET " + generateClause(data, SET_CONCAT)
-        + ", timestamp = CURRENT_TIMESTAMP WHERE " + generateClause(constraintParams, WHERE_CONCAT) + ";";
+    StatementShape shape = new StatementShape(Operation.UPDATE, table, null, data, constraintParams);
+    String sql = getSql(shape);
     if (table != null && constraintParams != null && data != null) {
       try (Connection connection = getConnection()) {
-        Collection<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
-        maps.add(data);
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+        PreparedStatement stmt = generateStatement(shape, data, constraintParams, connection);
         stmt.execute();
         result = stmt.getUpdateCount() > 0 ? true : false;
         logger.fine(stmt.toString());
@@ -449,66 +983,237 @@ public class Database {
    * @return the most recent Claim id for the Claim by following all updates
    */
   public String getMostRecentId(String id) {
-    Map<String, Object> readConstraintMap = new HashMap<String, Object>();
-    readConstraintMap.put("related", id);
-    Claim referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    String referencingId = id;
+    return getClaimLineage(id).getHeadId();
+  }
+
+  /**
+   * The chain of Claims linked by the related column, from the original request
+   * to the most recent update.
+   */
+  public static class ClaimLineage {
+    private final String claimId;
+    private final List<String> ids;
+    private final String headId;
+
+    private ClaimLineage(String claimId, List<String> ids, String headId) {
+      this.claimId = claimId;
+      this.ids = Collections.unmodifiableList(ids);
+      this.headId = headId;
+    }
 
-    while (referencingClaim != null) {
-      // Update the referencingId to be the most recent referencingClaim
-      referencingId = FhirUtils.getIdFromResource(referencingClaim);
+    /**
+     * @return the id of the Claim the lineage was resolved from
+     */
+    public String getClaimId() {
+      return claimId;
+    }
 
-      // Get the new referencing claim
-      readConstraintMap.replace("related", referencingId);
-      referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
+    /**
+     * @return every Claim id in the lineage ordered from the original to the most
+     *         recent, empty if the Claim does not exist
+     */
+    public List<String> getIds() {
+      return ids;
     }
 
-    return referencingId;
+    /**
+     * @return the most recent Claim id, or the requested id if it does not exist
+     */
+    public String getHeadId() {
+      return headId;
+    }
+
+    /**
+     * @return the ids of the Claims this Claim updated, oldest first
+     */
+    public List<String> getAncestorIds() {
+      int index = ids.indexOf(claimId);
+      return index < 0 ? Collections.emptyList() : ids.subList(0, index);
+    }
+
+    /**
+     * @return the ids of the Claims which updated this Claim, oldest first
+     */
+    public List<String> getDescendantIds() {
+      int index = ids.indexOf(claimId);
+      return index < 0 ? Collections.emptyList() : ids.subList(index + 1, ids.size());
+    }
   }
 
   /**
-   * Create a SQL PreparedStatement from an SQL string and setting the strings
-   * based on the maps provided.
+   * Resolve the full update chain of a Claim in a single query. Ancestors are
+   * followed through the related column and descendants through the Claims which
+   * reference them. When a Claim was updated more than once only its most recent
+   * update is followed, and the last Claim along that path is the head.
    * 
-   * @param sql        - query string with '?' denoting values to be set by the
-   *                   maps.
-   * @param maps       - Collection of Maps used to set the values.
-   * @param connection - the connection to the database.
-   * @return PreparedStatement with all values set or null if the number of values
-   *         provided is incorrect.
-   * @throws SQLException
+   * @param id - Claim id
+   * @return the lineage of the Claim
    */
-  private PreparedStatement generateStatement(String sql, Collection<Map<String, Object>> maps, Connection connection)
-      throws SQLException {
-    int numValuesNeeded = (int) sql.chars().filter(ch -> ch == '?').count();
-    int numValues = maps.stream().reduce(0, (subtotal, element) -> subtotal + element.size(), Integer::sum);
-    if (numValues != numValuesNeeded) {
-      logger.warning(
-          "Database::generateStatement:Value mismatch. Need " + numValuesNeeded + " values but received " + numValues);
-      return null;
+  public ClaimLineage getClaimLineage(String id) {
+    logger.fine("Database::getClaimLineage(" + id + ")");
+    List<String> ids = new ArrayList<>();
+    String headId = id;
+    try (Connection connection = getConnection()) {
+      PreparedStatement stmt = connection.prepareStatement(CLAIM_LINEAGE_SQL);
+      stmt.setString(1, id);
+      stmt.setInt(2, MAX_LINEAGE_DEPTH);
+      stmt.setString(3, id);
+      stmt.setInt(4, -MAX_LINEAGE_DEPTH);
+      ResultSet rs = stmt.executeQuery();
+      int headDepth = -1;
+      while (rs.next()) {
+        String lineageId = rs.getString("id");
+        int depth = rs.getInt("depth");
+        if (!ids.contains(lineageId))
+          ids.add(lineageId);
+        // Only the most recent update is followed, so the deepest row is the head
+        if (depth > headDepth) {
+          headDepth = depth;
+          headId = lineageId;
+        }
+      }
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::getClaimLineage:SQLException", e);
     }
+    return new ClaimLineage(id, ids, headId);
+  }
 
-    PreparedStatement stmt = connection.prepareStatement(sql);
-    int valueIndex = 1;
-    for (Map<String, Object> map : maps) {
-      for (Object value : map.values()) {
-        String valueStr;
-        if (value instanceof String)
-          valueStr = (String) value;
-        else if (value instanceof IBaseResource)
-          valueStr = FhirUtils.json((IBaseResource) value);
-        else if (value == null)
-          valueStr = "null";
-        else
-          valueStr = value.toString();
-        stmt.setString(valueIndex, valueStr);
-        valueIndex++;
+  /**
+   * Set the status of several Claims in one transaction. Both the status column
+   * and the status of the stored resource are updated, and the timestamp is
+   * bumped like any other update.
+   * 
+   * @param ids    - the Claim ids to update.
+   * @param status - the new status.
+   * @return the number of Claims updated
+   */
+  public int updateClaimStatus(Collection<String> ids, ClaimStatus status) {
+    logger.info("Database::updateClaimStatus(" + ids + ", " + status.toCode() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    int updated = 0;
+    if (!ids.isEmpty()) {
+      try (Connection connection = getConnection()) {
+        connection.setAutoCommit(false);
+        PreparedStatement read = connection.prepareStatement(
+            READ_CLAIMS_SQL + "(" + String.join(", ", Collections.nCopies(ids.size(), "?")) + ");");
+        int index = 1;
+        for (String id : ids)
+          read.setString(index++, id);
+        ResultSet rs = read.executeQuery();
+
+        PreparedStatement update = connection.prepareStatement(UPDATE_CLAIM_STATUS_SQL);
+        while (rs.next()) {
+          Claim claim = (Claim) FhirSerializer.parse(rs.getString("resource"), RequestType.JSON);
+          claim.setStatus(status);
+          update.setString(1, status.getDisplay().toLowerCase());
+          update.setString(2, FhirUtils.json(claim));
+          update.setString(3, rs.getString("id"));
+          update.addBatch();
+        }
+        for (int count : update.executeBatch())
+          updated += Math.max(count, 0);
+        connection.commit();
+      } catch (SQLException e) {
+        auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+        updated = 0;
+        logger.log(Level.SEVERE, "Database::updateClaimStatus:SQLException", e);
       }
     }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U, auditOutcome, null, null,
+        UPDATE_CLAIM_STATUS_SQL + " for " + ids);
+    return updated;
+  }
 
+  /**
+   * Get the SQL for a statement shape, generating it the first time the shape is
+   * seen.
+   * 
+   * @param shape - the operation, table and columns of the statement.
+   * @return query string with '?' denoting values in sorted column order.
+   */
+  private String getSql(StatementShape shape) {
+    return statementSql.computeIfAbsent(shape, Database::generateSql);
+  }
+
+  private static String generateSql(StatementShape shape) {
+    String table = shape.table.value();
+    String where = generateClause(shape.constraintColumns, WHERE_CONCAT);
+    switch (shape.operation) {
+      case COUNT:
+        return "SELECT COUNT(*) FROM " + table + " WHERE " + where + ";";
+      case PAGE_FIRST:
+        return "SELECT id, patient, timestamp, resource FROM " + table + " WHERE " + where
+            + " ORDER BY timestamp DESC, id DESC LIMIT ?;";
+      case PAGE_AFTER:
+        return "SELECT id, patient, timestamp, resource FROM " + table + " WHERE " + where
+            + " AND (timestamp < ? OR (timestamp = ? AND id < ?)) ORDER BY timestamp DESC, id DESC LIMIT ?;";
+      case PAGE_BEFORE:
+        return "SELECT id, patient, timestamp, resource FROM " + table + " WHERE " + where
+            + " AND (timestamp > ? OR (timestamp = ? AND id > ?)) ORDER BY timestamp ASC, id ASC LIMIT ?;";
+      case READ:
+        return "SELECT TOP 1 id, patient, resource FROM " + table + " WHERE " + where + " ORDER BY timestamp DESC;";
+      case READ_ALL:
+        return "SELECT id, patient, resource FROM " + table + " WHERE " + where + " ORDER BY timestamp DESC;";
+      case READ_COLUMNS:
+        return "SELECT TOP 1 " + shape.column + " FROM " + table + " WHERE " + where + " ORDER BY timestamp DESC;";
+      case SELECT_COLUMNS:
+        return "SELECT " + shape.column + " FROM " + table + (where.isEmpty() ? "" : " WHERE " + where)
+            + " ORDER BY timestamp DESC;";
+      case INSERT:
+        return "INSERT INTO " + table + " (" + setColumns(shape.dataColumns) + ") VALUES ("
+            + String.join(",", Collections.nCopies(shape.dataColumns.size(), "?")) + ");";
+      case UPDATE:
+        return "UPDATE " + table + " SET " + generateClause(shape.dataColumns, SET_CONCAT)
+            + ", timestamp = CURRENT_TIMESTAMP WHERE " + where + ";";
+      case DELETE_BEFORE:
+        return "DELETE FROM " + table + " WHERE " + (where.isEmpty() ? "" : where + WHERE_CONCAT) + shape.column
+            + " < ?;";
+      default:
+        throw new IllegalArgumentException("Unknown operation " + shape.operation);
+    }
+  }
+
+  /**
+   * Create a SQL PreparedStatement for a statement shape and set the values from
+   * the maps provided. The connection reuses an already prepared statement for
+   * the same SQL when it can.
+   * 
+   * @param shape       - the operation, table and columns of the statement.
+   * @param data        - map of column to value for the SET/VALUES clause, may be
+   *                    null.
+   * @param constraints - map of column to value for the WHERE clause, may be
+   *                    null.
+   * @param connection  - the connection to the database.
+   * @return PreparedStatement with all values set.
+   * @throws SQLException
+   */
+  private PreparedStatement generateStatement(StatementShape shape, Map<String, Object> data,
+      Map<String, Object> constraints, Connection connection) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(getSql(shape));
+    setValues(stmt, shape, data, constraints);
     return stmt;
   }
 
+  private void setValues(PreparedStatement stmt, StatementShape shape, Map<String, Object> data,
+      Map<String, Object> constraints) throws SQLException {
+    int valueIndex = 1;
+    for (String column : shape.dataColumns)
+      stmt.setString(valueIndex++, toSqlString(data.get(column)));
+    for (String column : shape.constraintColumns)
+      stmt.setString(valueIndex++, toSqlString(constraints.get(column)));
+  }
+
+  private static String toSqlString(Object value) {
+    if (value instanceof String)
+      return (String) value;
+    else if (value instanceof IBaseResource)
+      return FhirUtils.json((IBaseResource) value);
+    else if (value == null)
+      return "null";
+    else
+      return value.toString();
+  }
+
   /**
    * Delete a particular resource with a given id.
    * 
@@ -594,37 +1299,92 @@ public class Database {
   }
 
   /**
-   * Reduce a Map to a single string in the form "{key} = '{value}'" +
-   * separator
+   * Delete the rows matching the constraints, for tables without an id column.
    * 
-   * @param map       - key value pair of columns and values.
-   * @param separator - the string to connect a set of key value with another
-   *                  set.
-   * @return string in the form "{key} = '{value}'" + separator...
+   * @param table            - the Table to delete from.
+   * @param constraintParams - map of column to value for the rows to delete.
+   * @return the number of rows deleted
    */
-  private String generateClause(Map<String, Object> map, String separator) {
-    String column;
-    String sqlStr = "";
-    for (Iterator<String> iterator = map.keySet().iterator(); iterator.hasNext();) {
-      column = iterator.next();
-      sqlStr += column + " = ?";
+  public int delete(Table table, Map<String, Object> constraintParams) {
+    logger.info("Database::delete(" + table.value() + ", " + constraintParams + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    int result = 0;
+    List<String> columns = new ArrayList<>(constraintParams.keySet());
+    if (!columns.isEmpty()) {
+      try (Connection connection = getConnection()) {
+        PreparedStatement stmt = connection.prepareStatement(
+            "DELETE FROM " + table.value() + " WHERE " + generateClause(columns, WHERE_CONCAT) + ";");
+        int index = 1;
+        for (String column : columns)
+          stmt.setString(index++, String.valueOf(constraintParams.get(column)));
+        stmt.execute();
+        result = stmt.getUpdateCount();
+      } catch (SQLException e) {
+        auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+        logger.log(Level.SEVERE, "Database::delete:SQLException", e);
+      }
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D, auditOutcome, null, null,
+        "Delete " + result + " from " + table.value());
+    return result;
+  }
 
-      if (iterator.hasNext())
-        sqlStr += separator;
+  /**
+   * Delete the rows matching the constraints whose value in a numeric column is
+   * below a bound, e.g. rows older than a retention period.
+   * 
+   * @param table            - the Table to delete from.
+   * @param constraintParams - map of column to value for the rows to delete.
+   * @param column           - the numeric column to compare.
+   * @param before           - delete rows whose column is less than this.
+   * @return the number of rows deleted
+   */
+  public int deleteBefore(Table table, Map<String, Object> constraintParams, String column, long before) {
+    logger.fine("Database::deleteBefore(" + table.value() + ", " + constraintParams + ", " + column + " < " + before
+        + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    int result = 0;
+    if (!COLUMN_NAME.matcher(column).matches())
+      throw new IllegalArgumentException("Invalid column name " + column);
+    try (Connection connection = getConnection()) {
+      StatementShape shape = new StatementShape(Operation.DELETE_BEFORE, table, column, null, constraintParams);
+      PreparedStatement stmt = generateStatement(shape, null, constraintParams, connection);
+      stmt.setLong(shape.constraintColumns.size() + 1, before);
+      stmt.execute();
+      result = stmt.getUpdateCount();
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::deleteBefore:SQLException", e);
     }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D, auditOutcome, null, null,
+        "Delete " + result + " from " + table.value() + " with " + column + " before " + before);
+    return result;
+  }
+
+  /**
+   * Reduce a list of columns to a single string in the form "{column} = ?" +
+   * separator
+   * 
+   * @param columns   - the columns to set.
+   * @param separator - the string to connect a column with the next.
+   * @return string in the form "{column} = ?" + separator...
+   */
+  private static String generateClause(List<String> columns, String separator) {
+    StringJoiner sqlStr = new StringJoiner(separator);
+    for (String column : columns)
+      sqlStr.add(column + " = ?");
 
-    return sqlStr;
+    return sqlStr.toString();
   }
 
   /**
    * Internal function to map the keys to a string
    * 
-   * @param keys - the set of keys to be reduced.
+   * @param keys - the list of keys to be reduced.
    * @return a string of each key concatenated by ", "
    */
-  private String setColumns(Set<String> keys) {
-    Optional<String> reducedArr = Arrays.stream(keys.toArray(new String[0])).reduce((str1, str2) -> str1 + ", " + str2);
-    return reducedArr.get();
+  private static String setColumns(List<String> keys) {
+    return String.join(", ", keys);
   }
 
   private String printMap(Map<String, Object> data) {
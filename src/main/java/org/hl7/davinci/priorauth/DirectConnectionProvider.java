@@ -0,0 +1,43 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConnectionProvider which opens a new connection through the DriverManager on
+ * every request. Used when pooling is disabled.
+ */
+public class DirectConnectionProvider implements ConnectionProvider {
+
+    private final String jdbcUrl;
+    private final AtomicLong opened = new AtomicLong();
+
+    public DirectConnectionProvider(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        connection.setAutoCommit(true);
+        opened.incrementAndGet();
+        return connection;
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pooled", false);
+        metrics.put("opened", opened.get());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held between requests
+    }
+}
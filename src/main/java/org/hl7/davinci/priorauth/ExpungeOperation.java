@@ -40,7 +40,7 @@ public class ExpungeOperation {
         logger.info("POST /$expunge");
         if (App.isDebugModeEnabled()) {
             // Cascading delete of everything...
-            App.getDB().delete(Table.SUBSCRIPTION);
+            App.getSubscriptionRegistry().deleteAll();
             App.getDB().delete(Table.BUNDLE);
             App.getDB().delete(Table.CLAIM);
             App.getDB().delete(Table.CLAIM_ITEM);
@@ -146,7 +146,7 @@ public class ExpungeOperation {
                 sub = (Subscription) subscriptions.iterator().next();
                 if ((today.after(sub.getEnd())) || (status.equals("error")) || (status.equals("off"))) {
                     String id = FhirUtils.getIdFromResource(sub);
-                    App.getDB().delete(Table.SUBSCRIPTION, id);
+                    App.getSubscriptionRegistry().delete(id);
                 }
 
             }
@@ -0,0 +1,120 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Encodes and parses FHIR resources with parsers reused per thread. Resources
+ * are encoded compactly unless pretty printing is asked for, either explicitly
+ * or by the current request through the _pretty=true parameter.
+ */
+public class FhirSerializer {
+
+  private static final ThreadLocal<IParser> COMPACT_JSON = ThreadLocal
+      .withInitial(() -> App.getFhirContext().newJsonParser());
+  private static final ThreadLocal<IParser> PRETTY_JSON = ThreadLocal
+      .withInitial(() -> App.getFhirContext().newJsonParser().setPrettyPrint(true));
+  private static final ThreadLocal<IParser> COMPACT_XML = ThreadLocal
+      .withInitial(() -> App.getFhirContext().newXmlParser());
+  private static final ThreadLocal<IParser> PRETTY_XML = ThreadLocal
+      .withInitial(() -> App.getFhirContext().newXmlParser().setPrettyPrint(true));
+
+  private FhirSerializer() {
+  }
+
+  /**
+   * Get this thread's parser for a format. The parser must not be reconfigured
+   * or handed to another thread.
+   *
+   * @param requestType - JSON or XML.
+   * @param pretty      - whether the parser pretty prints when encoding.
+   * @return the parser for the current thread
+   */
+  public static IParser parser(RequestType requestType, boolean pretty) {
+    if (requestType == RequestType.JSON)
+      return pretty ? PRETTY_JSON.get() : COMPACT_JSON.get();
+    return pretty ? PRETTY_XML.get() : COMPACT_XML.get();
+  }
+
+  /**
+   * Encode a resource to a string.
+   *
+   * @param resource    - the resource to encode.
+   * @param requestType - JSON or XML.
+   * @param pretty      - whether to pretty print the output.
+   * @return the encoded resource
+   */
+  public static String encode(IBaseResource resource, RequestType requestType, boolean pretty) {
+    return parser(requestType, pretty).encodeResourceToString(resource);
+  }
+
+  /**
+   * Encode a resource directly into a Writer. The writer is not closed.
+   *
+   * @param resource    - the resource to encode.
+   * @param requestType - JSON or XML.
+   * @param pretty      - whether to pretty print the output.
+   * @param writer      - where to write the encoded resource.
+   * @throws IOException if the writer fails
+   */
+  public static void encode(IBaseResource resource, RequestType requestType, boolean pretty, Writer writer)
+      throws IOException {
+    parser(requestType, pretty).encodeResourceToWriter(resource, writer);
+  }
+
+  /**
+   * Encode a resource directly into an OutputStream as UTF-8. The stream is
+   * flushed but not closed.
+   *
+   * @param resource    - the resource to encode.
+   * @param requestType - JSON or XML.
+   * @param pretty      - whether to pretty print the output.
+   * @param out         - where to write the encoded resource.
+   * @throws IOException if the stream fails
+   */
+  public static void encode(IBaseResource resource, RequestType requestType, boolean pretty, OutputStream out)
+      throws IOException {
+    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    encode(resource, requestType, pretty, writer);
+    writer.flush();
+  }
+
+  /**
+   * Parse a resource.
+   *
+   * @param body        - the encoded resource.
+   * @param requestType - JSON or XML.
+   * @return the parsed resource
+   */
+  public static IBaseResource parse(String body, RequestType requestType) {
+    return parser(requestType, false).parseResource(body);
+  }
+
+  /**
+   * Check if the request being handled on this thread asked for pretty printed
+   * output with _pretty=true.
+   *
+   * @return true if pretty printing was requested, false otherwise or when not
+   *         handling a request
+   */
+  public static boolean isPrettyRequested() {
+    RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+    if (!(attributes instanceof ServletRequestAttributes))
+      return false;
+    HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+    return "true".equalsIgnoreCase(request.getParameter("_pretty"));
+  }
+}
@@ -392,23 +392,23 @@ public class FhirUtils {
   }
 
   /**
-   * Convert a FHIR resource into JSON.
+   * Convert a FHIR resource into compact JSON.
    * 
    * @param resource - the resource to convert to JSON.
    * @return String - the JSON.
    */
   public static String json(IBaseResource resource) {
-    return App.getFhirContext().newJsonParser().setPrettyPrint(true).encodeResourceToString(resource);
+    return FhirSerializer.encode(resource, RequestType.JSON, false);
   }
 
   /**
-   * Convert a FHIR resource into XML.
+   * Convert a FHIR resource into compact XML.
    * 
    * @param resource - the resource to convert to XML.
    * @return String - the XML.
    */
   public static String xml(IBaseResource resource) {
-    return App.getFhirContext().newXmlParser().setPrettyPrint(true).encodeResourceToString(resource);
+    return FhirSerializer.encode(resource, RequestType.XML, false);
   }
 
   /**
@@ -426,14 +426,15 @@ public class FhirUtils {
   }
 
   /**
-   * Format a resource into JSON or XML string
+   * Format a resource into JSON or XML string for a response. The output is
+   * compact unless the current request has _pretty=true.
    * 
    * @param resource    - the resource to convert
    * @param requestType - the type to represent it as
    * @return JSON or XML string representation of the resource
    */
   public static String getFormattedData(IBaseResource resource, RequestType requestType) {
-    return requestType == RequestType.JSON ? FhirUtils.json(resource) : FhirUtils.xml(resource);
+    return FhirSerializer.encode(resource, requestType, FhirSerializer.isPrettyRequested());
   }
 
   /**
@@ -0,0 +1,350 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.SubscriptionRegistry.Registration;
+import org.hl7.davinci.priorauth.endpoint.SubscriptionEndpoint;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.ClaimResponse;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+
+/**
+ * Sends the notifications for an updated ClaimResponse to its subscribers. Each
+ * notification is encoded with the shared FhirSerializer, and only subscribers
+ * asking for full-resource payloads get the ClaimResponse Bundle (subscribers
+ * asking for id-only or empty payloads get the status Parameters alone).
+ * Rest-hook notifications are stored in the NotificationOutbox
+ * before dispatch returns and delivered by it, in order for each endpoint and
+ * in parallel across endpoints. Websocket notifications are handed to the
+ * WebSocketSender concurrently on a fixed size pool.
+ */
+public class NotificationDispatcher {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final String STATUS_PROFILE = "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-subscription-status-r4";
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 10000;
+
+    /**
+     * Values of the backport payload-content extension, how much of the
+     * ClaimResponse a notification carries
+     */
+    public enum PayloadContent {
+        EMPTY("empty"), ID_ONLY("id-only"), FULL_RESOURCE("full-resource");
+
+        private final String value;
+
+        PayloadContent(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+
+        public static PayloadContent fromString(String value) {
+            for (PayloadContent content : PayloadContent.values()) {
+                if (content.value().equals(value))
+                    return content;
+            }
+
+            return null;
+        }
+
+        /**
+         * @param subscription - the Subscription.
+         * @return the payload content the Subscription asks for, full-resource if
+         *         it does not say
+         */
+        public static PayloadContent fromSubscription(Subscription subscription) {
+            Extension extension = subscription.getChannel().getPayloadElement()
+                    .getExtensionByUrl(SubscriptionEndpoint.SUBSCRIPTION_PAYLOAD_EXTENSION_URL);
+            PayloadContent content = extension != null && extension.getValue() != null
+                    ? fromString(extension.getValue().primitiveValue())
+                    : null;
+            return content != null ? content : FULL_RESOURCE;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final NotificationOutbox outbox;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong restHooks = new AtomicLong();
+    private final AtomicLong websockets = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    /**
+     * Create a new dispatcher
+     *
+     * @param threads   - the number of threads sending websocket notifications.
+     * @param queueSize - the number of notifications which can wait for a thread
+     *                  before the caller sends them itself.
+     * @param outbox    - the outbox delivering rest-hook notifications.
+     */
+    public NotificationDispatcher(int threads, int queueSize, NotificationOutbox outbox) {
+        int poolSize = Math.max(threads, 1);
+        this.outbox = outbox;
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)), new WorkerFactory(), (task, pool) -> {
+                    if (pool.isShutdown())
+                        throw new RejectedExecutionException("NotificationDispatcher is closed");
+                    callerRuns.incrementAndGet();
+                    task.run();
+                });
+    }
+
+    /**
+     * Create the NotificationDispatcher described by config.properties
+     *
+     * @param outbox - the outbox delivering rest-hook notifications.
+     * @return the configured NotificationDispatcher
+     */
+    public static NotificationDispatcher create(NotificationOutbox outbox) {
+        int threads = PropertyProvider.getIntProperty("notification_threads", DEFAULT_THREADS);
+        int queueSize = PropertyProvider.getIntProperty("notification_queue_size", DEFAULT_QUEUE_SIZE);
+        logger.info("NotificationDispatcher::create:" + threads + " threads, queue " + queueSize);
+        return new NotificationDispatcher(threads, queueSize, outbox);
+    }
+
+    /**
+     * Notify the subscribers of an updated ClaimResponse. Rest-hook notifications
+     * are in the outbox when this returns, the rest are sent in the background.
+     *
+     * @param claimResponseBundle - the Bundle of the updated ClaimResponse.
+     * @param subscriptions       - the Subscriptions to notify.
+     * @return a future completed once every websocket notification has been
+     *         sent or has failed and every rest-hook notification is in the
+     *         outbox
+     */
+    public CompletableFuture<Void> dispatch(Bundle claimResponseBundle, List<Subscription> subscriptions) {
+        String focus = claimResponseBundle.getEntryFirstRep().getFullUrl();
+        String claim = getClaim(claimResponseBundle);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int eventNumber = 0;
+        for (Subscription subscription : subscriptions) {
+            eventNumber++;
+            String subscriptionId = FhirUtils.getIdFromResource(subscription);
+            SubscriptionChannelType subscriptionType = subscription.getChannel().getType();
+            PayloadContent content = PayloadContent.fromSubscription(subscription);
+            if (subscriptionType == SubscriptionChannelType.RESTHOOK) {
+                String endpoint = subscription.getChannel().getEndpoint();
+                String payload = getNotification(subscription, eventNumber, focus, content,
+                        claimResponseBundle);
+                dispatched.incrementAndGet();
+                if (outbox.enqueue(subscriptionId, endpoint, payload)) {
+                    restHooks.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                    setStatus(subscriptionId, SubscriptionStatus.ERROR);
+                }
+            } else if (subscriptionType == SubscriptionChannelType.WEBSOCKET) {
+                String payload = getNotification(subscription, eventNumber, focus, content,
+                        claimResponseBundle);
+                Delivery delivery = new Delivery(subscriptionId, claim, payload);
+                dispatched.incrementAndGet();
+                execute(delivery);
+                futures.add(delivery.result);
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Build the Subscriptions R5 Backport notification Bundle for one subscriber,
+     * see http://hl7.org/fhir/uv/subscriptions-backport/components.html#subscription-notifications
+     *
+     * @param subscription        - the Subscription being notified.
+     * @param eventNumber         - the number of the event.
+     * @param focus               - the full URL of the updated ClaimResponse.
+     * @param content             - how much of the ClaimResponse to include.
+     * @param claimResponseBundle - the Bundle of the updated ClaimResponse, only
+     *                            used for full-resource notifications.
+     * @return the notification Bundle encoded as JSON
+     */
+    static String getNotification(Subscription subscription, int eventNumber, String focus,
+            PayloadContent content, Bundle claimResponseBundle) {
+        Parameters parameters = new Parameters();
+        Meta meta = new Meta();
+        meta.addProfile(STATUS_PROFILE);
+        parameters.setMeta(meta);
+        parameters.addParameter().setName("subscription").setResource(subscription);
+        parameters.addParameter().setName("topic")
+                .setValue(new CanonicalType(SubscriptionEndpoint.PAS_SUBSCRIPTION_TOPIC));
+        parameters.addParameter().setName("status").setValue(new CodeType(subscription.getStatus().toCode()));
+        parameters.addParameter().setName("type").setValue(new CodeType("event-notification"));
+
+        Parameters.ParametersParameterComponent notificationEventPart = new Parameters.ParametersParameterComponent();
+        notificationEventPart.setName("notification-event");
+        notificationEventPart.addPart().setName("event-number").setValue(new StringType(String.valueOf(eventNumber)));
+        notificationEventPart.addPart().setName("timestamp").setValue(new DateTimeType(new Date()));
+        if (content != PayloadContent.EMPTY)
+            notificationEventPart.addPart().setName("focus").setValue(new Reference(focus));
+        parameters.addParameter(notificationEventPart);
+
+        Bundle notification = new Bundle();
+        notification.setType(Bundle.BundleType.HISTORY);
+        notification.addEntry().setResource(parameters);
+        if (content == PayloadContent.FULL_RESOURCE)
+            notification.addEntry().setResource(claimResponseBundle);
+        // id-only notifications reference the focus without its content
+        else if (content == PayloadContent.ID_ONLY)
+            notification.addEntry().setFullUrl(focus);
+        return FhirUtils.json(notification);
+    }
+
+    /**
+     * Stop sending websocket notifications, waiting a short time for those in
+     * flight
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                logger.warning("NotificationDispatcher::close:Notifications still sending after "
+                        + CLOSE_TIMEOUT_MS + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the current state of the dispatcher
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("poolSize", executor.getPoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("dispatched", dispatched.get());
+        metrics.put("restHooks", restHooks.get());
+        metrics.put("websockets", websockets.get());
+        metrics.put("failed", failed.get());
+        metrics.put("callerRuns", callerRuns.get());
+        return metrics;
+    }
+
+    /**
+     * Get the claim a ClaimResponse Bundle answers. Every update of a pended
+     * claim has a new ClaimResponse but the same claim.
+     *
+     * @param claimResponseBundle - the Bundle of the ClaimResponse.
+     * @return the reference to the claim, the full URL of the ClaimResponse if
+     *         it has no request
+     */
+    private static String getClaim(Bundle claimResponseBundle) {
+        Resource resource = claimResponseBundle.getEntryFirstRep().getResource();
+        if (resource instanceof ClaimResponse && ((ClaimResponse) resource).getRequest().hasReference())
+            return ((ClaimResponse) resource).getRequest().getReference();
+        return claimResponseBundle.getEntryFirstRep().getFullUrl();
+    }
+
+    private void sendWebsocket(String subscriptionId, String claim, String payload) throws IOException {
+        Registration registration = App.getSubscriptionRegistry().get(subscriptionId);
+        String websocketId = registration != null ? registration.getWebsocketId() : null;
+        if (websocketId == null)
+            throw new IOException("Web-socket id is null. Client did not bind a websocket to id");
+        logger.info("NotificationDispatcher::sendWebsocket:Sending web-socket notification to " + websocketId);
+        if (!App.getWebSocketSender().send(websocketId, subscriptionId, claim,
+                "ping: " + subscriptionId + " Subscription Notification Bundle: " + payload))
+            throw new IOException("Unable to send web-socket notification to " + websocketId);
+        websockets.incrementAndGet();
+    }
+
+    private void execute(Delivery delivery) {
+        try {
+            executor.execute(delivery);
+        } catch (RejectedExecutionException e) {
+            logger.warning("NotificationDispatcher::execute:Dropping notification to subscription "
+                    + delivery.subscriptionId + ", " + e.getMessage());
+            delivery.fail();
+        }
+    }
+
+    private static void setStatus(String subscriptionId, SubscriptionStatus status) {
+        App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
+                Collections.singletonMap("status", status.getDisplay().toLowerCase()));
+    }
+
+    /**
+     * One websocket notification to one subscriber. The status of the
+     * Subscription is set to active or error once it has been sent.
+     */
+    private class Delivery implements Runnable {
+        private final String subscriptionId;
+        private final String claim;
+        private final String payload;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Delivery(String subscriptionId, String claim, String payload) {
+            this.subscriptionId = subscriptionId;
+            this.claim = claim;
+            this.payload = payload;
+        }
+
+        @Override
+        public void run() {
+            try {
+                sendWebsocket(subscriptionId, claim, payload);
+                setStatus(subscriptionId, SubscriptionStatus.ACTIVE);
+                result.complete(null);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "NotificationDispatcher::run:Unable to notify subscription "
+                        + subscriptionId, e);
+                fail();
+            }
+        }
+
+        void fail() {
+            failed.incrementAndGet();
+            setStatus(subscriptionId, SubscriptionStatus.ERROR);
+            result.complete(null);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Notification-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Row;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Delivers rest-hook notifications through the NotificationOutbox table. A
+ * notification is written to the table before it is sent, so it is not lost if
+ * the subscriber is down or the server stops, and pending notifications are
+ * queued again by recover().
+ *
+ * Notifications to one endpoint are sent one at a time in the order they were
+ * enqueued, different endpoints are sent to in parallel. A failed notification
+ * is retried after an exponential backoff with jitter and the notifications
+ * queued behind it wait for it. After maxAttempts failures it is marked dead,
+ * its Subscription is set to error and the next notification is sent. Dead
+ * notifications stay in the table until redeliver() queues them again.
+ * Delivered notifications are deleted once they are older than the retention
+ * period. An endpoint is only tracked while it has notifications queued.
+ */
+public class NotificationOutbox {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 300000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_RETENTION_MS = 86400000;
+    private static final long MAX_PURGE_INTERVAL_MS = 600000;
+
+    /**
+     * Values of the status column of the NotificationOutbox table
+     */
+    public enum Status {
+        PENDING("pending"), DELIVERED("delivered"), DEAD("dead");
+
+        private final String value;
+
+        Status(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+    }
+
+    private final Database database;
+    private final ScheduledThreadPoolExecutor executor;
+    private final OkHttpClient client;
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long retentionMs;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    // Orders the notifications to an endpoint, also across restarts
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong deadCount = new AtomicLong();
+
+    /**
+     * Create a new outbox
+     *
+     * @param database         - the database holding the NotificationOutbox
+     *                         table.
+     * @param threads          - the number of threads sending notifications.
+     * @param maxAttempts      - the number of attempts before a notification is
+     *                         marked dead.
+     * @param baseDelayMs      - the delay before the first retry, doubled for
+     *                         each retry after it.
+     * @param maxDelayMs       - the longest delay between two attempts.
+     * @param connectTimeoutMs - deadline to connect to an endpoint.
+     * @param timeoutMs        - deadline for a whole call to an endpoint.
+     */
+    public NotificationOutbox(Database database, int threads, int maxAttempts, long baseDelayMs, long maxDelayMs,
+            int connectTimeoutMs, int timeoutMs) {
+        this(database, threads, maxAttempts, baseDelayMs, maxDelayMs, connectTimeoutMs, timeoutMs,
+                DEFAULT_RETENTION_MS);
+    }
+
+    /**
+     * Create a new outbox
+     *
+     * @param database         - the database holding the NotificationOutbox
+     *                         table.
+     * @param threads          - the number of threads sending notifications.
+     * @param maxAttempts      - the number of attempts before a notification is
+     *                         marked dead.
+     * @param baseDelayMs      - the delay before the first retry, doubled for
+     *                         each retry after it.
+     * @param maxDelayMs       - the longest delay between two attempts.
+     * @param connectTimeoutMs - deadline to connect to an endpoint.
+     * @param timeoutMs        - deadline for a whole call to an endpoint.
+     * @param retentionMs      - how long delivered notifications are kept.
+     */
+    public NotificationOutbox(Database database, int threads, int maxAttempts, long baseDelayMs, long maxDelayMs,
+            int connectTimeoutMs, int timeoutMs, long retentionMs) {
+        this.database = database;
+        this.retentionMs = Math.max(retentionMs, 0);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.baseDelayMs = Math.max(baseDelayMs, 1);
+        this.maxDelayMs = Math.max(maxDelayMs, this.baseDelayMs);
+        int poolSize = Math.max(threads, 1);
+        this.executor = new ScheduledThreadPoolExecutor(poolSize, new WorkerFactory());
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(poolSize, 5, TimeUnit.MINUTES))
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .callTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+        long purgeInterval = Math.max(Math.min(this.retentionMs, MAX_PURGE_INTERVAL_MS), 1000);
+        this.executor.scheduleWithFixedDelay(this::purge, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the NotificationOutbox described by config.properties
+     *
+     * @param database - the database holding the NotificationOutbox table.
+     * @return the configured NotificationOutbox, not yet recovered
+     */
+    public static NotificationOutbox create(Database database) {
+        int threads = PropertyProvider.getIntProperty("notification_outbox_threads", DEFAULT_THREADS);
+        int maxAttempts = PropertyProvider.getIntProperty("notification_max_attempts", DEFAULT_MAX_ATTEMPTS);
+        long baseDelay = PropertyProvider.getLongProperty("notification_retry_base_delay", DEFAULT_BASE_DELAY_MS);
+        long maxDelay = PropertyProvider.getLongProperty("notification_retry_max_delay", DEFAULT_MAX_DELAY_MS);
+        int connectTimeout = PropertyProvider.getIntProperty("notification_connect_timeout",
+                DEFAULT_CONNECT_TIMEOUT_MS);
+        int timeout = PropertyProvider.getIntProperty("notification_timeout", DEFAULT_TIMEOUT_MS);
+        long retention = PropertyProvider.getLongProperty("notification_retention", DEFAULT_RETENTION_MS);
+        logger.info("NotificationOutbox::create:" + threads + " threads, " + maxAttempts + " attempts, retry after "
+                + baseDelay + "ms up to " + maxDelay + "ms, keep delivered " + retention + "ms");
+        return new NotificationOutbox(database, threads, maxAttempts, baseDelay, maxDelay, connectTimeout, timeout,
+                retention);
+    }
+
+    /**
+     * Store a rest-hook notification and queue it for delivery
+     *
+     * @param subscriptionId - the id of the Subscription being notified.
+     * @param endpoint       - the rest-hook endpoint of the Subscription.
+     * @param payload        - the notification Bundle encoded as JSON.
+     * @return true if the notification was stored, false otherwise
+     */
+    public boolean enqueue(String subscriptionId, String endpoint, String payload) {
+        Notification notification = new Notification(UUID.randomUUID().toString(), subscriptionId, endpoint,
+                sequence.incrementAndGet(), 0, System.currentTimeMillis(), payload);
+        Map<String, Object> dataMap = new HashMap<>();
+        dataMap.put("id", notification.id);
+        dataMap.put("subscriptionId", subscriptionId);
+        dataMap.put("endpoint", endpoint);
+        dataMap.put("sequence", notification.sequence);
+        dataMap.put("status", Status.PENDING.value());
+        dataMap.put("attempts", 0);
+        dataMap.put("nextAttempt", notification.nextAttempt);
+        dataMap.put("lastError", "");
+        dataMap.put("payload", payload);
+        if (!database.write(Table.NOTIFICATION_OUTBOX, dataMap)) {
+            logger.severe("NotificationOutbox::enqueue:Unable to store the notification to subscription "
+                    + subscriptionId);
+            return false;
+        }
+        enqueued.incrementAndGet();
+        add(notification);
+        return true;
+    }
+
+    /**
+     * Queue every notification still pending in the database, e.g. after a
+     * restart
+     *
+     * @return the number of notifications queued
+     */
+    public int recover() {
+        return queue(Status.PENDING, false);
+    }
+
+    /**
+     * Queue every dead notification for delivery again, starting from its first
+     * attempt
+     *
+     * @return the number of notifications queued
+     */
+    public int redeliver() {
+        return queue(Status.DEAD, true);
+    }
+
+    /**
+     * Delete the delivered notifications older than the retention period. Runs
+     * periodically on the pool.
+     *
+     * @return the number of notifications deleted
+     */
+    public int purge() {
+        int count = 0;
+        try {
+            count = database.deleteBefore(Table.NOTIFICATION_OUTBOX,
+                    Collections.singletonMap("status", Status.DELIVERED.value()), "deliveredAt",
+                    System.currentTimeMillis() - retentionMs);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "NotificationOutbox::purge:Unable to delete delivered notifications", e);
+        }
+        purged.addAndGet(count);
+        if (count > 0)
+            logger.info("NotificationOutbox::purge:Deleted " + count + " delivered notifications");
+        return count;
+    }
+
+    /**
+     * Stop sending notifications. Notifications which have not been delivered
+     * stay pending in the database and are recovered on the next start.
+     */
+    public void close() {
+        executor.shutdownNow();
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * Get the current state of the outbox, with the throughput and latency of
+     * each endpoint
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("threads", executor.getCorePoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("maxAttempts", maxAttempts);
+        metrics.put("pending", database.count(Table.NOTIFICATION_OUTBOX,
+                Collections.singletonMap("status", Status.PENDING.value())));
+        metrics.put("dead", database.count(Table.NOTIFICATION_OUTBOX,
+                Collections.singletonMap("status", Status.DEAD.value())));
+        metrics.put("enqueued", enqueued.get());
+        metrics.put("recovered", recovered.get());
+        metrics.put("purged", purged.get());
+        metrics.put("delivered", deliveredCount.get());
+        metrics.put("retries", retryCount.get());
+        metrics.put("markedDead", deadCount.get());
+        Map<String, Object> endpointMetrics = new LinkedHashMap<>();
+        for (Endpoint endpoint : endpoints.values())
+            endpointMetrics.put(endpoint.address, endpoint.getMetrics());
+        metrics.put("endpoints", endpointMetrics);
+        return metrics;
+    }
+
+    private int queue(Status status, boolean resetAttempts) {
+        Map<String, Object> constraintMap = Collections.singletonMap("status", status.value());
+        List<Row> rows = database.selectColumns(Table.NOTIFICATION_OUTBOX, constraintMap, "id", "subscriptionId",
+                "endpoint", "sequence", "attempts", "nextAttempt", "payload");
+        List<Notification> notifications = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Row row : rows) {
+            String id = row.getString("id");
+            Endpoint endpoint = endpoints.get(row.getString("endpoint"));
+            if (endpoint != null && endpoint.contains(id))
+                continue;
+            if (resetAttempts) {
+                Map<String, Object> dataMap = new HashMap<>();
+                dataMap.put("status", Status.PENDING.value());
+                dataMap.put("attempts", 0);
+                dataMap.put("nextAttempt", now);
+                if (!database.update(Table.NOTIFICATION_OUTBOX, constraints(id, status), dataMap))
+                    continue;
+            }
+            int attempts = resetAttempts ? 0 : (int) parseLong(row.getString("attempts"), 0);
+            long nextAttempt = resetAttempts ? now : parseLong(row.getString("nextAttempt"), now);
+            notifications.add(new Notification(id, row.getString("subscriptionId"), row.getString("endpoint"),
+                    parseLong(row.getString("sequence"), 0), attempts, nextAttempt, row.getString("payload")));
+        }
+        for (Notification notification : notifications)
+            add(notification);
+        if (!resetAttempts)
+            recovered.addAndGet(notifications.size());
+        if (!notifications.isEmpty())
+            logger.info("NotificationOutbox::queue:Queued " + notifications.size() + " " + status.value()
+                    + " notifications");
+        return notifications.size();
+    }
+
+    // Adding under the map's lock means prune() never drops an endpoint which is
+    // being added to
+    private void add(Notification notification) {
+        endpoints.compute(notification.endpoint, (address, endpoint) -> {
+            if (endpoint == null)
+                endpoint = new Endpoint(address);
+            endpoint.add(notification);
+            return endpoint;
+        });
+    }
+
+    private void prune(Endpoint endpoint) {
+        endpoints.computeIfPresent(endpoint.address,
+                (address, current) -> current == endpoint && current.isIdle() ? null : current);
+    }
+
+    /**
+     * Get the delay before the next attempt: the base delay doubled for every
+     * failed attempt, capped at the max delay, of which a random half is
+     * dropped so subscribers which failed together do not retry together
+     *
+     * @param attempts - the number of failed attempts so far.
+     * @return the delay in milliseconds
+     */
+    long getBackoff(int attempts) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 30);
+        long delay = Math.min(baseDelayMs << doublings, maxDelayMs);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static Map<String, Object> constraints(String id, Status status) {
+        Map<String, Object> constraintMap = new HashMap<>();
+        constraintMap.put("id", id);
+        constraintMap.put("status", status.value());
+        return constraintMap;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static class Notification {
+        private final String id;
+        private final String subscriptionId;
+        private final String endpoint;
+        private final long sequence;
+        private final String payload;
+        private final long queuedAt = System.currentTimeMillis();
+        private int attempts;
+        private long nextAttempt;
+
+        Notification(String id, String subscriptionId, String endpoint, long sequence, int attempts,
+                long nextAttempt, String payload) {
+            this.id = id;
+            this.subscriptionId = subscriptionId;
+            this.endpoint = endpoint;
+            this.sequence = sequence;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The notifications waiting for one endpoint, in sequence order. Only the
+     * head of the queue is ever being sent.
+     */
+    private class Endpoint {
+        private final String address;
+        private final PriorityQueue<Notification> queue = new PriorityQueue<>(
+                Comparator.comparingLong((Notification notification) -> notification.sequence));
+        private boolean sending;
+        private boolean waiting;
+
+        private long delivered;
+        private long retries;
+        private long dead;
+        private long totalLatencyMs;
+        private long maxLatencyMs;
+        private long totalCallMs;
+        private final long firstSeen = System.currentTimeMillis();
+
+        Endpoint(String address) {
+            this.address = address;
+        }
+
+        synchronized boolean contains(String id) {
+            return queue.stream().anyMatch(notification -> notification.id.equals(id));
+        }
+
+        synchronized void add(Notification notification) {
+            queue.add(notification);
+            next();
+        }
+
+        synchronized boolean isIdle() {
+            return queue.isEmpty() && !sending && !waiting;
+        }
+
+        /**
+         * Send the head of the queue now, or wake up when it is due. Must hold the
+         * lock.
+         */
+        private void next() {
+            Notification head = queue.peek();
+            if (head == null || sending || waiting)
+                return;
+            long delay = head.nextAttempt - System.currentTimeMillis();
+            try {
+                if (delay > 0) {
+                    waiting = true;
+                    executor.schedule(this::wake, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    sending = true;
+                    executor.execute(() -> send(head));
+                }
+            } catch (RejectedExecutionException e) {
+                waiting = false;
+                sending = false;
+                logger.fine("NotificationOutbox::next:Closed, leaving notifications to " + address + " pending");
+            }
+        }
+
+        private synchronized void wake() {
+            waiting = false;
+            next();
+        }
+
+        private void send(Notification notification) {
+            long start = System.currentTimeMillis();
+            String error = null;
+            try {
+                Request request = new Request.Builder().url(notification.endpoint)
+                        .post(RequestBody.create(notification.payload, JSON)).build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (!response.isSuccessful())
+                        error = "HTTP " + response.code();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+            long end = System.currentTimeMillis();
+
+            try {
+                if (error == null)
+                    delivered(notification, end - start, end - notification.queuedAt);
+                else
+                    failed(notification, error);
+            } catch (RuntimeException e) {
+                // Its row could not be updated, try the notification again later
+                logger.log(Level.SEVERE, "NotificationOutbox::send:Unable to record the outcome of notification "
+                        + notification.id + " to " + address, e);
+                synchronized (this) {
+                    notification.nextAttempt = System.currentTimeMillis()
+                            + getBackoff(Math.max(notification.attempts, 1));
+                }
+            } finally {
+                synchronized (this) {
+                    sending = false;
+                    next();
+                }
+                prune(this);
+            }
+        }
+
+        private void delivered(Notification notification, long callMs, long latencyMs) {
+            logger.fine("NotificationOutbox::send:Delivered notification " + notification.id + " to " + address);
+            Map<String, Object> dataMap = new HashMap<>();
+            dataMap.put("status", Status.DELIVERED.value());
+            dataMap.put("deliveredAt", System.currentTimeMillis());
+            database.update(Table.NOTIFICATION_OUTBOX, constraints(notification.id, Status.PENDING), dataMap);
+            setSubscriptionStatus(notification, SubscriptionStatus.ACTIVE);
+            synchronized (this) {
+                queue.remove(notification);
+                delivered++;
+                totalCallMs += callMs;
+                totalLatencyMs += latencyMs;
+                maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+            }
+            deliveredCount.incrementAndGet();
+        }
+
+        private void failed(Notification notification, String error) {
+            notification.attempts++;
+            Map<String, Object> dataMap = new HashMap<>();
+            dataMap.put("attempts", notification.attempts);
+            dataMap.put("lastError", error);
+            boolean isDead = notification.attempts >= maxAttempts;
+            if (isDead) {
+                logger.severe("NotificationOutbox::send:Giving up on notification " + notification.id + " to "
+                        + address + " after " + notification.attempts + " attempts, " + error);
+                dataMap.put("status", Status.DEAD.value());
+            } else {
+                notification.nextAttempt = System.currentTimeMillis() + getBackoff(notification.attempts);
+                logger.warning("NotificationOutbox::send:Notification " + notification.id + " to " + address
+                        + " failed, " + error + ", retrying in "
+                        + (notification.nextAttempt - System.currentTimeMillis()) + "ms");
+                dataMap.put("nextAttempt", notification.nextAttempt);
+            }
+            if (!database.update(Table.NOTIFICATION_OUTBOX, constraints(notification.id, Status.PENDING),
+                    dataMap)) {
+                // The row is gone if the Subscription was deleted. Otherwise the
+                // database failed and the notification is tried again later.
+                if (database.count(Table.NOTIFICATION_OUTBOX, constraints(notification.id, Status.PENDING)) != 0)
+                    throw new IllegalStateException("Unable to update notification " + notification.id);
+                logger.fine("NotificationOutbox::send:Notification " + notification.id + " to " + address
+                        + " was deleted");
+                synchronized (this) {
+                    queue.remove(notification);
+                }
+                return;
+            }
+            if (isDead)
+                setSubscriptionStatus(notification, SubscriptionStatus.ERROR);
+            synchronized (this) {
+                if (isDead) {
+                    queue.remove(notification);
+                    dead++;
+                } else {
+                    retries++;
+                }
+            }
+            if (isDead)
+                deadCount.incrementAndGet();
+            else
+                retryCount.incrementAndGet();
+        }
+
+        private void setSubscriptionStatus(Notification notification, SubscriptionStatus status) {
+            database.update(Table.SUBSCRIPTION, Collections.singletonMap("id", notification.subscriptionId),
+                    Collections.singletonMap("status", status.getDisplay().toLowerCase()));
+        }
+
+        synchronized Map<String, Object> getMetrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            long seconds = Math.max((System.currentTimeMillis() - firstSeen) / 1000, 1);
+            metrics.put("queued", queue.size());
+            metrics.put("retrying", !queue.isEmpty() && queue.peek().attempts > 0);
+            metrics.put("delivered", delivered);
+            metrics.put("retries", retries);
+            metrics.put("dead", dead);
+            metrics.put("deliveredPerMinute", delivered * 60.0 / seconds);
+            metrics.put("meanCallMs", delivered > 0 ? totalCallMs / delivered : 0);
+            metrics.put("meanLatencyMs", delivered > 0 ? totalLatencyMs / delivered : 0);
+            metrics.put("maxLatencyMs", maxLatencyMs);
+            return metrics;
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NotificationOutbox-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
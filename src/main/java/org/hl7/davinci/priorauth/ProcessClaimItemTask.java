@@ -1,87 +1,73 @@
 package org.hl7.davinci.priorauth;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.priorauth.FhirUtils.Disposition;
 import org.hl7.davinci.rules.PriorAuthRule;
-import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.davinci.rules.RuleEvaluationSession;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Type;
 import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 import org.hl7.fhir.r4.model.Claim.ItemComponent;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-
-public class ProcessClaimItemTask implements Runnable {
+/**
+ * Computes the disposition of a single claim item and stores it in the
+ * ClaimItem table. Tasks run on the shared ClaimItemExecutor.
+ */
+public class ProcessClaimItemTask implements Callable<Disposition> {
 
     static final Logger logger = PALogger.getLogger();
 
     private String id;
     private String status;
     private String relatedId;
-    private Bundle bundle;
-    private Thread thread;
+    private RuleEvaluationSession session;
     private ItemComponent item;
+    private volatile CompletableFuture<Disposition> future;
 
-    /**
-     * Thread Status codes
-     * 
-     * 0 - finished successfully 1 - finished with errors 2 - not yet started 3 -
-     * running
-     */
-    private volatile int threadStatus = 2; // Not yet started
-
-    public ProcessClaimItemTask(Bundle bundle, ItemComponent item, String id, String relatedId, String status) {
+    public ProcessClaimItemTask(RuleEvaluationSession session, ItemComponent item, String id, String relatedId,
+            String status) {
         this.id = id;
         this.item = item;
-        this.bundle = bundle;
+        this.session = session;
         this.status = status;
-        this.thread = null;
         this.relatedId = relatedId;
     }
 
-    public void run() {
-        logger.info("ProcessClaimItemTask::run:ClaimItem " + this.getItemName());
-        boolean ret = process();
-        this.threadStatus = ret ? 0 : 1; // 0 for success, 1 for error
-        logger.fine("ProcessClaimItemTask::run:Thread exiting for ClaimItem " + this.getItemName() + ":"
-                + this.threadStatus);
-    }
-
-    public void start() {
-        logger.fine("ProcessClaimItemTask::start:ClaimItem " + this.getItemName());
-        if (this.thread == null) {
-            this.thread = new Thread(this, this.getItemName());
-            this.thread.start();
-            this.threadStatus = 3; // Running
-        }
-    }
-
     /**
-     * Get the status of the thread
+     * Process the claim item and store the result
      * 
-     * @return status of the thread 0 - finished successfully 1 - finished with
-     *         errors 2 - not yet started 3 - running
+     * @return the disposition of the claim item
+     * @throws IllegalStateException if the claim item could not be stored
      */
-    public int getStatus() {
-        return this.threadStatus;
+    public Disposition call() {
+        logger.info("ProcessClaimItemTask::call:ClaimItem " + this.getItemName());
+        Disposition disposition = process();
+        logger.fine("ProcessClaimItemTask::call:Finished ClaimItem " + this.getItemName() + ":" + disposition);
+        return disposition;
     }
 
     /**
-     * Get the thread for this task
+     * Submit the task to the ClaimItemExecutor. Calling start again returns the
+     * same future.
      * 
-     * @return the thread for this task
+     * @return a future completed with the disposition of the claim item
      */
-    public Thread getThread() {
-        return this.thread;
+    public synchronized CompletableFuture<Disposition> start() {
+        logger.fine("ProcessClaimItemTask::start:ClaimItem " + this.getItemName());
+        if (this.future == null)
+            this.future = App.getClaimItemExecutor().submit(this);
+        return this.future;
     }
 
     /**
@@ -97,10 +83,9 @@ public class ProcessClaimItemTask implements Runnable {
     /**
      * Process the claim item and compute a disposition
      * 
-     * @return true if the claim item was processed successfully, false otherwise
+     * @return the disposition of the claim item
      */
-    private boolean process() {
-        boolean ret = true;
+    private Disposition process() {
         boolean itemIsCancelled = false;
         String rulesEngine = PropertyProvider.getProperty("rules_engine");
         if (this.item.hasModifierExtension()) {
@@ -117,16 +102,17 @@ public class ProcessClaimItemTask implements Runnable {
         if (!itemIsCancelled) {
             // here is the place to switch
             if (rulesEngine.equals("internal")) {
-                itemDisposition = PriorAuthRule.computeDisposition(this.bundle, this.item.getSequence());
+                itemDisposition = PriorAuthRule.computeDisposition(this.session, this.item.getSequence());
             } else {
 
                 try {
-                    itemDisposition = sendAndGetDisposition(this.bundle, this.item.getSequence(), rulesEngine);
-                } catch (IOException e) {
-                    // if we fail to talk to the external rules engine just say we don't know the
-                    // state of the claim
-                    itemDisposition = Disposition.UNKNOWN;
-                    e.printStackTrace();
+                    itemDisposition = sendAndGetDisposition(rulesEngine);
+                } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+                    // if we fail to talk to the external rules engine use the configured
+                    // fallback, by default we don't know the state of the claim
+                    logger.warning("ProcessClaimItemTask::process:Unable to get a disposition for "
+                            + this.getItemName() + " from the rules engine:" + e.getMessage());
+                    itemDisposition = RulesEngineClient.getFallbackDisposition();
                 }
 
             }
@@ -134,6 +120,10 @@ public class ProcessClaimItemTask implements Runnable {
         } else
             itemDisposition = Disposition.CANCELLED;
 
+        // The claim timed out while the disposition was computed
+        if (this.future != null && this.future.isCancelled())
+            throw new CancellationException("ClaimItem " + this.getItemName() + " was cancelled");
+
         Map<String, Object> dataMap = new HashMap<>();
         dataMap.put("id", id);
         dataMap.put("sequence", this.item.getSequence());
@@ -150,37 +140,53 @@ public class ProcessClaimItemTask implements Runnable {
                 if (!App.getDB().update(Table.CLAIM_ITEM, constraintMap, dataMap)) {
                     logger.warning(
                             "ClaimEndpoint::processClaimItems:unable to update claim item:" + this.getItemName());
-                    ret = false;
+                    throw new IllegalStateException("Unable to update claim item " + this.getItemName());
                 }
-                return ret;
+                return itemDisposition;
             }
         }
 
         // Add new item to the database
         if (!App.getDB().write(Table.CLAIM_ITEM, dataMap)) {
             logger.warning("ClaimEndpoint::processClaimItems:unable to write claim item:" + this.getItemName());
-            ret = false;
+            throw new IllegalStateException("Unable to write claim item " + this.getItemName());
         }
 
-        return ret;
+        return itemDisposition;
     }
 
-    private Disposition sendAndGetDisposition(Bundle bundle, int seq, String address) throws IOException {
-
-        // create post request
-
-        OkHttpClient client = new OkHttpClient();
-        RequestBody body = RequestBody.create(null, bundle.toString());
-        Request request = new Request.Builder().url(address + "?seq=" + String.valueOf(seq)).post(body).build();
-        // if no response in alloted time return some default value
-        try (Response response = client.newCall(request).execute()) {
-            String answer = response.body().string();
-            return FhirUtils.Disposition.fromString(answer);
-        } catch (Exception e) {
-            logger.info(
-                    "ProcessClaimItemTask::sendAndGetDisposition was unable to get a response from the rules engine");
-            return Disposition.UNKNOWN;
+    /**
+     * Ask the external rules engine for the disposition of the item. Every item
+     * of the claim is sent in one batch request, shared by the items through the
+     * session. Items the batch did not answer, or every item when the engine does
+     * not support batches or rules_engine_batch is false, are sent one at a time.
+     * 
+     * @param address - the URL of the rules engine.
+     * @return the disposition of the claim item
+     * @throws IOException if the engine could not be reached
+     */
+    private Disposition sendAndGetDisposition(String address) throws IOException {
+        RulesEngineClient client = App.getRulesEngineClient();
+        int seq = this.item.getSequence();
+        if (PropertyProvider.getBooleanProperty("rules_engine_batch", true)) {
+            Map<Integer, Disposition> batch = this.session.getBatchDispositions(() -> {
+                try {
+                    return client.getDispositions(address, this.session.getEncodedBundle(), getSequences());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (batch != null && batch.containsKey(seq))
+                return batch.get(seq);
         }
+        return client.getDisposition(address, this.session.getEncodedBundle(), seq);
+    }
+
+    private List<Integer> getSequences() {
+        List<Integer> sequences = new ArrayList<>();
+        for (ItemComponent claimItem : FhirUtils.getClaimFromRequestBundle(this.session.getBundle()).getItem())
+            sequences.add(claimItem.getSequence());
+        return sequences;
     }
 
 }
\ No newline at end of file
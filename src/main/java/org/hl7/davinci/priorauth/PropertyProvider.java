@@ -1,29 +1,222 @@
 package org.hl7.davinci.priorauth;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+/**
+ * Reads config.properties. The file is parsed once and the parsed properties
+ * are shared by every caller. The file is checked for changes at most once per
+ * check interval and reloaded when it has been modified, or when reload() is
+ * called. A reload replaces all of the properties at once so a caller never
+ * sees a mix of old and new values.
+ */
 public class PropertyProvider {
 
     private static final Logger logger = PALogger.getLogger();
 
     private static final String PROPERTY_FILE = "config.properties";
 
+    static final long CHECK_INTERVAL_MS = 1000;
+
+    private static final Source SOURCE = new Source(new File(PROPERTY_FILE), CHECK_INTERVAL_MS);
+
     public static String getProperty(String property) {
-        String result = null;
+        String result = SOURCE.get().getProperty(property);
+        logger.fine("PropertyProvider::getProperty(" + property + "):" + result);
+        return result;
+    }
+
+    /**
+     * Get a property, falling back to a default when it is missing
+     *
+     * @param property     - the property name.
+     * @param defaultValue - the value to use if the property is not set.
+     * @return the value of the property
+     */
+    public static String getProperty(String property, String defaultValue) {
+        String value = getProperty(property);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Get an integer property, falling back to a default when it is missing or
+     * not a number.
+     *
+     * @param property     - the property name.
+     * @param defaultValue - the value to use if the property is not set.
+     * @return the integer value of the property
+     */
+    public static int getIntProperty(String property, int defaultValue) {
+        String value = getProperty(property);
+        if (value == null)
+            return defaultValue;
         try {
-            InputStream inputStream = new FileInputStream(PROPERTY_FILE);
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warning("PropertyProvider::getIntProperty:Invalid value for " + property + ", using default "
+                    + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a long property, falling back to a default when it is missing or not a
+     * number.
+     *
+     * @param property     - the property name.
+     * @param defaultValue - the value to use if the property is not set.
+     * @return the long value of the property
+     */
+    public static long getLongProperty(String property, long defaultValue) {
+        String value = getProperty(property);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warning("PropertyProvider::getLongProperty:Invalid value for " + property + ", using default "
+                    + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a boolean property, falling back to a default when it is missing or
+     * neither true nor false.
+     *
+     * @param property     - the property name.
+     * @param defaultValue - the value to use if the property is not set.
+     * @return the boolean value of the property
+     */
+    public static boolean getBooleanProperty(String property, boolean defaultValue) {
+        String value = getProperty(property);
+        if (value == null)
+            return defaultValue;
+        value = value.trim();
+        if (value.equalsIgnoreCase("true"))
+            return true;
+        if (value.equalsIgnoreCase("false"))
+            return false;
+        logger.warning("PropertyProvider::getBooleanProperty:Invalid value for " + property + ", using default "
+                + defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Read config.properties again, keeping the current properties if it cannot
+     * be read
+     *
+     * @return true if the properties were reloaded, false otherwise
+     */
+    public static boolean reload() {
+        return SOURCE.reload();
+    }
+
+    /**
+     * Get the state of the properties
+     *
+     * @return map of metric name to value
+     */
+    public static Map<String, Object> getMetrics() {
+        return SOURCE.getMetrics();
+    }
+
+    /**
+     * A properties file parsed once and reloaded when it changes
+     */
+    static class Source {
+        private static class Snapshot {
+            final Properties properties;
+            final long lastModified;
+            final long length;
+
+            Snapshot(Properties properties, long lastModified, long length) {
+                this.properties = properties;
+                this.lastModified = lastModified;
+                this.length = length;
+            }
+        }
+
+        private final File file;
+        private final long checkIntervalMs;
+        private volatile Snapshot snapshot;
+        private volatile long lastChecked;
+
+        private final AtomicLong loads = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        /**
+         * @param file            - the properties file.
+         * @param checkIntervalMs - how often to check the file for changes, a
+         *                        negative value never checks.
+         */
+        Source(File file, long checkIntervalMs) {
+            this.file = file;
+            this.checkIntervalMs = checkIntervalMs;
+        }
+
+        /**
+         * @return the current properties, reloading them first if the file has
+         *         changed
+         */
+        Properties get() {
+            Snapshot current = snapshot;
+            if (current == null || isStale(current)) {
+                synchronized (this) {
+                    if (snapshot == current && !reload() && snapshot == null)
+                        snapshot = new Snapshot(new Properties(), 0, 0);
+                    current = snapshot;
+                }
+            }
+            return current.properties;
+        }
+
+        synchronized boolean reload() {
+            long lastModified = file.lastModified();
+            long length = file.length();
             Properties properties = new Properties();
-            properties.load(inputStream);
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+            } catch (IOException | IllegalArgumentException e) {
+                failures.incrementAndGet();
+                logger.warning("PropertyProvider::reload:Unable to read " + file + ":" + e.getMessage());
+                return false;
+            }
+            snapshot = new Snapshot(properties, lastModified, length);
+            lastChecked = System.currentTimeMillis();
+            loads.incrementAndGet();
+            logger.info("PropertyProvider::reload:Loaded " + properties.size() + " properties from " + file);
+            return true;
+        }
 
-            result = properties.getProperty(property);
-        } catch (Exception e) {
-            System.out.println("Exception: " + e);
+        Map<String, Object> getMetrics() {
+            Snapshot current = snapshot;
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("file", file.getPath());
+            metrics.put("properties", current != null ? current.properties.size() : 0);
+            metrics.put("loads", loads.get());
+            metrics.put("failures", failures.get());
+            return metrics;
+        }
+
+        // Compare the length as well since lastModified may only have second
+        // resolution
+        private boolean isStale(Snapshot current) {
+            if (checkIntervalMs < 0)
+                return false;
+            long now = System.currentTimeMillis();
+            if (now - lastChecked < checkIntervalMs)
+                return false;
+            lastChecked = now;
+            return file.lastModified() != current.lastModified || file.length() != current.length;
         }
-        logger.info("RulesProperyProvider::getProperty(" + property + "):" + result);
-        return result;
     }
 
-}
\ No newline at end of file
+}
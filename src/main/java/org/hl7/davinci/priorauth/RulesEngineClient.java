@@ -0,0 +1,365 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.hl7.davinci.priorauth.FhirUtils.Disposition;
+
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Client for an external rules engine, shared by every claim item. One
+ * OkHttpClient keeps the connections to the engine alive between items, using
+ * HTTP/2 when the engine supports it. Each call has connect and read deadlines
+ * and the number of calls in flight at once is bounded so a burst of claims
+ * cannot open an unbounded number of connections to the engine. A call which
+ * cannot get one of those slots quickly, or is made while the circuit breaker
+ * is open after the engine failed repeatedly, fails fast instead of holding a
+ * claim item thread.
+ *
+ * The engine is asked for the dispositions of all of the items of a claim in
+ * one request: the Bundle is POSTed once with a seq query parameter per item
+ * and an Accept of application/json, and the engine answers with a JSON object
+ * of sequence to disposition, e.g. {"1": "Granted", "2": "Pended"}. An engine
+ * which rejects the request or answers with anything else only supports the
+ * original protocol of one request per item with a single seq, answered with
+ * the disposition as plain text. The client remembers this and asks it one
+ * item at a time from then on.
+ */
+public class RulesEngineClient {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final MediaType FHIR_JSON = MediaType.get("application/fhir+json; charset=utf-8");
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_CALL_TIMEOUT_MS = 15000;
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+    public static final int DEFAULT_KEEP_ALIVE_MS = 300000;
+    public static final int DEFAULT_BULKHEAD_WAIT_MS = 100;
+    public static final int DEFAULT_BREAKER_FAILURES = 5;
+    public static final int DEFAULT_BREAKER_OPEN_TIME_MS = 30000;
+    public static final long DEFAULT_BATCH_RETRY_MS = 600000;
+
+    // Answers from an engine which does not understand a batch request
+    private static final Set<Integer> BATCH_UNSUPPORTED_CODES = new HashSet<>(Arrays.asList(400, 404, 405, 415, 501));
+
+    private final OkHttpClient client;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long bulkheadWaitMs;
+    private final CircuitBreaker breaker;
+    private final long batchRetryMs;
+
+    // Engines which did not understand a batch request, until the time at which
+    // they are asked for batches again
+    private final Map<String, Long> unbatchedEngines = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bulkheadRejections = new AtomicLong();
+    private final AtomicLong batchRequests = new AtomicLong();
+    private final AtomicLong batchFallbacks = new AtomicLong();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Create a new client
+     *
+     * @param connectTimeoutMs - deadline to connect to the engine.
+     * @param readTimeoutMs    - deadline between bytes of the response.
+     * @param callTimeoutMs    - deadline for the whole call.
+     * @param maxConcurrent    - the number of calls which can be in flight at
+     *                         once, also the number of idle connections kept.
+     * @param keepAliveMs      - how long an idle connection is kept open.
+     * @param priorKnowledge   - true to speak HTTP/2 to an engine without TLS,
+     *                         false to negotiate HTTP/2 or HTTP/1.1.
+     * @param bulkheadWaitMs   - how long a call waits for one of the
+     *                         maxConcurrent permits before failing fast.
+     * @param breaker          - the circuit breaker for the engine.
+     */
+    public RulesEngineClient(int connectTimeoutMs, int readTimeoutMs, int callTimeoutMs, int maxConcurrent,
+            long keepAliveMs, boolean priorKnowledge, long bulkheadWaitMs, CircuitBreaker breaker) {
+        this(connectTimeoutMs, readTimeoutMs, callTimeoutMs, maxConcurrent, keepAliveMs, priorKnowledge,
+                bulkheadWaitMs, breaker, DEFAULT_BATCH_RETRY_MS);
+    }
+
+    /**
+     * Create a new client
+     *
+     * @param connectTimeoutMs - deadline to connect to the engine.
+     * @param readTimeoutMs    - deadline between bytes of the response.
+     * @param callTimeoutMs    - deadline for the whole call.
+     * @param maxConcurrent    - the number of calls which can be in flight at
+     *                         once, also the number of idle connections kept.
+     * @param keepAliveMs      - how long an idle connection is kept open.
+     * @param priorKnowledge   - true to speak HTTP/2 to an engine without TLS,
+     *                         false to negotiate HTTP/2 or HTTP/1.1.
+     * @param bulkheadWaitMs   - how long a call waits for one of the
+     *                         maxConcurrent permits before failing fast.
+     * @param breaker          - the circuit breaker for the engine.
+     * @param batchRetryMs     - how long an engine which did not understand a
+     *                         batch request is asked one item at a time before
+     *                         it is asked for a batch again.
+     */
+    public RulesEngineClient(int connectTimeoutMs, int readTimeoutMs, int callTimeoutMs, int maxConcurrent,
+            long keepAliveMs, boolean priorKnowledge, long bulkheadWaitMs, CircuitBreaker breaker,
+            long batchRetryMs) {
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.bulkheadWaitMs = bulkheadWaitMs;
+        this.breaker = breaker;
+        this.batchRetryMs = Math.max(batchRetryMs, 0);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+        this.client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(this.maxConcurrent, keepAliveMs, TimeUnit.MILLISECONDS))
+                .protocols(priorKnowledge ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)
+                        : Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .callTimeout(callTimeoutMs, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /**
+     * Create the RulesEngineClient described by config.properties
+     *
+     * @return the configured RulesEngineClient
+     */
+    public static RulesEngineClient create() {
+        int connectTimeout = PropertyProvider.getIntProperty("rules_engine_connect_timeout",
+                DEFAULT_CONNECT_TIMEOUT_MS);
+        int readTimeout = PropertyProvider.getIntProperty("rules_engine_read_timeout", DEFAULT_READ_TIMEOUT_MS);
+        int callTimeout = PropertyProvider.getIntProperty("rules_engine_call_timeout", DEFAULT_CALL_TIMEOUT_MS);
+        int maxConcurrent = PropertyProvider.getIntProperty("rules_engine_max_concurrent", DEFAULT_MAX_CONCURRENT);
+        long keepAlive = PropertyProvider.getLongProperty("rules_engine_keep_alive", DEFAULT_KEEP_ALIVE_MS);
+        boolean priorKnowledge = PropertyProvider.getBooleanProperty("rules_engine_h2c", false);
+        int bulkheadWait = PropertyProvider.getIntProperty("rules_engine_bulkhead_wait", DEFAULT_BULKHEAD_WAIT_MS);
+        int breakerFailures = PropertyProvider.getIntProperty("rules_engine_breaker_failures",
+                DEFAULT_BREAKER_FAILURES);
+        int breakerOpenTime = PropertyProvider.getIntProperty("rules_engine_breaker_open_time",
+                DEFAULT_BREAKER_OPEN_TIME_MS);
+        long batchRetry = PropertyProvider.getLongProperty("rules_engine_batch_retry", DEFAULT_BATCH_RETRY_MS);
+        logger.info("RulesEngineClient::create:connect " + connectTimeout + "ms, read " + readTimeout + "ms, call "
+                + callTimeout + "ms, " + maxConcurrent + " concurrent, breaker opens after " + breakerFailures
+                + " failures");
+        return new RulesEngineClient(connectTimeout, readTimeout, callTimeout, maxConcurrent, keepAlive,
+                priorKnowledge, bulkheadWait, new CircuitBreaker("RulesEngine", breakerFailures, breakerOpenTime),
+                batchRetry);
+    }
+
+    /**
+     * Get the disposition to give an item when the engine cannot be asked, e.g.
+     * it is down or the circuit breaker is open
+     *
+     * @return the rules_engine_fallback disposition, UNKNOWN if it is not set
+     */
+    public static Disposition getFallbackDisposition() {
+        Disposition disposition = Disposition.fromString(PropertyProvider.getProperty("rules_engine_fallback"));
+        return disposition != null ? disposition : Disposition.UNKNOWN;
+    }
+
+    /**
+     * Ask the engine for the disposition of one claim item
+     *
+     * @param address - the URL of the engine.
+     * @param bundle  - the Claim Bundle encoded as FHIR JSON.
+     * @param seq     - the sequence of the item.
+     * @return the disposition, UNKNOWN if the engine answered with something
+     *         else
+     * @throws IOException if the engine could not be reached or did not answer
+     *                     successfully
+     */
+    public Disposition getDisposition(String address, String bundle, int seq) throws IOException {
+        HttpUrl url = HttpUrl.get(address).newBuilder().setQueryParameter("seq", String.valueOf(seq)).build();
+        Request request = new Request.Builder().url(url).post(RequestBody.create(bundle, FHIR_JSON)).build();
+        return execute(request, (code, body) -> {
+            if (!isSuccessful(code))
+                throw new IOException("Rules engine returned HTTP " + code);
+            return toDisposition(body.trim());
+        });
+    }
+
+    /**
+     * Ask the engine for the dispositions of several claim items in one request
+     *
+     * @param address   - the URL of the engine.
+     * @param bundle    - the Claim Bundle encoded as FHIR JSON.
+     * @param sequences - the sequences of the items.
+     * @return map of sequence to disposition, or null if the engine does not
+     *         support batches and has to be asked one item at a time. An engine
+     *         which did not understand a batch request is asked for one again
+     *         after batchRetryMs, so a transient error or an upgraded engine
+     *         does not disable batches for good.
+     * @throws IOException if the engine could not be reached or failed
+     */
+    public Map<Integer, Disposition> getDispositions(String address, String bundle, Collection<Integer> sequences)
+            throws IOException {
+        Long retryAt = unbatchedEngines.get(address);
+        if (retryAt != null) {
+            if (System.currentTimeMillis() < retryAt)
+                return null;
+            unbatchedEngines.remove(address, retryAt);
+        }
+
+        HttpUrl.Builder url = HttpUrl.get(address).newBuilder();
+        for (Integer seq : sequences)
+            url.addQueryParameter("seq", String.valueOf(seq));
+        Request request = new Request.Builder().url(url.build()).header("Accept", "application/json")
+                .post(RequestBody.create(bundle, FHIR_JSON)).build();
+        batchRequests.incrementAndGet();
+        return execute(request, (code, body) -> {
+            if (BATCH_UNSUPPORTED_CODES.contains(code))
+                return unbatched(address, "HTTP " + code);
+            if (!isSuccessful(code))
+                throw new IOException("Rules engine returned HTTP " + code);
+
+            JsonNode answer;
+            try {
+                answer = MAPPER.readTree(body);
+            } catch (JsonProcessingException e) {
+                answer = null;
+            }
+            if (answer == null || !answer.isObject())
+                return unbatched(address, "not a JSON object");
+
+            Map<Integer, Disposition> dispositions = new HashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = answer.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                try {
+                    dispositions.put(Integer.valueOf(field.getKey().trim()), toDisposition(field.getValue().asText()));
+                } catch (NumberFormatException e) {
+                    logger.warning("RulesEngineClient::getDispositions:Ignoring unknown sequence " + field.getKey());
+                }
+            }
+            return dispositions;
+        });
+    }
+
+    /**
+     * Close the idle connections and stop the client's threads
+     */
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * Get the current state of the client
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("maxConcurrent", maxConcurrent);
+        metrics.put("inFlight", maxConcurrent - permits.availablePermits());
+        metrics.put("waiting", permits.getQueueLength());
+        metrics.put("connections", client.connectionPool().connectionCount());
+        metrics.put("idleConnections", client.connectionPool().idleConnectionCount());
+        metrics.put("requests", requests.get());
+        metrics.put("failures", failures.get());
+        metrics.put("bulkheadRejections", bulkheadRejections.get());
+        metrics.put("breaker", breaker.getMetrics());
+        metrics.put("batchRequests", batchRequests.get());
+        metrics.put("batchFallbacks", batchFallbacks.get());
+        long now = System.currentTimeMillis();
+        metrics.put("unbatchedEngines", unbatchedEngines.values().stream().filter(retryAt -> retryAt > now).count());
+        return metrics;
+    }
+
+    private Map<Integer, Disposition> unbatched(String address, String reason) {
+        batchFallbacks.incrementAndGet();
+        unbatchedEngines.put(address, System.currentTimeMillis() + batchRetryMs);
+        logger.info("RulesEngineClient::getDispositions:" + address + " does not support batches (" + reason
+                + "), asking one item at a time for " + batchRetryMs + "ms");
+        return null;
+    }
+
+    private static Disposition toDisposition(String answer) {
+        Disposition disposition = Disposition.fromString(answer);
+        if (disposition == null) {
+            logger.warning("RulesEngineClient::toDisposition:Unrecognized disposition " + answer);
+            return Disposition.UNKNOWN;
+        }
+        return disposition;
+    }
+
+    private static boolean isSuccessful(int code) {
+        return code >= 200 && code < 300;
+    }
+
+    private interface ResponseReader<T> {
+        T read(int code, String body) throws IOException;
+    }
+
+    /**
+     * Make a call through the circuit breaker and the bulkhead. The call fails
+     * fast when the breaker is open or when no permit frees up within the
+     * bulkhead wait. The permit is held until the response has been read.
+     * Transport errors and 5xx answers count as failures of the engine.
+     */
+    private <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+        if (!breaker.tryAcquire())
+            throw new IOException("Rules engine circuit breaker is open");
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(bulkheadWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            breaker.onIgnored();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to call the rules engine");
+        }
+        if (!acquired) {
+            breaker.onIgnored();
+            bulkheadRejections.incrementAndGet();
+            throw new IOException("Rules engine bulkhead is full, " + maxConcurrent + " calls in flight");
+        }
+
+        requests.incrementAndGet();
+        int code;
+        String body;
+        boolean healthy = false;
+        try (Response response = client.newCall(request).execute()) {
+            code = response.code();
+            body = response.body().string();
+            healthy = code < 500;
+        } finally {
+            permits.release();
+            if (healthy) {
+                breaker.onSuccess();
+            } else {
+                failures.incrementAndGet();
+                breaker.onFailure();
+            }
+        }
+        return reader.read(code, body);
+    }
+}
@@ -0,0 +1,136 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+/**
+ * Brings the database schema up to date by running the versioned migration
+ * scripts packaged in the DatabaseMigrations resource folder, or in a directory
+ * given instead. Scripts are named V{version}__{description}.sql and each one
+ * runs once, in version order. Applied versions are recorded in the
+ * SchemaVersion table.
+ */
+public class SchemaMigrator {
+
+  static final Logger logger = PALogger.getLogger();
+
+  public static final String MIGRATIONS_RESOURCE = "DatabaseMigrations/";
+
+  private static final Pattern MIGRATION_FILE = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+  private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS SchemaVersion (version int PRIMARY KEY, "
+      + "description varchar, timestamp datetime DEFAULT CURRENT_TIMESTAMP);";
+  private static final String READ_VERSION = "SELECT MAX(version) FROM SchemaVersion;";
+  private static final String WRITE_VERSION = "INSERT INTO SchemaVersion (version, description) VALUES (?, ?);";
+
+  private SchemaMigrator() {
+  }
+
+  /**
+   * Run every migration on the classpath newer than the current schema version.
+   *
+   * @param connection - the connection to the database.
+   * @return the schema version after migrating
+   * @throws SQLException if a migration fails, later migrations are not run
+   * @throws IOException  if the scripts cannot be read
+   */
+  public static int migrate(Connection connection) throws SQLException, IOException {
+    return migrate(connection, "classpath:" + MIGRATIONS_RESOURCE + "*.sql");
+  }
+
+  /**
+   * Run every migration in the directory newer than the current schema version.
+   *
+   * @param connection - the connection to the database.
+   * @param directory  - the directory of migration scripts.
+   * @return the schema version after migrating
+   * @throws SQLException if a migration fails, later migrations are not run
+   * @throws IOException  if the scripts cannot be read
+   */
+  public static int migrate(Connection connection, Path directory) throws SQLException, IOException {
+    return migrate(connection, "file:" + directory.toAbsolutePath() + "/*.sql");
+  }
+
+  private static int migrate(Connection connection, String location) throws SQLException, IOException {
+    try (Statement stmt = connection.createStatement()) {
+      stmt.execute(CREATE_VERSION_TABLE);
+    }
+    int version = getVersion(connection);
+
+    for (Map.Entry<Integer, Resource> migration : findMigrations(location).entrySet()) {
+      if (migration.getKey() <= version)
+        continue;
+
+      Resource file = migration.getValue();
+      logger.info("SchemaMigrator::migrate:Applying " + file.getFilename());
+      // Columns are quoted in the scripts for readability but the tables are
+      // created with unquoted (upper case) names
+      String sql;
+      try (InputStream in = file.getInputStream()) {
+        sql = new String(in.readAllBytes(), StandardCharsets.UTF_8).replace("\"", "");
+      }
+      try (Statement stmt = connection.createStatement()) {
+        stmt.execute(sql);
+      }
+      try (PreparedStatement stmt = connection.prepareStatement(WRITE_VERSION)) {
+        stmt.setInt(1, migration.getKey());
+        stmt.setString(2, describe(file));
+        stmt.execute();
+      }
+      version = migration.getKey();
+    }
+
+    logger.info("SchemaMigrator::migrate:Schema is at version " + version);
+    return version;
+  }
+
+  /**
+   * Get the current schema version
+   *
+   * @param connection - the connection to the database.
+   * @return the highest applied version or 0 if none have been applied
+   * @throws SQLException
+   */
+  public static int getVersion(Connection connection) throws SQLException {
+    try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(READ_VERSION)) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  private static TreeMap<Integer, Resource> findMigrations(String location) throws IOException {
+    TreeMap<Integer, Resource> migrations = new TreeMap<>();
+    for (Resource file : new PathMatchingResourcePatternResolver().getResources(location)) {
+      Matcher matcher = MIGRATION_FILE.matcher(String.valueOf(file.getFilename()));
+      if (!matcher.matches()) {
+        logger.warning("SchemaMigrator::findMigrations:Ignoring " + file.getFilename());
+        continue;
+      }
+      Resource duplicate = migrations.put(Integer.parseInt(matcher.group(1)), file);
+      if (duplicate != null)
+        throw new IOException("Duplicate migration version in " + duplicate + " and " + file);
+    }
+    if (migrations.isEmpty())
+      logger.warning("SchemaMigrator::findMigrations:No migrations found at " + location);
+    return migrations;
+  }
+
+  private static String describe(Resource file) {
+    Matcher matcher = MIGRATION_FILE.matcher(String.valueOf(file.getFilename()));
+    return matcher.matches() ? matcher.group(2).replace('_', ' ') : file.getFilename();
+  }
+}
@@ -1,6 +1,5 @@
 package org.hl7.davinci.priorauth;
 
-import org.hl7.davinci.priorauth.Database.Table;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.handler.annotation.MessageMapping;
@@ -12,7 +11,7 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 
 import java.security.Principal;
-import java.util.Collections;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -45,8 +44,7 @@ public class SubscribeController {
         if (matcher.find() && matcher.groupCount() == 1) {
             // Bind the id to the subscription in db
             String subscriptionId = matcher.group(1);
-            if (App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
-                    Collections.singletonMap("websocketId", username)))
+            if (App.getSubscriptionRegistry().bind(subscriptionId, username))
                 sendMessageToUser(username, WebSocketConfig.SUBSCRIBE_USER_NOTIFICATION, "bound: " + subscriptionId);
             else
                 sendMessageToUser(username, WebSocketConfig.SUBSCRIBE_USER_NOTIFICATION,
@@ -72,4 +70,9 @@ public class SubscribeController {
         logger.info("SubscribeController::Message sent to " + username + " on " + channel);
     }
 
+    public static void sendMessageToUser(String username, String channel, String msg, Map<String, Object> headers) {
+        messagingTemplate.convertAndSendToUser(username, channel, msg, headers);
+        logger.fine("SubscribeController::Message sent to " + username + " on " + channel + " with " + headers);
+    }
+
 }
\ No newline at end of file
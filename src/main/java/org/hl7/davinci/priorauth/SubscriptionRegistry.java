@@ -0,0 +1,295 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Row;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+
+/**
+ * In memory index of the Subscription table by orgId, holding the parsed
+ * Subscriptions and their websocket bindings, so routing a notification reads
+ * nothing from the database. The index is write-through: Subscriptions are
+ * created, bound and deleted through the registry, which changes the database
+ * first and the index only if that succeeded. The index is loaded from the
+ * database on startup.
+ *
+ * Each server keeps its own index, a Subscription created through another
+ * server sharing the database is only seen after reload().
+ */
+public class SubscriptionRegistry {
+
+    static final Logger logger = PALogger.getLogger();
+
+    /**
+     * A Subscription and the websocket it is bound to
+     */
+    public static class Registration {
+        private final String id;
+        private final String orgId;
+        private final Subscription subscription;
+        private final String websocketId;
+
+        Registration(String id, String orgId, Subscription subscription, String websocketId) {
+            this.id = id;
+            this.orgId = orgId != null ? orgId : "";
+            this.subscription = subscription;
+            this.websocketId = websocketId;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOrgId() {
+            return orgId;
+        }
+
+        public Subscription getSubscription() {
+            return subscription;
+        }
+
+        public SubscriptionChannelType getChannelType() {
+            return subscription.getChannel().getType();
+        }
+
+        /**
+         * @return the websocket the Subscription is bound to, null if it is not
+         *         bound
+         */
+        public String getWebsocketId() {
+            return websocketId;
+        }
+    }
+
+    private final Database database;
+
+    // Registrations are immutable, a change replaces the entry in both maps
+    private final Map<String, Registration> byId = new ConcurrentHashMap<>();
+    private final Map<String, List<Registration>> byOrgId = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+
+    /**
+     * Create a new, empty, registry
+     *
+     * @param database - the database holding the Subscription table.
+     */
+    public SubscriptionRegistry(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Index every Subscription in the database, replacing the current index
+     *
+     * @return the number of Subscriptions indexed
+     */
+    public synchronized int reload() {
+        List<Row> rows = database.selectColumns(Table.SUBSCRIPTION, Collections.emptyMap(), "id", "orgId",
+                "websocketId", "resource");
+        // Rows come newest first
+        Collections.reverse(rows);
+        byId.clear();
+        byOrgId.clear();
+        for (Row row : rows) {
+            Subscription subscription = (Subscription) row.getResource();
+            if (subscription == null)
+                continue;
+            String id = row.getString("id");
+            subscription.setId(id);
+            index(new Registration(id, row.getString("orgId"), subscription, row.getString("websocketId")));
+        }
+        loaded.addAndGet(byId.size());
+        logger.info("SubscriptionRegistry::reload:Indexed " + byId.size() + " subscriptions");
+        return byId.size();
+    }
+
+    /**
+     * Store a new Subscription and index it
+     *
+     * @param orgId        - the organization the Subscription is for.
+     * @param subscription - the Subscription, with its id set.
+     * @param dataMap      - the columns of the Subscription row.
+     * @return true if the Subscription was stored, false otherwise
+     */
+    public synchronized boolean add(String orgId, Subscription subscription, Map<String, Object> dataMap) {
+        if (!database.write(Table.SUBSCRIPTION, dataMap))
+            return false;
+        index(new Registration(FhirUtils.getIdFromResource(subscription), orgId, subscription, null));
+        return true;
+    }
+
+    /**
+     * Bind a Subscription to a websocket
+     *
+     * @param id          - the id of the Subscription.
+     * @param websocketId - the websocket user to notify.
+     * @return true if the Subscription exists and was bound, false otherwise
+     */
+    public synchronized boolean bind(String id, String websocketId) {
+        if (!database.update(Table.SUBSCRIPTION, Collections.singletonMap("id", id),
+                Collections.singletonMap("websocketId", websocketId)))
+            return false;
+        Registration registration = byId.get(id);
+        if (registration != null)
+            index(new Registration(id, registration.orgId, registration.subscription, websocketId));
+        else
+            refresh(id);
+        return true;
+    }
+
+    /**
+     * Delete a Subscription
+     *
+     * @param id      - the id of the Subscription.
+     * @param patient - the patient of the Subscription.
+     * @return true if the Subscription was deleted, false otherwise
+     */
+    public synchronized boolean delete(String id, String patient) {
+        if (!database.delete(Table.SUBSCRIPTION, id, patient))
+            return false;
+        unindex(id);
+        return true;
+    }
+
+    /**
+     * Delete a Subscription whatever its patient
+     *
+     * @param id - the id of the Subscription.
+     * @return true if the Subscription was deleted, false otherwise
+     */
+    public synchronized boolean delete(String id) {
+        if (!database.delete(Table.SUBSCRIPTION, id))
+            return false;
+        unindex(id);
+        return true;
+    }
+
+    /**
+     * Delete every Subscription
+     *
+     * @return true if any Subscription was deleted, false otherwise
+     */
+    public synchronized boolean deleteAll() {
+        boolean result = database.delete(Table.SUBSCRIPTION);
+        byId.clear();
+        byOrgId.clear();
+        return result;
+    }
+
+    /**
+     * Get the Subscriptions of an organization
+     *
+     * @param orgId - the organization, as system|value.
+     * @return the Subscriptions, oldest first, empty if there are none
+     */
+    public List<Registration> getSubscriptions(String orgId) {
+        lookups.incrementAndGet();
+        List<Registration> registrations = byOrgId.get(orgId);
+        return registrations != null ? registrations : Collections.emptyList();
+    }
+
+    /**
+     * Get the Subscriptions of an organization using one channel type
+     *
+     * @param orgId - the organization, as system|value.
+     * @param type  - the channel type.
+     * @return the Subscriptions, oldest first, empty if there are none
+     */
+    public List<Registration> getSubscriptions(String orgId, SubscriptionChannelType type) {
+        List<Registration> registrations = new ArrayList<>();
+        for (Registration registration : getSubscriptions(orgId)) {
+            if (registration.getChannelType() == type)
+                registrations.add(registration);
+        }
+        return registrations;
+    }
+
+    /**
+     * Get a Subscription
+     *
+     * @param id - the id of the Subscription.
+     * @return the Subscription, null if there is no such Subscription
+     */
+    public Registration get(String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Get the current state of the registry
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("subscriptions", byId.size());
+        metrics.put("organizations", byOrgId.size());
+        metrics.put("restHooks",
+                byId.values().stream().filter(r -> r.getChannelType() == SubscriptionChannelType.RESTHOOK).count());
+        metrics.put("websockets",
+                byId.values().stream().filter(r -> r.getChannelType() == SubscriptionChannelType.WEBSOCKET).count());
+        metrics.put("bound", byId.values().stream().filter(r -> r.websocketId != null).count());
+        metrics.put("lookups", lookups.get());
+        metrics.put("loaded", loaded.get());
+        return metrics;
+    }
+
+    private void refresh(String id) {
+        Row row = database.readColumns(Table.SUBSCRIPTION, Collections.singletonMap("id", id), "orgId",
+                "websocketId", "resource");
+        if (row == null || row.getResource() == null) {
+            unindex(id);
+            return;
+        }
+        Subscription subscription = (Subscription) row.getResource();
+        subscription.setId(id);
+        index(new Registration(id, row.getString("orgId"), subscription, row.getString("websocketId")));
+    }
+
+    private void index(Registration registration) {
+        String id = registration.id;
+        Registration previous = byId.put(id, registration);
+        if (previous != null && !previous.orgId.equals(registration.orgId))
+            removeFromOrg(previous.orgId, id);
+        byOrgId.compute(registration.orgId, (orgId, registrations) -> {
+            List<Registration> updated = new ArrayList<>();
+            boolean replaced = false;
+            if (registrations != null) {
+                for (Registration existing : registrations) {
+                    if (existing.id.equals(id)) {
+                        updated.add(registration);
+                        replaced = true;
+                    } else {
+                        updated.add(existing);
+                    }
+                }
+            }
+            if (!replaced)
+                updated.add(registration);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    private void unindex(String id) {
+        Registration previous = byId.remove(id);
+        if (previous != null)
+            removeFromOrg(previous.orgId, id);
+    }
+
+    private void removeFromOrg(String orgId, String id) {
+        byOrgId.computeIfPresent(orgId, (key, registrations) -> {
+            List<Registration> updated = new ArrayList<>(registrations);
+            updated.removeIf(registration -> registration.id.equals(id));
+            return updated.isEmpty() ? null : Collections.unmodifiableList(updated);
+        });
+    }
+}
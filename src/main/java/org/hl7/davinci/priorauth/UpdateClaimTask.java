@@ -1,31 +1,19 @@
 package org.hl7.davinci.priorauth;
 
-import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-import okhttp3.MediaType;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.priorauth.FhirUtils.Disposition;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.davinci.priorauth.SubscriptionRegistry.Registration;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.ClaimResponse.ClaimResponseStatus;
-import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
-import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
-
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
 
 /**
- * A TimerTask for updating claims.
+ * A task for updating claims, run by the ClaimUpdateScheduler.
  */
-public class UpdateClaimTask extends TimerTask {
+public class UpdateClaimTask implements Runnable {
     private Bundle bundle;
     private String claimId;
     private String patient;
@@ -67,10 +55,6 @@ public class UpdateClaimTask extends TimerTask {
         if (updatedClaimBundle != null) {
 
             // Check for subscription
-            Map<String, Object> constraintMap = new HashMap<>();
-            // constraintMap.put("claimResponseId", claimId);
-            // constraintMap.put("patient", patient);
-            constraintMap.put("orgId", claimId);
             String orgId;
             ClaimResponse cr = (ClaimResponse)updatedClaimBundle.getEntryFirstRep().getResource();
             String[] requestorRef = cr.getRequestor().getReference().split("/");
@@ -83,92 +67,15 @@ public class UpdateClaimTask extends TimerTask {
                 identifier = ((PractitionerRole)entry.getResource()).getIdentifierFirstRep();
             }
             orgId = identifier.getSystem() + "|" + identifier.getValue();
-            constraintMap.put("orgId", orgId);
 
-            List<IBaseResource> subscriptions = App.getDB().readAll(Table.SUBSCRIPTION, constraintMap);
+            List<Subscription> subscriptions = new ArrayList<>();
+            for (Registration registration : App.getSubscriptionRegistry().getSubscriptions(orgId))
+                subscriptions.add(registration.getSubscription());
             logger.info("SubscriptionEndpoint::Found " + subscriptions.size() + " subscriptions for orgId: " + orgId);
 
-            AtomicInteger subscriptionEventNumber = new AtomicInteger();
             // Send notification to each subscriber
-            subscriptions.stream().forEach(resource -> {
-                subscriptionEventNumber.addAndGet(1);
-
-                Subscription subscription = (Subscription) resource;
-                String subscriptionId = FhirUtils.getIdFromResource(subscription);
-                SubscriptionChannelType subscriptionType = subscription.getChannel().getType();
-
-                //Build Subscriptions R5 Backport Notification Bundle:
-                //http://hl7.org/fhir/uv/subscriptions-backport/components.html#subscription-notifications
-                Bundle bundle = new Bundle();
-                bundle.setType(Bundle.BundleType.HISTORY);
-                
-                Parameters parameters = new Parameters();
-                Meta meta = new Meta();
-                meta.addProfile("http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-subscription-status-r4");
-                parameters.setMeta(meta);
-                parameters.addParameter().setName("subscription").setResource(subscription);
-                parameters.addParameter().setName("topic").setValue(new CanonicalType("http://hl7.org/fhir/us/davinci-pas/SubscriptionTopic/PASSubscriptionTopic"));
-                parameters.addParameter().setName("status").setValue(new CodeType(subscription.getStatus().toCode()));
-                parameters.addParameter().setName("type").setValue(new CodeType("event-notification"));
-
-                Parameters.ParametersParameterComponent notificationEventPart = new Parameters.ParametersParameterComponent();
-                notificationEventPart.setName("notification-event");
-                notificationEventPart.addPart().setName("event-number").setValue(new StringType(subscriptionEventNumber.toString()));
-                notificationEventPart.addPart().setName("timestamp").setValue(new DateTimeType(new Date()));
-                notificationEventPart.addPart().setName("focus").setValue(new Reference(updatedClaimBundle.getEntryFirstRep().getFullUrl()));
-                parameters.addParameter(notificationEventPart);
-
-                //TODO: Add error
-                //parameters.addParameter().setName("error").setValue(new CodeableConcept());
-
-                bundle.addEntry().setResource(parameters);
-                bundle.addEntry().setResource(updatedClaimBundle);
-
-                if (subscriptionType == SubscriptionChannelType.RESTHOOK) {
-                    // Send rest-hook notification...
-                    String endpoint = subscription.getChannel().getEndpoint();
-                    logger.info("SubscriptionHandler::Sending rest-hook notification to " + endpoint);
-                    try {
-
-                        IParser parser = FhirContext.forR4().newJsonParser();
-                        RequestBody body = RequestBody.create(parser.encodeResourceToString(bundle), MediaType.parse("application/json; charset=utf-8"));
-
-                        OkHttpClient client = new OkHttpClient();
-                        okhttp3.Response response = client
-                                .newCall(new Request.Builder().url(endpoint).post(body).build())
-                                .execute();
-                        logger.fine("SubscriptionHandler::Response " + response.code());
-                        App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
-                                Collections.singletonMap("status",
-                                        SubscriptionStatus.ACTIVE.getDisplay().toLowerCase()));
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, "SubscriptionHandler::IOException in request", e);
-                        App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
-                                Collections.singletonMap("status",
-                                        SubscriptionStatus.ERROR.getDisplay().toLowerCase()));
-                    }
-                } else if (subscriptionType == SubscriptionChannelType.WEBSOCKET) {
-                    // Send websocket notification...
-                    String websocketId = App.getDB().readString(Table.SUBSCRIPTION,
-                            Collections.singletonMap("id", subscriptionId), "websocketId");
-                    if (websocketId != null) {
-                        IParser parser = FhirContext.forR4().newJsonParser();
-                        logger.info("SubscriptionHandler::Sending web-socket notification to " + websocketId);
-                        SubscribeController.sendMessageToUser(websocketId, WebSocketConfig.SUBSCRIBE_USER_NOTIFICATION,
-                                "ping: " + subscriptionId + " Subscription Notification Bundle: " + parser.encodeResourceToString(bundle));
-                        App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
-                                Collections.singletonMap("status",
-                                        SubscriptionStatus.ACTIVE.getDisplay().toLowerCase()));
-                    } else {
-                        logger.severe("SubscriptionHandler::Unable to send web-socket notification for subscription "
-                                + subscriptionId
-                                + " because web-socket id is null. Client did not bind a websocket to id");
-                        App.getDB().update(Table.SUBSCRIPTION, Collections.singletonMap("id", subscriptionId),
-                                Collections.singletonMap("status",
-                                        SubscriptionStatus.ERROR.getDisplay().toLowerCase()));
-                    }
-                }
-            });
+            if (!subscriptions.isEmpty())
+                App.getNotificationDispatcher().dispatch(updatedClaimBundle, subscriptions);
         }
     }
 
@@ -0,0 +1,20 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.List;
+
+import org.hl7.davinci.priorauth.endpoint.StreamingSearchBundleConverter;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Spring MVC configuration for the FHIR endpoints.
+ */
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new StreamingSearchBundleConverter());
+    }
+}
@@ -4,16 +4,27 @@ import java.util.logging.Logger;
 
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.config.SimpleBrokerRegistration;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 import org.springframework.web.socket.messaging.SessionSubscribeEvent;
 
 /**
- * Spring websocket configuration with STOMP.
+ * Spring websocket configuration with STOMP. The outbound channel pool, the
+ * per session send limits and the heartbeats are read from config.properties
+ * on startup.
  */
 @Configuration
 @EnableWebSocketMessageBroker
@@ -22,6 +33,11 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     public static final String SUBSCRIBE_USER_PREFIX = "/private";
     public static final String SUBSCRIBE_USER_NOTIFICATION = "/notification";
 
+    public static final int DEFAULT_OUTBOUND_THREADS = 8;
+    public static final int DEFAULT_OUTBOUND_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 512 * 1024;
+    public static final long DEFAULT_HEARTBEAT_MS = 10000;
+
     static final Logger logger = PALogger.getLogger();
 
     @Override
@@ -34,8 +50,51 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry registry) {
-        registry.enableSimpleBroker(SUBSCRIBE_USER_NOTIFICATION);
+        SimpleBrokerRegistration broker = registry.enableSimpleBroker(SUBSCRIBE_USER_NOTIFICATION);
         registry.setUserDestinationPrefix(SUBSCRIBE_USER_PREFIX);
+
+        // Heartbeats let clients and the server notice a dead connection, the
+        // server then drops the notifications waiting for it
+        long heartbeat = PropertyProvider.getLongProperty("websocket_heartbeat", DEFAULT_HEARTBEAT_MS);
+        if (heartbeat > 0) {
+            ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+            scheduler.setPoolSize(1);
+            scheduler.setThreadNamePrefix("WebSocket-heartbeat-");
+            scheduler.setDaemon(true);
+            scheduler.initialize();
+            broker.setHeartbeatValue(new long[] { heartbeat, heartbeat }).setTaskScheduler(scheduler);
+        }
+        logger.info("WebSocketConfig::configureMessageBroker:Heartbeat " + heartbeat + "ms");
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        int threads = Math.max(
+                PropertyProvider.getIntProperty("websocket_outbound_threads", DEFAULT_OUTBOUND_THREADS), 1);
+        int queueSize = PropertyProvider.getIntProperty("websocket_outbound_queue_size", DEFAULT_OUTBOUND_QUEUE_SIZE);
+        registration.taskExecutor().corePoolSize(threads).maxPoolSize(threads).queueCapacity(queueSize);
+        // Tell the WebSocketSender a notification has reached its session
+        registration.interceptors(new ExecutorChannelInterceptor() {
+            @Override
+            public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler,
+                    Exception ex) {
+                String notificationId = SimpMessageHeaderAccessor
+                        .getFirstNativeHeader(WebSocketSender.NOTIFICATION_ID_HEADER, message.getHeaders());
+                if (notificationId != null && App.getWebSocketSender() != null)
+                    App.getWebSocketSender().handed(notificationId);
+            }
+        });
+        logger.info("WebSocketConfig::configureClientOutboundChannel:" + threads + " threads, queue " + queueSize);
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        int sendBufferSize = PropertyProvider.getIntProperty("websocket_send_buffer_size", DEFAULT_SEND_BUFFER_SIZE);
+        long sendTimeLimit = PropertyProvider.getLongProperty("websocket_send_time_limit",
+                WebSocketSender.DEFAULT_SEND_TIME_LIMIT_MS);
+        registration.setSendBufferSizeLimit(sendBufferSize).setSendTimeLimit((int) sendTimeLimit);
+        logger.info("WebSocketConfig::configureWebSocketTransport:Send buffer " + sendBufferSize + " bytes, "
+                + sendTimeLimit + "ms");
     }
 
     @EventListener
@@ -53,6 +112,8 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @EventListener
     public void handleDisconnectEvent(SessionDisconnectEvent event) {
         logger.info("WebSocketConfig::handleDisconnectEvent:Disconnect from " + event.getUser().getName());
+        if (App.getWebSocketSender() != null)
+            App.getWebSocketSender().disconnect(event.getUser().getName());
         logger.fine("WebSocketConfig::handleDisconnectEvent:Event: " + event);
     }
 }
\ No newline at end of file
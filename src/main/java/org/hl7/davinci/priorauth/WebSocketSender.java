@@ -0,0 +1,312 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flow control for websocket notifications. The simple broker hands every
+ * message to the client outbound channel without limit, so a client which
+ * reads slowly builds up a backlog until its session is closed for exceeding
+ * the send buffer. The sender lets at most maxInFlight notifications per
+ * websocket be on their way to the session. Later notifications wait, one per
+ * Subscription and claim: a Subscription covers every claim of an
+ * organization, so only a newer notification about the same claim replaces a
+ * waiting one, as it carries the latest ClaimResponse of that claim. The event
+ * numbers show the client what was coalesced. When more than maxQueued
+ * notifications are waiting the oldest one is dropped.
+ *
+ * A notification stops being in flight once the outbound channel has handed it
+ * to the session (see WebSocketConfig), or after sendTimeLimitMs if it never
+ * is, for example because the client has not subscribed to its notifications.
+ */
+public class WebSocketSender {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public static final String NOTIFICATION_ID_HEADER = "notification-id";
+    public static final String SUBSCRIPTION_ID_HEADER = "subscription-id";
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_QUEUED = 100;
+    public static final long DEFAULT_SEND_TIME_LIMIT_MS = 10000;
+    private static final long EXPIRE_INTERVAL_MS = 1000;
+
+    /**
+     * Sends one message to a websocket user
+     */
+    interface Transport {
+        void send(String websocketId, String message, Map<String, Object> headers);
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long sendTimeLimitMs;
+    private final Transport transport;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong notificationIds = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong handed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Create a new sender sending through the SubscribeController
+     *
+     * @param maxInFlight     - the number of notifications a websocket can have
+     *                        on their way to its session.
+     * @param maxQueued       - the number of notifications a websocket can have
+     *                        waiting.
+     * @param sendTimeLimitMs - the time after which a notification not handed
+     *                        to its session is no longer in flight.
+     */
+    public WebSocketSender(int maxInFlight, int maxQueued, long sendTimeLimitMs) {
+        this(maxInFlight, maxQueued, sendTimeLimitMs, (websocketId, message, headers) -> SubscribeController
+                .sendMessageToUser(websocketId, WebSocketConfig.SUBSCRIBE_USER_NOTIFICATION, message, headers));
+    }
+
+    WebSocketSender(int maxInFlight, int maxQueued, long sendTimeLimitMs, Transport transport) {
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.maxQueued = Math.max(maxQueued, 1);
+        this.sendTimeLimitMs = Math.max(sendTimeLimitMs, 1);
+        this.transport = transport;
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "WebSocketSender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        long interval = Math.min(EXPIRE_INTERVAL_MS, this.sendTimeLimitMs);
+        this.executor.scheduleWithFixedDelay(this::expire, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the WebSocketSender described by config.properties
+     *
+     * @return the configured WebSocketSender
+     */
+    public static WebSocketSender create() {
+        int maxInFlight = PropertyProvider.getIntProperty("websocket_max_in_flight", DEFAULT_MAX_IN_FLIGHT);
+        int maxQueued = PropertyProvider.getIntProperty("websocket_max_queued", DEFAULT_MAX_QUEUED);
+        long sendTimeLimit = PropertyProvider.getLongProperty("websocket_send_time_limit",
+                DEFAULT_SEND_TIME_LIMIT_MS);
+        logger.info("WebSocketSender::create:" + maxInFlight + " in flight, " + maxQueued + " queued, "
+                + sendTimeLimit + "ms send time limit");
+        return new WebSocketSender(maxInFlight, maxQueued, sendTimeLimit);
+    }
+
+    /**
+     * Send a notification to a websocket, or queue it if the websocket already
+     * has maxInFlight notifications on their way
+     *
+     * @param websocketId    - the websocket user to notify.
+     * @param subscriptionId - the Subscription being notified.
+     * @param claim          - the claim the notification is about, a waiting
+     *                       notification is only replaced by one about the same
+     *                       claim.
+     * @param message        - the notification.
+     * @return true if the notification was sent or queued, false if sending it
+     *         failed
+     */
+    public boolean send(String websocketId, String subscriptionId, String claim, String message) {
+        Client client = clients.computeIfAbsent(websocketId, id -> new Client());
+        synchronized (client) {
+            if (client.inFlight >= maxInFlight) {
+                queue(websocketId, client, new Waiting(subscriptionId, claim, message));
+                return true;
+            }
+            client.inFlight++;
+        }
+        return transmit(websocketId, subscriptionId, message);
+    }
+
+    /**
+     * Called once the outbound channel has handed a notification to its session
+     *
+     * @param notificationId - the value of the NOTIFICATION_ID_HEADER of the
+     *                       message.
+     */
+    public void handed(String notificationId) {
+        if (release(notificationId))
+            handed.incrementAndGet();
+    }
+
+    /**
+     * Drop the notifications waiting for a websocket which has disconnected
+     *
+     * @param websocketId - the websocket user.
+     */
+    public void disconnect(String websocketId) {
+        Client client = clients.remove(websocketId);
+        if (client == null)
+            return;
+        synchronized (client) {
+            if (!client.waiting.isEmpty()) {
+                logger.info("WebSocketSender::disconnect:Dropping " + client.waiting.size()
+                        + " notifications to " + websocketId);
+                dropped.addAndGet(client.waiting.size());
+                client.waiting.clear();
+            }
+        }
+        inFlight.values().removeIf(entry -> entry.websocketId.equals(websocketId));
+    }
+
+    /**
+     * Stop sending queued notifications
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the current state of the sender
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        int queued = 0;
+        for (Client client : clients.values()) {
+            synchronized (client) {
+                queued += client.waiting.size();
+            }
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("clients", clients.size());
+        metrics.put("inFlight", inFlight.size());
+        metrics.put("queued", queued);
+        metrics.put("sent", sent.get());
+        metrics.put("handed", handed.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("expired", expired.get());
+        metrics.put("failed", failed.get());
+        return metrics;
+    }
+
+    // Called holding the lock on client
+    private void queue(String websocketId, Client client, Waiting notification) {
+        if (client.waiting.put(notification.getKey(), notification) != null) {
+            coalesced.incrementAndGet();
+        } else if (client.waiting.size() > maxQueued) {
+            Iterator<Waiting> oldest = client.waiting.values().iterator();
+            Waiting droppedNotification = oldest.next();
+            oldest.remove();
+            dropped.incrementAndGet();
+            logger.warning("WebSocketSender::queue:Dropping notification to subscription "
+                    + droppedNotification.subscriptionId + " about " + droppedNotification.claim + ", "
+                    + websocketId + " has " + maxQueued + " notifications waiting");
+        }
+    }
+
+    private boolean transmit(String websocketId, String subscriptionId, String message) {
+        String notificationId = String.valueOf(notificationIds.incrementAndGet());
+        inFlight.put(notificationId, new InFlight(websocketId, System.currentTimeMillis()));
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(NOTIFICATION_ID_HEADER, notificationId);
+        headers.put(SUBSCRIPTION_ID_HEADER, subscriptionId);
+        try {
+            transport.send(websocketId, message, headers);
+            sent.incrementAndGet();
+            return true;
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "WebSocketSender::transmit:Unable to send notification to " + websocketId, e);
+            failed.incrementAndGet();
+            release(notificationId);
+            return false;
+        }
+    }
+
+    /**
+     * Free the in flight slot of a notification, sending the oldest waiting
+     * notification in its place
+     *
+     * @return true if the notification was in flight
+     */
+    private boolean release(String notificationId) {
+        InFlight entry = inFlight.remove(notificationId);
+        if (entry == null)
+            return false;
+        Client client = clients.get(entry.websocketId);
+        if (client == null)
+            return true;
+        Waiting next = null;
+        synchronized (client) {
+            Iterator<Waiting> waiting = client.waiting.values().iterator();
+            if (waiting.hasNext()) {
+                next = waiting.next();
+                waiting.remove();
+            } else {
+                client.inFlight--;
+            }
+        }
+        if (next != null) {
+            // The next notification takes over the slot
+            Waiting notification = next;
+            try {
+                executor.execute(() -> transmit(entry.websocketId, notification.subscriptionId, notification.message));
+            } catch (RejectedExecutionException e) {
+                dropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - sendTimeLimitMs;
+        for (Map.Entry<String, InFlight> entry : inFlight.entrySet()) {
+            if (entry.getValue().sentAt < cutoff && release(entry.getKey())) {
+                expired.incrementAndGet();
+                logger.fine("WebSocketSender::expire:Notification " + entry.getKey() + " to "
+                        + entry.getValue().websocketId + " was not handed to a session");
+            }
+        }
+    }
+
+    /**
+     * The notifications of one websocket, guarded by the lock on it
+     */
+    private static class Client {
+        private int inFlight;
+        private final LinkedHashMap<String, Waiting> waiting = new LinkedHashMap<>();
+    }
+
+    private static class Waiting {
+        private final String subscriptionId;
+        private final String claim;
+        private final String message;
+
+        Waiting(String subscriptionId, String claim, String message) {
+            this.subscriptionId = subscriptionId;
+            this.claim = claim;
+            this.message = message;
+        }
+
+        String getKey() {
+            return subscriptionId + "|" + claim;
+        }
+    }
+
+    private static class InFlight {
+        private final String websocketId;
+        private final long sentAt;
+
+        InFlight(String websocketId, long sentAt) {
+            this.websocketId = websocketId;
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -25,7 +25,7 @@ import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 public class BundleEndpoint {
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
-  public ResponseEntity<String> readBundle(HttpServletRequest request,
+  public ResponseEntity<Object> readBundle(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient) {
     Map<String, Object> constraintMap = new HashMap<>();
@@ -35,7 +35,7 @@ public class BundleEndpoint {
   }
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
-  public ResponseEntity<String> readBundleXml(HttpServletRequest request,
+  public ResponseEntity<Object> readBundleXml(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient) {
     Map<String, Object> constraintMap = new HashMap<>();
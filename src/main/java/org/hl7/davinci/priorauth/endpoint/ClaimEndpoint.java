@@ -3,6 +3,7 @@ package org.hl7.davinci.priorauth.endpoint;
 import java.lang.reflect.Array;
 import java.sql.Ref;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -24,8 +25,10 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.hl7.davinci.priorauth.authorization.AuthUtils;
+import org.hl7.davinci.rules.RuleEvaluationSession;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.ClaimLineage;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 import org.hl7.davinci.priorauth.FhirUtils.Disposition;
@@ -38,8 +41,6 @@ import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 import org.hl7.fhir.r4.model.Claim.ItemComponent;
 
-import ca.uhn.fhir.parser.IParser;
-
 /**
  * The Claim endpoint to READ, SEARCH for, and DELETE submitted claims.
  */
@@ -53,10 +54,8 @@ public class ClaimEndpoint {
   static final String REQUIRES_BUNDLE = "Prior Authorization Claim/$submit Operation requires a Bundle with a single Claim as the first entry and supporting resources.";
   static final String PROCESS_FAILED = "Unable to process the request properly. Check the log for more details.";
 
-  static final HashMap<String, Timer> pendedTimers = new HashMap<>();
-
   @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
-  public ResponseEntity<String> readClaimJson(HttpServletRequest request,
+  public ResponseEntity<Object> readClaimJson(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient,
       @RequestParam(name = "status", required = false) String status) {
@@ -69,7 +68,7 @@ public class ClaimEndpoint {
   }
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
-  public ResponseEntity<String> readClaimXml(HttpServletRequest request,
+  public ResponseEntity<Object> readClaimXml(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient,
       @RequestParam(name = "status", required = false) String status) {
@@ -126,9 +125,7 @@ public class ClaimEndpoint {
     String formattedData = null;
     AuditEventOutcome auditOutcome = AuditEventOutcome.MINOR_FAILURE;
     try {
-      IParser parser = requestType == RequestType.JSON ? App.getFhirContext().newJsonParser()
-          : App.getFhirContext().newXmlParser();
-      IBaseResource resource = parser.parseResource(body);
+      IBaseResource resource = FhirSerializer.parse(body, requestType);
       if (resource instanceof Bundle) {
         Bundle bundle = (Bundle) resource;
         if (bundle.hasEntry() && (!bundle.getEntry().isEmpty()) && bundle.getEntry().get(0).hasResource()
@@ -239,7 +236,6 @@ public class ClaimEndpoint {
       }
     }
 
-
    if (sizeCheck.containsAll(duplicateReferencesRemovedList)) {
      return true;
    }
@@ -291,7 +287,7 @@ public class ClaimEndpoint {
       if (cancelClaim(FhirUtils.getIdFromResource(claim), patient)) {
         responseStatus = ClaimResponseStatus.CANCELLED;
         responseDisposition = Disposition.CANCELLED;
-        cancelTimer(FhirUtils.getIdFromResource(claim));
+        cancelScheduledUpdate(FhirUtils.getIdFromResource(claim));
       } else {
         logger.severe("ClaimEndpoint::Unable to cancel Claim/" + FhirUtils.getIdFromResource(claim));
         return null;
@@ -311,8 +307,7 @@ public class ClaimEndpoint {
         // This is an update...
 
         // Check the related id exists
-        Claim relatedClaim = (Claim) App.getDB().read(Table.CLAIM, Collections.singletonMap("id", relatedId));
-        if (relatedClaim == null) {
+        if (App.getDB().readColumns(Table.CLAIM, Collections.singletonMap("id", relatedId), "id") == null) {
           logger.warning("ClaimEndpoint::Unable to submit update to claim " + relatedId + " because it does not exist");
           return null;
         }
@@ -331,7 +326,7 @@ public class ClaimEndpoint {
         // Check if the related is pended in the DB
         if (FhirUtils.isPended(relatedId)) {
           logger.warning("ClaimEndpoint::Related claim " + relatedId + " is pending. Cancelling the scheduled update");
-          cancelTimer(relatedId);
+          cancelScheduledUpdate(relatedId);
         }
       }
 
@@ -373,7 +368,7 @@ public class ClaimEndpoint {
       }
 
       if (schedule) {
-        schedulePendedClaimUpdate(bundle, id, patient);
+        schedulePendedClaimUpdate(id, patient);
       }
     }
 
@@ -391,31 +386,21 @@ public class ClaimEndpoint {
    * @return true if all updates successful, false otherwise.
    */
   private boolean processClaimItems(Bundle bundle, String id, String relatedId) {
-    boolean ret = true;
     Claim claim = FhirUtils.getClaimFromRequestBundle(bundle);
     String claimStatusStr = FhirUtils.getStatusFromResource(claim);
 
-    // Start all of the threads
-    Map<Integer, ProcessClaimItemTask> threads = new HashMap<>();
+    // Submit all of the items, items routed to the same rule share one evaluation
+    RuleEvaluationSession session = new RuleEvaluationSession(bundle);
+    List<CompletableFuture<Disposition>> futures = new ArrayList<>();
     for (ItemComponent item : claim.getItem()) {
-      ProcessClaimItemTask itemTask = new ProcessClaimItemTask(bundle, item, id, relatedId, claimStatusStr);
-      threads.put(item.getSequence(), itemTask);
-      itemTask.start();
+      ProcessClaimItemTask itemTask = new ProcessClaimItemTask(session, item, id, relatedId, claimStatusStr);
+      futures.add(itemTask.start());
     }
 
-    // Block until all of the threads are done
-    for (ProcessClaimItemTask itemTask : threads.values()) {
-      try {
-        itemTask.getThread().join();
-        if (itemTask.getStatus() != 0)
-          ret = false;
-        logger.fine("ClaimEndpoint::processClaimItems:finsihed processing " + itemTask.getItemName() + ":"
-            + itemTask.getStatus());
-      } catch (InterruptedException e) {
-        ret = false;
-        logger.log(Level.SEVERE, "ClaimEndpoint::processClaimItems:Thread Interrutped:" + itemTask.getItemName(), e);
-      }
-    }
+    // Block until all of the items are done or the claim times out
+    boolean ret = App.getClaimItemExecutor().awaitAll(futures, id);
+    logger.fine("ClaimEndpoint::processClaimItems:finished processing " + futures.size() + " items for " + id + ":"
+        + ret + " (" + session.getEvaluations() + " rule evaluations)");
 
     return ret;
   }
@@ -436,21 +421,18 @@ public class ClaimEndpoint {
     Claim initialClaim = (Claim) App.getDB().read(Table.CLAIM, claimConstraintMap);
     if (initialClaim != null) {
       if (initialClaim.getStatus() != ClaimStatus.CANCELLED) {
-        // Cancel the claim...
-        initialClaim.setStatus(ClaimStatus.CANCELLED);
-        Map<String, Object> dataMap = new HashMap<>();
-        Map<String, Object> constraintMap = new HashMap<>();
-        constraintMap.put("id", claimId);
-        dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
-        dataMap.put("resource", initialClaim);
-        App.getDB().update(Table.CLAIM, constraintMap, dataMap);
+        // Cancel the claim and cascade to every update before and after it...
+        ClaimLineage lineage = App.getDB().getClaimLineage(claimId);
+        App.getDB().updateClaimStatus(lineage.getIds(), ClaimStatus.CANCELLED);
 
-        cascadeCancel(claimId);
+        // Stop processing the items of any of them still being submitted...
+        for (String lineageId : lineage.getIds())
+          App.getClaimItemExecutor().cancel(lineageId);
 
         // Cancel items...
-        dataMap = new HashMap<>();
-        constraintMap = new HashMap<>();
-        constraintMap.put("id", App.getDB().getMostRecentId(claimId));
+        Map<String, Object> dataMap = new HashMap<>();
+        Map<String, Object> constraintMap = new HashMap<>();
+        constraintMap.put("id", lineage.getHeadId());
         dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
         App.getDB().update(Table.CLAIM_ITEM, constraintMap, dataMap);
 
@@ -467,95 +449,24 @@ public class ClaimEndpoint {
   }
 
   /**
-   * Helper function to complete the cascade aspect of a Claim cancel. When a
-   * Claim is cancelled this will cascade the cancel to all related Claims (both
-   * up and downstream). A cancel updates the database status as well as update
-   * the resource status
-   * 
-   * @param claimId - the id of the original Claim to be cancelled
-   */
-  private void cascadeCancel(String claimId) {
-    // Cascade delete shared maps
-    Map<String, Object> dataMap = new HashMap<>();
-    dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
-    dataMap.put("resource", null);
-    Map<String, Object> constraintMap = new HashMap<>();
-    constraintMap.put("id", null);
-
-    // Cascade up to all the Claims submitted after this which reference this Claim
-    Map<String, Object> readConstraintMap = new HashMap<>();
-    readConstraintMap.put("related", claimId);
-    Claim referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    String referencingId;
-
-    while (referencingClaim != null) {
-      // Update referencing claim to cancelled
-      referencingClaim.setStatus(ClaimStatus.CANCELLED);
-      referencingId = FhirUtils.getIdFromResource(referencingClaim);
-      constraintMap.replace("id", referencingId);
-      dataMap.replace("resource", referencingClaim);
-      App.getDB().update(Table.CLAIM, constraintMap, dataMap);
-
-      // Get the new referencing claim
-      readConstraintMap.replace("related", referencingId);
-      referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    }
-
-    // Cascade the cancel to all related Claims...
-    // Follow each related until it is NULL
-    constraintMap.replace("id", claimId);
-    String relatedId = App.getDB().readRelated(Table.CLAIM, constraintMap);
-    Claim relatedClaim;
-
-    while (relatedId != null) {
-      // Update related claim to cancelled
-      constraintMap.replace("id", relatedId);
-      relatedClaim = (Claim) App.getDB().read(Table.CLAIM, constraintMap);
-      relatedClaim.setStatus(ClaimStatus.CANCELLED);
-      dataMap.replace("resource", relatedClaim);
-      App.getDB().update(Table.CLAIM, constraintMap, dataMap);
-
-      // Get the new related id from the db
-      relatedId = App.getDB().readRelated(Table.CLAIM, constraintMap);
-    }
-  }
-
-  /**
-   * Schedule an update to the Claim to support pending actions.
+   * Schedule an update to the Claim to support pending actions. The update is
+   * stored so it still runs if the server restarts before it is due.
    *
-   * @param bundle      - the bundle containing the claim.
    * @param id          - the Claim ID.
    * @param patient     - the Patient ID.
    */
-  protected void schedulePendedClaimUpdate(Bundle bundle, String id, String patient) {
-    Timer timer = new Timer();
-    pendedTimers.put(id, timer);
-    long delay = 15000; // default to 15 seconds
-    String delayEnv = System.getenv("DELAY");
-    if (delayEnv != null) {
-      try {
-      delay = Long.parseLong(delayEnv);
-      } catch (NumberFormatException e) {
-      logger.warning("Invalid DELAY environment variable, using default 15000ms");
-      }
-    }
-    timer.schedule(new UpdateClaimTask(bundle, id, patient), delay);
+  protected void schedulePendedClaimUpdate(String id, String patient) {
+    App.getClaimUpdateScheduler().schedule(id, patient, ClaimUpdateScheduler.getDelay());
   }
 
   /**
-   * Cancels a timer for a specific id (key).
+   * Cancels the scheduled update for a specific claim id.
    * 
-   * @param id - the id of the claim to cancel the timer for.
-   * @return true if the timer was cancelled successfully, false otherwise.
+   * @param id - the id of the claim to cancel the update for.
+   * @return true if the update was cancelled successfully, false otherwise.
    */
-  private boolean cancelTimer(String id) {
-    Timer timer = pendedTimers.get(id);
-    if (timer != null) {
-      timer.cancel();
-      pendedTimers.remove(id);
-      return true;
-    }
-    return false;
+  private boolean cancelScheduledUpdate(String id) {
+    return App.getClaimUpdateScheduler().cancel(id);
   }
 
 }
@@ -4,6 +4,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.FhirSerializer;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
@@ -37,7 +38,6 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
 import org.hl7.fhir.r4.model.Identifier;
 
-import ca.uhn.fhir.parser.IParser;
 
 /**
  * The Claim endpoint to claim inquiry operations
@@ -82,9 +82,7 @@ public class ClaimInquiryEndpoint {
         String formattedData = null;
         AuditEventOutcome auditOutcome = AuditEventOutcome.MINOR_FAILURE;
         try {
-            IParser parser = requestType == RequestType.JSON ? App.getFhirContext().newJsonParser()
-                    : App.getFhirContext().newXmlParser();
-            IBaseResource resource = parser.parseResource(body);
+            IBaseResource resource = FhirSerializer.parse(body, requestType);
 
             if (resource instanceof Bundle) {
                 Bundle bundle = (Bundle) resource;
@@ -27,7 +27,7 @@ import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 public class ClaimResponseEndpoint {
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
-  public ResponseEntity<String> readClaimResponseJson(HttpServletRequest request,
+  public ResponseEntity<Object> readClaimResponseJson(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient,
       @RequestParam(name = "status", required = false) String status) {
@@ -35,14 +35,14 @@ public class ClaimResponseEndpoint {
   }
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
-  public ResponseEntity<String> readClaimResponseXml(HttpServletRequest request,
+  public ResponseEntity<Object> readClaimResponseXml(HttpServletRequest request,
       @RequestParam(name = "identifier", required = false) String id,
       @RequestParam(name = "patient.identifier") String patient,
       @RequestParam(name = "status", required = false) String status) {
     return readClaimResponse(id, patient, status, request, RequestType.XML);
   }
 
-  public ResponseEntity<String> readClaimResponse(String id, String patient, String status, HttpServletRequest request,
+  public ResponseEntity<Object> readClaimResponse(String id, String patient, String status, HttpServletRequest request,
       RequestType requestType) {
     Map<String, Object> constraintMap = new HashMap<>();
 
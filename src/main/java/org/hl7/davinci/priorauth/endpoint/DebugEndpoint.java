@@ -3,11 +3,11 @@ package org.hl7.davinci.priorauth.endpoint;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Timer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,12 +24,16 @@ import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.ruleutils.CqlUtils;
+import org.hl7.davinci.rules.ElmCompiler;
 import org.hl7.davinci.rules.PriorAuthRule;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
 import org.hl7.fhir.r4.model.ClaimResponse;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 @CrossOrigin
 @RestController
 @RequestMapping("/debug")
@@ -62,6 +66,16 @@ public class DebugEndpoint {
     return query(Table.SUBSCRIPTION, request);
   }
 
+  @GetMapping("/ScheduledUpdate")
+  public ResponseEntity<String> getScheduledUpdates(HttpServletRequest request) {
+    return query(Table.SCHEDULED_UPDATE, request);
+  }
+
+  @GetMapping("/NotificationOutbox")
+  public ResponseEntity<String> getNotificationOutbox(HttpServletRequest request) {
+    return query(Table.NOTIFICATION_OUTBOX, request);
+  }
+
   @GetMapping("/Rules")
   public ResponseEntity<String> getRules(HttpServletRequest request) {
     return query(Table.RULES, request);
@@ -77,6 +91,36 @@ public class DebugEndpoint {
     return query(Table.CLIENT, request);
   }
 
+  @GetMapping(value = "/Metrics", produces = { MediaType.APPLICATION_JSON_VALUE })
+  public ResponseEntity<String> getMetrics(HttpServletRequest request) {
+    logger.info("GET /debug/Metrics");
+    if (App.isDebugModeEnabled()) {
+      Map<String, Object> metrics = new LinkedHashMap<>();
+      metrics.put("config", PropertyProvider.getMetrics());
+      metrics.put("database", App.getDB().getConnectionMetrics());
+      metrics.put("audit", App.getAuditWriter().getMetrics());
+      metrics.put("claimItems", App.getClaimItemExecutor().getMetrics());
+      metrics.put("rulesEngine", App.getRulesEngineClient().getMetrics());
+      metrics.put("claimUpdates", App.getClaimUpdateScheduler().getMetrics());
+      metrics.put("subscriptions", App.getSubscriptionRegistry().getMetrics());
+      metrics.put("notifications", App.getNotificationDispatcher().getMetrics());
+      metrics.put("notificationOutbox", App.getNotificationOutbox().getMetrics());
+      metrics.put("websockets", App.getWebSocketSender().getMetrics());
+      metrics.put("ruleLibraries", PriorAuthRule.getRuleCacheMetrics());
+      metrics.put("requestMappings", ClaimResponseFactory.getRequestMappings().getMetrics());
+      try {
+        String json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(metrics);
+        return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.APPLICATION_JSON).body(json);
+      } catch (JsonProcessingException e) {
+        logger.log(Level.SEVERE, "DebugEndpoint::getMetrics", e);
+        return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+      }
+    } else {
+      logger.warning("DebugEndpoint::metrics disabled");
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
   @GetMapping("/ReleaseClaim")
   public ResponseEntity<String> releaseClaim(HttpServletRequest request, @RequestParam(name = "identifier", required = false) String id)
   {
@@ -117,6 +161,7 @@ public class DebugEndpoint {
   public ResponseEntity<String> populateRules(HttpServletRequest request) {
     if (App.isDebugModeEnabled()) {
       PriorAuthRule.populateRulesTable();
+      PriorAuthRule.invalidateRuleCache();
       String description = "Populate database with sample rules in debug mode";
       Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SUCCESS, null, request, description);
       return new ResponseEntity<>(HttpStatus.OK);
@@ -128,6 +173,61 @@ public class DebugEndpoint {
     }
   }
 
+  @PostMapping("/ReloadConfig")
+  public ResponseEntity<String> reloadConfig(HttpServletRequest request) {
+    if (App.isDebugModeEnabled()) {
+      if (!PropertyProvider.reload()) {
+        String description = "Unable to reload config.properties";
+        Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SERIOUS_FAILURE, null, request,
+            description);
+        return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+      }
+      String description = "Reload config.properties in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SUCCESS, null, request, description);
+      return new ResponseEntity<>(HttpStatus.OK);
+    } else {
+      logger.warning("DebugEndpoint::reload config disabled");
+      String description = "Attempted to reload config.properties but app not in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.MINOR_FAILURE, null, request, description);
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
+  @PostMapping("/ReloadRequestMappings")
+  public ResponseEntity<String> reloadRequestMappings(HttpServletRequest request) {
+    if (App.isDebugModeEnabled()) {
+      if (!ClaimResponseFactory.getRequestMappings().reload()) {
+        String description = "Unable to reload the request mapping table";
+        Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SERIOUS_FAILURE, null, request,
+            description);
+        return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+      }
+      String description = "Reload the request mapping table in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SUCCESS, null, request, description);
+      return new ResponseEntity<>(HttpStatus.OK);
+    } else {
+      logger.warning("DebugEndpoint::reload request mappings disabled");
+      String description = "Attempted to reload the request mapping table but app not in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.MINOR_FAILURE, null, request, description);
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
+  @PostMapping("/RedeliverNotifications")
+  public ResponseEntity<String> redeliverNotifications(HttpServletRequest request) {
+    if (App.isDebugModeEnabled()) {
+      int count = App.getNotificationOutbox().redeliver();
+      String description = "Redeliver " + count + " dead notifications in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SUCCESS, null, request, description);
+      return new ResponseEntity<>("Queued " + count + " notifications", HttpStatus.OK);
+    } else {
+      logger.warning("DebugEndpoint::redeliver notifications disabled");
+      String description = "Attempted to redeliver dead notifications but app not in debug mode";
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.MINOR_FAILURE, null, request, description);
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
   @PostMapping("/Convert")
   public ResponseEntity<String> convertCqlToElm(HttpServletRequest request, HttpEntity<String> entity) {
     if (App.isDebugModeEnabled()) {
@@ -147,40 +247,20 @@ public class DebugEndpoint {
   public ResponseEntity<String> convertAllCqlToElm(HttpServletRequest request) {
     if (App.isDebugModeEnabled()) {
       String cdsLibraryPath = PropertyProvider.getProperty("CDS_library");
-      File filePath = new File(cdsLibraryPath);
-
-      File[] topics = filePath.listFiles();
-      for (File topic : topics) {
-        if (topic.isDirectory()) {
-          String topicName = topic.getName();
-
-          // Ignore shared folder and hidden folder
-          if (!topicName.startsWith(".") && !topicName.equalsIgnoreCase("Shared")) {
-            // Get the cql file(s)
-            for (File file : topic.listFiles()) {
-              // Consume the cql file and convert to elm
-              if (file.getName().endsWith(".cql")) {
-                try {
-                  // Read the file
-                  String cql = CqlUtils.readFile(cdsLibraryPath + "/" + topicName + "/" + file.getName());
-                  String elm = CqlUtils.cqlToElm(cql, CqlUtils.RequestType.XML);
-
-                  String elmFileName = file.toPath().toString().replaceAll(".cql", ".elm.xml");
-                  FileWriter writer = new FileWriter(elmFileName);
-                  writer.write(elm);
-                  writer.close();
-                  logger.info("DebugEndpoing::Converted elm:" + elmFileName);
-                } catch (Exception e) {
-                  logger.log(Level.SEVERE, "DebugEndpoint::convertAllCqlToElm", e);
-                  String description = "Unable to convert " + file.getName() + " to elm";
-                  Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SERIOUS_FAILURE, null, request,
-                      description);
-                  return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
-                }
-              }
-            }
-          }
-        }
+      String elmFolder = PriorAuthRule.getElmFolder();
+      try {
+        if (elmFolder == null)
+          throw new IllegalArgumentException("CDS_library_elm is not set");
+        // Compiled into the ELM folder the rules are read from, the CDS Library
+        // clone is left untouched
+        ElmCompiler.compileLibrary(new File(cdsLibraryPath), new File(elmFolder), ElmCompiler.DEBUG_VERSION);
+        PriorAuthRule.invalidateRuleCache();
+      } catch (IOException | IllegalArgumentException e) {
+        logger.log(Level.SEVERE, "DebugEndpoint::convertAllCqlToElm", e);
+        String description = "Unable to convert " + cdsLibraryPath + " to elm";
+        Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E, AuditEventOutcome.SERIOUS_FAILURE, null, request,
+            description);
+        return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
       }
 
       String description = "Convert all CDS cql rule files to elm in debug mode";
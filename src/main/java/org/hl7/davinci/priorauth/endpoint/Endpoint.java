@@ -2,27 +2,37 @@ package org.hl7.davinci.priorauth.endpoint;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.FhirSerializer;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.priorauth.PropertyProvider;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.SearchPage;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import com.google.common.net.HttpHeaders;
 
@@ -38,6 +48,17 @@ public class Endpoint {
     static String REQUIRES_PATIENT = "Patient Identifier is required: DELETE {resourceType}?patient.identifier=";
     static String DELETED_MSG = "Deleted resource and all related and referenced resources.";
     static String SQL_ERROR = "Unable to perform operation. SQL error while processing. Check logs for more details.";
+    static String INVALID_COUNT = "_count must be a positive integer";
+
+    static final String PARAM_COUNT = "_count";
+    static final String PARAM_CURSOR = "_cursor";
+
+    /**
+     * Tables whose searches are always paged since they grow with every request
+     */
+    static final Set<Table> PAGED_TABLES = EnumSet.of(Table.CLAIM, Table.CLAIM_RESPONSE, Table.SUBSCRIPTION);
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 1000;
 
     /**
      * Read a resource from an endpoint in either JSON or XML
@@ -45,9 +66,11 @@ public class Endpoint {
      * @param table         - the Table to read from.
      * @param constraintMap - map of the column names and values for the SQL query.
      * @param requestType   - the RequestType of the request.
-     * @return the desired resource if successful and an error message otherwise
+     * @return the desired resource if successful and an error message otherwise.
+     *         Search results are a StreamingSearchBundle written as the rows are
+     *         read unless _pretty=true was requested.
      */
-    public static ResponseEntity<String> read(Table table, Map<String, Object> constraintMap,
+    public static ResponseEntity<Object> read(Table table, Map<String, Object> constraintMap,
             HttpServletRequest request, RequestType requestType) {
         logger.info("GET /" + table.value() + ":" + constraintMap.toString() + " fhir+" + requestType.name());
         App.setBaseUrl(Endpoint.getServiceBaseUrl(request));
@@ -59,15 +82,35 @@ public class Endpoint {
                     description);
             return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
         }
-        String formattedData = null;
+        Object formattedData = null;
         String description = "Read " + referenceUrl;
         if ((!constraintMap.containsKey("id") || constraintMap.get("id") == null)
                 && (!constraintMap.containsKey("claimId") || constraintMap.get("claimId") == null)) {
             // Search
             constraintMap.remove("id");
-            Bundle searchBundle;
-            searchBundle = App.getDB().search(table, constraintMap);
-            formattedData = FhirUtils.getFormattedData(searchBundle, requestType);
+            Integer count;
+            try {
+                count = getPageSize(table, request);
+            } catch (NumberFormatException e) {
+                OperationOutcome outcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+                        INVALID_COUNT);
+                return new ResponseEntity<>(FhirUtils.getFormattedData(outcome, requestType), HttpStatus.BAD_REQUEST);
+            }
+            if (count != null) {
+                try {
+                    Bundle page = searchPage(table, constraintMap, count, request);
+                    formattedData = FhirUtils.getFormattedData(page, requestType);
+                } catch (IllegalArgumentException e) {
+                    OperationOutcome outcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+                            e.getMessage());
+                    return new ResponseEntity<>(FhirUtils.getFormattedData(outcome, requestType),
+                            HttpStatus.BAD_REQUEST);
+                }
+            } else if (FhirSerializer.isPrettyRequested()) {
+                Bundle searchBundle = App.getDB().search(table, constraintMap);
+                formattedData = FhirUtils.getFormattedData(searchBundle, requestType);
+            } else
+                formattedData = new StreamingSearchBundle(table, constraintMap, requestType);
             description = "Searched for " + referenceUrl;
         } else {
             // Read
@@ -101,6 +144,70 @@ public class Endpoint {
         return new ResponseEntity<>(formattedData, HttpStatus.OK);
     }
 
+    /**
+     * Get the page size for a search from the _count parameter. Searches on the
+     * paged tables, or continuing from a _cursor, use the configured default when
+     * _count is not given.
+     * 
+     * @param table   - the Table being searched.
+     * @param request - the HttpServletRequest from the controller.
+     * @return the page size or null if the search is not paged
+     * @throws NumberFormatException if _count is not a positive integer
+     */
+    static Integer getPageSize(Table table, HttpServletRequest request) {
+        String countParam = request.getParameter(PARAM_COUNT);
+        int maxCount = PropertyProvider.getIntProperty("search_max_count", MAX_PAGE_SIZE);
+        if (countParam != null) {
+            int count = Integer.parseInt(countParam.trim());
+            if (count <= 0)
+                throw new NumberFormatException(INVALID_COUNT);
+            return Math.min(count, maxCount);
+        }
+        if (PAGED_TABLES.contains(table) || request.getParameter(PARAM_CURSOR) != null)
+            return Math.min(PropertyProvider.getIntProperty("search_default_count", DEFAULT_PAGE_SIZE), maxCount);
+        return null;
+    }
+
+    /**
+     * Search for one page of results and build the searchset Bundle with self,
+     * next and previous links. The total is left out since counting every match
+     * would cost as much as the unpaged search.
+     * 
+     * @param table         - the Table to search in.
+     * @param constraintMap - the search constraints.
+     * @param count         - the page size.
+     * @param request       - the HttpServletRequest from the controller.
+     * @return the searchset Bundle for the page
+     * @throws IllegalArgumentException if the _cursor parameter is not valid
+     */
+    static Bundle searchPage(Table table, Map<String, Object> constraintMap, int count,
+            HttpServletRequest request) {
+        SearchPage page = App.getDB().searchPage(table, constraintMap, count, request.getParameter(PARAM_CURSOR));
+
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleType.SEARCHSET);
+        bundle.setTimestamp(new Date());
+        for (Resource resource : page.getResources()) {
+            BundleEntryComponent entry = bundle.addEntry();
+            entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + resource.getIdElement().getIdPart());
+            entry.setResource(resource);
+        }
+
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        UriComponentsBuilder self = UriComponentsBuilder.fromHttpUrl(getServiceBaseUrl(request) + path)
+                .query(request.getQueryString()).replaceQueryParam(PARAM_COUNT, count);
+        bundle.addLink().setRelation("self").setUrl(self.build(true).toUriString());
+        if (page.getNextCursor() != null)
+            bundle.addLink().setRelation("next")
+                    .setUrl(self.cloneBuilder().replaceQueryParam(PARAM_CURSOR, page.getNextCursor()).build(true)
+                            .toUriString());
+        if (page.getPreviousCursor() != null)
+            bundle.addLink().setRelation("previous")
+                    .setUrl(self.cloneBuilder().replaceQueryParam(PARAM_CURSOR, page.getPreviousCursor())
+                            .build(true).toUriString());
+        return bundle;
+    }
+
     /**
      * Delete a specific resource
      * 
@@ -129,7 +236,9 @@ public class Endpoint {
             outcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.REQUIRED, REQUIRES_PATIENT);
         } else {
             // Delete the specified resource..
-            if (App.getDB().delete(table, id, patient)) {
+            boolean deleted = table == Table.SUBSCRIPTION ? App.getSubscriptionRegistry().delete(id, patient)
+                    : App.getDB().delete(table, id, patient);
+            if (deleted) {
                 outcome = FhirUtils.buildOutcome(IssueSeverity.INFORMATION, IssueType.DELETED, DELETED_MSG);
                 auditOutcome = AuditEventOutcome.SUCCESS;
             } else
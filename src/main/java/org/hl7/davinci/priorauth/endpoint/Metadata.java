@@ -13,6 +13,7 @@ import org.hl7.davinci.priorauth.Audit;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementImplementationComponent;
@@ -54,7 +55,7 @@ public class Metadata {
     String description = "Read metadata";
     Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, "/metadata", request,
         description);
-    String json = FhirUtils.json(capabilityStatement);
+    String json = FhirUtils.getFormattedData(capabilityStatement, RequestType.JSON);
     return new ResponseEntity<>(json, HttpStatus.OK);
   }
 
@@ -66,7 +67,7 @@ public class Metadata {
     String description = "Read metadata";
     Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, "/metadata", request,
         description);
-    String xml = FhirUtils.xml(capabilityStatement);
+    String xml = FhirUtils.getFormattedData(capabilityStatement, RequestType.XML);
     return new ResponseEntity<>(xml, HttpStatus.OK);
   }
 
@@ -0,0 +1,107 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.FhirSerializer;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * A searchset Bundle which is written entry by entry to the response. Results
+ * are read from the database a page at a time and no connection is held while
+ * writing, so only one page is in memory. The total is the number of entries
+ * written: JSON carries it after the entries, XML (which orders total before
+ * the entries) leaves it out. Written by StreamingSearchBundleConverter on the
+ * request thread. If the search fails part way the Bundle is not finished and
+ * writing fails, so the client never gets a truncated Bundle that looks
+ * complete.
+ */
+public class StreamingSearchBundle {
+
+    private final Table table;
+    private final Map<String, Object> constraintMap;
+    private final RequestType requestType;
+
+    public StreamingSearchBundle(Table table, Map<String, Object> constraintMap, RequestType requestType) {
+        this.table = table;
+        this.constraintMap = constraintMap;
+        this.requestType = requestType;
+    }
+
+    /**
+     * Run the search and write the Bundle to the stream as compact JSON or XML.
+     * The stream is flushed but not closed.
+     *
+     * @param out - the response body.
+     * @throws IOException if the stream or the search fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // The parsers must not close the response between entries
+        Writer entryWriter = new FilterWriter(writer) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        String timestamp = new InstantType(new Date()).getValueAsString();
+        if (requestType == RequestType.JSON) {
+            writer.write("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"timestamp\":\"" + timestamp + "\"");
+            int[] written = { 0 };
+            int total = App.getDB().search(table, constraintMap, (fullUrl, resource) -> {
+                // FHIR JSON does not allow empty arrays so entry is opened on the first result
+                writer.write(written[0]++ == 0 ? ",\"entry\":[" : ",");
+                writer.write("{\"fullUrl\":\"" + escapeJson(fullUrl) + "\",\"resource\":");
+                writeResource(resource, entryWriter);
+                writer.write("}");
+            });
+            checkSearch(total);
+            if (written[0] > 0)
+                writer.write("]");
+            writer.write(",\"total\":" + written[0] + "}");
+        } else {
+            writer.write("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"searchset\"/><timestamp value=\""
+                    + timestamp + "\"/>");
+            int total = App.getDB().search(table, constraintMap, (fullUrl, resource) -> {
+                writer.write("<entry><fullUrl value=\"" + escapeXml(fullUrl) + "\"/><resource>");
+                writeResource(resource, entryWriter);
+                writer.write("</resource></entry>");
+            });
+            checkSearch(total);
+            writer.write("</Bundle>");
+        }
+        writer.flush();
+    }
+
+    // Database.search returns -1 when a query failed
+    private void checkSearch(int total) throws IOException {
+        if (total < 0)
+            throw new IOException("Search of " + table.value() + " failed, the Bundle is incomplete");
+    }
+
+    private void writeResource(Resource resource, Writer entryWriter) throws IOException {
+        FhirSerializer.encode(resource, requestType, false, entryWriter);
+    }
+
+    private static String escapeJson(String value) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
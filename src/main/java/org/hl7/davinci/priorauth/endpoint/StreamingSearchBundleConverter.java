@@ -0,0 +1,41 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * Writes a StreamingSearchBundle response body in whichever FHIR media type the
+ * endpoint produces.
+ */
+public class StreamingSearchBundleConverter extends AbstractHttpMessageConverter<StreamingSearchBundle> {
+
+    public StreamingSearchBundleConverter() {
+        super(MediaType.ALL);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return StreamingSearchBundle.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected StreamingSearchBundle readInternal(Class<? extends StreamingSearchBundle> clazz,
+            HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        throw new HttpMessageNotReadableException("StreamingSearchBundle is write only", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(StreamingSearchBundle bundle, HttpOutputMessage outputMessage) throws IOException {
+        bundle.writeTo(outputMessage.getBody());
+    }
+}
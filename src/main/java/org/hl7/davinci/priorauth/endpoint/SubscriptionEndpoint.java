@@ -22,7 +22,9 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.FhirSerializer;
 import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.NotificationDispatcher;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
@@ -39,7 +41,6 @@ import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
 import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
 import org.hl7.fhir.r4.model.Type;
 
-import ca.uhn.fhir.parser.IParser;
 
 /**
  * The Subscription endpoint to create new subscriptions or delete outdated
@@ -56,12 +57,12 @@ public class SubscriptionEndpoint {
     static final String SUBSCRIPTION_ADDED_SUCCESS = "Subscription successful";
     static final String PROCESS_FAILED = "Unable to process the request properly. Check the log for more details.";
     static final String INVALID_CHANNEL_TYPE = "Invalid channel type. Must be rest-hook or websocket";
-    static final String PAS_SUBSCRIPTION_TOPIC = "http://hl7.org/fhir/us/davinci-pas/SubscriptionTopic/PASSubscriptionTopic";
+    public static final String PAS_SUBSCRIPTION_TOPIC = "http://hl7.org/fhir/us/davinci-pas/SubscriptionTopic/PASSubscriptionTopic";
     static final String SUBSCRIPTION_CRITERIA_EXTENSION_URL = "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-filter-criteria";
-    static final String SUBSCRIPTION_PAYLOAD_EXTENSION_URL = "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-payload-content";
+    public static final String SUBSCRIPTION_PAYLOAD_EXTENSION_URL = "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-payload-content";
 
     @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
-    public ResponseEntity<String> readSubscriptionJSON(HttpServletRequest request,
+    public ResponseEntity<Object> readSubscriptionJSON(HttpServletRequest request,
             @RequestParam(name = "identifier", required = false) String id,
             @RequestParam(name = "patient.identifier") String patient) {
         Map<String, Object> constraintMap = new HashMap<>();
@@ -71,7 +72,7 @@ public class SubscriptionEndpoint {
     }
 
     @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
-    public ResponseEntity<String> readSubscriptionXML(HttpServletRequest request,
+    public ResponseEntity<Object> readSubscriptionXML(HttpServletRequest request,
             @RequestParam(name = "identifier", required = false) String id,
             @RequestParam(name = "patient.identifier") String patient) {
         Map<String, Object> constraintMap = new HashMap<>();
@@ -112,9 +113,7 @@ public class SubscriptionEndpoint {
         String description = "Subscribe to pended Claim";
         AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
         try {
-            IParser parser = requestType == RequestType.JSON ? App.getFhirContext().newJsonParser()
-                    : App.getFhirContext().newXmlParser();
-            IBaseResource resource = parser.parseResource(body);
+            IBaseResource resource = FhirSerializer.parse(body, requestType);
             if (resource instanceof Subscription) {
                 Subscription subscription = (Subscription) resource;
                 SubscriptionChannelType subscriptionType = subscription.getChannel().getType();
@@ -226,6 +225,10 @@ public class SubscriptionEndpoint {
         if (payload == null || payload.isEmpty()) {
             throw new RuntimeException("Subscription payload extension value is null or empty");
         }
+        if (NotificationDispatcher.PayloadContent.fromString(payload.primitiveValue()) == null) {
+            throw new RuntimeException("Subscription payload extension value " + payload.primitiveValue()
+                    + " is not one of empty, id-only or full-resource");
+        }
         
 
         // Determine which variable is which
@@ -260,7 +263,7 @@ public class SubscriptionEndpoint {
         dataMap.put("status", status);
         dataMap.put("resource", subscription);
         dataMap.put(endVarName, end);
-        if (App.getDB().write(Table.SUBSCRIPTION, dataMap))
+        if (App.getSubscriptionRegistry().add(orgId, subscription, dataMap))
             return subscription;
         else
             return null;
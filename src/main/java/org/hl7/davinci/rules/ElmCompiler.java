@@ -0,0 +1,176 @@
+package org.hl7.davinci.rules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.ruleutils.CqlUtils;
+
+/**
+ * Compiles the CQL rules of a CDS Library to ELM XML. Each topic's .cql files
+ * are translated to .elm.xml files in the same topic folder of an output
+ * folder, so the CDS Library clone itself is never written to. A manifest
+ * recording the library version and the hash of every CQL source is written to
+ * the output folder so a packaged set of rules can be traced back to its
+ * sources. The manifest only depends on the sources, so compiling the same
+ * sources twice gives the same files.
+ *
+ * Run by the compileCdsElm Gradle task and by /debug/ConvertAll, which both
+ * write to the build folder the rules are read from (CDS_library_elm).
+ */
+public class ElmCompiler {
+
+    private static final Logger logger = PALogger.getLogger();
+
+    public static final String MANIFEST_FILE = "elm-manifest.properties";
+    // Version recorded for rules compiled from the working copy by /debug/ConvertAll
+    public static final String DEBUG_VERSION = "debug";
+
+    private ElmCompiler() {
+    }
+
+    /**
+     * Compile every topic of a CDS Library into another folder
+     *
+     * @param libraryDir - the folder holding one folder per topic.
+     * @param outputDir  - the folder the ELM files and the manifest are written
+     *                   to, one folder per topic.
+     * @param version    - the version of the library recorded in the manifest.
+     * @return the ELM files written
+     * @throws IOException              if a file cannot be read or written
+     * @throws IllegalArgumentException if a CQL file does not translate or the
+     *                                  version is missing
+     */
+    public static List<File> compileLibrary(File libraryDir, File outputDir, String version) throws IOException {
+        if (version == null || version.isEmpty())
+            throw new IllegalArgumentException("The CDS Library version is required");
+        File[] topics = libraryDir.listFiles();
+        if (topics == null)
+            throw new IOException("CDS Library " + libraryDir + " does not exist");
+        Arrays.sort(topics, Comparator.comparing(File::getName));
+
+        Map<String, String> manifest = new TreeMap<>();
+        manifest.put("version", version);
+
+        List<File> elmFiles = new ArrayList<>();
+        for (File topic : topics) {
+            String topicName = topic.getName();
+            // Ignore shared folder and hidden folder
+            if (!topic.isDirectory() || topicName.startsWith(".") || topicName.equalsIgnoreCase("Shared"))
+                continue;
+
+            File[] files = topic.listFiles((dir, name) -> name.endsWith(".cql"));
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            File topicOutputDir = new File(outputDir, topicName);
+            for (File cqlFile : files) {
+                elmFiles.add(compile(cqlFile, topicOutputDir));
+                manifest.put(topicName + "/" + cqlFile.getName(), sha256(cqlFile.toPath()));
+            }
+        }
+
+        // Written sorted and without the date Properties.store adds, so the
+        // manifest is reproducible
+        List<String> lines = new ArrayList<>();
+        lines.add("# Compiled CDS Library rules");
+        for (Map.Entry<String, String> entry : manifest.entrySet())
+            lines.add(escape(entry.getKey()) + "=" + escape(entry.getValue()));
+        Files.createDirectories(outputDir.toPath());
+        Files.write(new File(outputDir, MANIFEST_FILE).toPath(), lines, StandardCharsets.ISO_8859_1);
+        logger.info("ElmCompiler::compileLibrary:Compiled " + elmFiles.size() + " rules in " + libraryDir);
+        return elmFiles;
+    }
+
+    /**
+     * Compile a single CQL file to the .elm.xml file next to it
+     *
+     * @param cqlFile - the CQL file.
+     * @return the ELM file written
+     * @throws IOException              if the file cannot be read or written
+     * @throws IllegalArgumentException if the CQL does not translate
+     */
+    public static File compile(File cqlFile) throws IOException {
+        return compile(cqlFile, cqlFile.getParentFile());
+    }
+
+    /**
+     * Compile a single CQL file to an .elm.xml file of the same name
+     *
+     * @param cqlFile   - the CQL file.
+     * @param outputDir - the folder the ELM file is written to.
+     * @return the ELM file written
+     * @throws IOException              if the file cannot be read or written
+     * @throws IllegalArgumentException if the CQL does not translate
+     */
+    public static File compile(File cqlFile, File outputDir) throws IOException {
+        String cql = new String(Files.readAllBytes(cqlFile.toPath()), StandardCharsets.UTF_8);
+        String elm;
+        try {
+            elm = CqlUtils.cqlToElm(cql, CqlUtils.RequestType.XML);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(cqlFile + ": " + e.getMessage(), e);
+        }
+
+        String name = cqlFile.getName();
+        File elmFile = new File(outputDir, name.substring(0, name.length() - ".cql".length()) + ".elm.xml");
+        Files.createDirectories(outputDir.toPath());
+        Files.write(elmFile.toPath(), elm.getBytes(StandardCharsets.UTF_8));
+        logger.fine("ElmCompiler::compile:Converted elm:" + elmFile);
+        return elmFile;
+    }
+
+    // Escape a key or value the way Properties.store does for ASCII text
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            if ("=: #!\\".indexOf(c) >= 0)
+                escaped.append('\\');
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compile a CDS Library from the command line
+     *
+     * @param args - the library folder, the library version and the output
+     *             folder.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: ElmCompiler <library folder> <version> <output folder>");
+            System.exit(2);
+        }
+        try {
+            File outputDir = new File(args[2]);
+            List<File> elmFiles = compileLibrary(new File(args[0]), outputDir, args[1]);
+            System.out.println("Compiled " + elmFiles.size() + " CQL rules in " + args[0] + " to " + outputDir);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Unable to compile " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -4,17 +4,22 @@ import java.io.File;
 import java.nio.file.Files;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.cqframework.cql.elm.execution.Library;
 import org.opencds.cqf.cql.execution.Context;
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.PropertyProvider;
+import org.hl7.davinci.priorauth.Database.Row;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.davinci.priorauth.FhirUtils.Disposition;
 import org.hl7.davinci.ruleutils.CqlUtils;
@@ -29,6 +34,19 @@ public class PriorAuthRule {
 
     private static final Logger logger = PALogger.getLogger();
 
+    private static final String FHIR_MODEL_URI = "http://hl7.org/fhir";
+
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+
+    private static final RuleLibraryCache LIBRARIES = new RuleLibraryCache(PropertyProvider
+            .getIntProperty("rules_cache_check_interval", (int) RuleLibraryCache.DEFAULT_CHECK_INTERVAL_MS));
+
+    /**
+     * Routing of (system, code) to rule, replaced whenever the Rules table is
+     * populated
+     */
+    private static volatile RuleIndex ruleIndex = RuleIndex.EMPTY;
+
     private static final Map<String, String> CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME;
     static {
         Map<String, String> tempMap = new HashMap<String, String>();
@@ -67,6 +85,21 @@ public class PriorAuthRule {
      * @return the disposition of Granted, Pending, or Denied
      */
     public static Disposition computeDisposition(Bundle bundle, int sequence) {
+        return computeDisposition(new RuleEvaluationSession(bundle), sequence);
+    }
+
+    /**
+     * Determine the disposition of a claim item within an evaluation session.
+     * Items of the session routed to a rule which has already been evaluated
+     * reuse its disposition.
+     * 
+     * @param session  - the evaluation session of the Claim Bundle
+     * @param sequence - the sequence ID of the claim item to compute the
+     *                 disposition of
+     * @return the disposition of Granted, Pending, or Denied
+     */
+    public static Disposition computeDisposition(RuleEvaluationSession session, int sequence) {
+        Bundle bundle = session.getBundle();
         logger.info("PriorAuthRule::computeDisposition:Bundle/" + FhirUtils.getIdFromResource(bundle) + "/" + sequence);
 
         Claim claim = FhirUtils.getClaimFromRequestBundle(bundle);
@@ -78,16 +111,7 @@ public class PriorAuthRule {
             logger.warning("PriorAuthRule::getRuleFileFromItem:Code does not exist in rules table");
             disposition = Disposition.PENDING;
         } else {
-            String elm = CqlUtils.readFile(elmFile);
-            Context context = CqlUtils.createBundleContextFromElm(elm, bundle, App.getFhirContext(),
-                    App.getModelResolver());
-
-            if (executeRule(context, Rule.GRANTED))
-                disposition = Disposition.GRANTED;
-            else if (executeRule(context, Rule.PENDED))
-                disposition = Disposition.PENDING;
-            else
-                disposition = Disposition.DENIED;
+            disposition = session.evaluate(elmFile, file -> evaluateRuleFile(file, bundle));
         }
 
         logger.info("PriorAuthRule::computeDisposition:" + disposition.value());
@@ -96,12 +120,121 @@ public class PriorAuthRule {
     }
 
     /**
-     * Use the CDS Library Metadata to populate the table
+     * Evaluate a rule file against the Bundle. Both rule expressions are run in
+     * one Context with expression caching on so the definitions and retrieves
+     * PRIORAUTH_PENDED shares with PRIORAUTH_GRANTED are only evaluated once.
+     * 
+     * @param elmFile - path to the ELM XML rule file
+     * @param bundle  - the Claim Bundle
+     * @return the disposition of Granted, Pending, or Denied
+     */
+    private static Disposition evaluateRuleFile(String elmFile, Bundle bundle) {
+        Library library = LIBRARIES.get(elmFile);
+        if (library == null) {
+            logger.warning("PriorAuthRule::computeDisposition:Unable to load rule " + elmFile);
+            return Disposition.PENDING;
+        }
+        Context context = new Context(library);
+        context.setExpressionCaching(true);
+        context.registerDataProvider(FHIR_MODEL_URI,
+                CqlUtils.createDataProvider(bundle, App.getFhirContext(), App.getModelResolver()));
+
+        if (executeRule(context, Rule.GRANTED))
+            return Disposition.GRANTED;
+        else if (executeRule(context, Rule.PENDED))
+            return Disposition.PENDING;
+        else
+            return Disposition.DENIED;
+    }
+
+    /**
+     * Warm up the rules on a background thread so the first claims after startup
+     * do not pay for loading them. Disabled with rules_warmup=false.
+     */
+    public static void startWarmup() {
+        if (!PropertyProvider.getBooleanProperty("rules_warmup", true))
+            return;
+        Thread thread = new Thread(PriorAuthRule::warmup, "Rules-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Load the Library of every rule in the index and evaluate each one a few
+     * times against an empty Bundle so the evaluation code paths are compiled by
+     * the JIT. The rules expect a Claim so the evaluations are expected to fail
+     * or deny, only the time spent matters.
+     * 
+     * @return the number of rule files loaded
+     */
+    public static int warmup() {
+        int iterations = PropertyProvider.getIntProperty("rules_warmup_iterations", DEFAULT_WARMUP_ITERATIONS);
+        long start = System.currentTimeMillis();
+        Set<String> elmFiles = new LinkedHashSet<>();
+        for (RuleIndex.Route route : ruleIndex.getRoutes())
+            elmFiles.add(getRuleFile(route));
+
+        int loaded = 0;
+        for (String elmFile : elmFiles) {
+            if (LIBRARIES.get(elmFile) == null)
+                continue;
+            loaded++;
+            for (int i = 0; i < iterations; i++) {
+                try {
+                    evaluateRuleFile(elmFile, new Bundle());
+                } catch (RuntimeException e) {
+                    logger.fine("PriorAuthRule::warmup:" + elmFile + ":" + e.getMessage());
+                }
+            }
+        }
+
+        logger.info("PriorAuthRule::warmup:Loaded " + loaded + " of " + elmFiles.size() + " rules in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return loaded;
+    }
+
+    /**
+     * Drop every cached rule Library so the rule files are read again on next
+     * use
+     */
+    public static void invalidateRuleCache() {
+        LIBRARIES.invalidateAll();
+    }
+
+    /**
+     * Get the state of the rule Library cache
+     * 
+     * @return map of metric name to value
+     */
+    public static Map<String, Object> getRuleCacheMetrics() {
+        return LIBRARIES.getMetrics();
+    }
+
+    /**
+     * Use the CDS Library Metadata to populate the table and rebuild the rule
+     * index from it
      * 
      * @return true if all of the mappings were written successfully, false
      *         otherwise
      */
     public static boolean populateRulesTable() {
+        boolean written = writeRulesTable();
+        reloadRuleIndex();
+        return written;
+    }
+
+    /**
+     * Rebuild the (system, code) to rule index from the Rules table and swap it
+     * in. Evaluations already running keep using the index they started with.
+     */
+    public static void reloadRuleIndex() {
+        List<Row> rows = App.getDB().selectColumns(Table.RULES, Collections.emptyMap(), "system", "code", "topic",
+                "rule");
+        ruleIndex = RuleIndex.build(rows);
+        logger.info("PriorAuthRule::reloadRuleIndex:Indexed " + ruleIndex.size() + " codes");
+    }
+
+    private static boolean writeRulesTable() {
         String cdsLibraryPath = PropertyProvider.getProperty("CDS_library");
         File filePath = new File(cdsLibraryPath);
 
@@ -174,20 +307,42 @@ public class PriorAuthRule {
     }
 
     /**
-     * Get the Rule rule file name based on the requested item
+     * Get the Rule rule file name based on the requested item. Every coding of
+     * the item is tried in order.
      * 
      * @param claimItem - the item requested
      * @return name of the rule file
      */
     private static String getRuleFileFromItem(ItemComponent claimItem) {
-        Map<String, Object> constraintParams = new HashMap<String, Object>();
-        constraintParams.put("code", FhirUtils.getCode(claimItem.getProductOrService()));
-        constraintParams.put("system", FhirUtils.getSystem(claimItem.getProductOrService()));
-        String topic = App.getDB().readString(Table.RULES, constraintParams, "topic");
-        String rule = App.getDB().readString(Table.RULES, constraintParams, "rule");
-        if (topic == null || rule == null)
+        RuleIndex.Route route = ruleIndex.lookup(claimItem.getProductOrService());
+        if (route == null)
             return null;
-        return PropertyProvider.getProperty("CDS_library") + topic + "/" + rule;
+        return getRuleFile(route);
+    }
+
+    /**
+     * Get the ELM file of a rule. Rules are read from the compiled ELM folder
+     * (CDS_library_elm, written by the compileCdsElm build task or
+     * /debug/ConvertAll) and from the CDS Library itself when a rule has not
+     * been compiled there.
+     * 
+     * @param route - the topic and rule file name
+     * @return path of the rule file
+     */
+    static String getRuleFile(RuleIndex.Route route) {
+        String rule = route.getTopic() + "/" + route.getRule();
+        String elmFolder = getElmFolder();
+        if (elmFolder != null && new File(elmFolder, rule).isFile())
+            return new File(elmFolder, rule).getPath();
+        return PropertyProvider.getProperty("CDS_library") + rule;
+    }
+
+    /**
+     * @return the folder the CDS Library rules are compiled to, null if it is
+     *         not configured
+     */
+    public static String getElmFolder() {
+        return PropertyProvider.getProperty("CDS_library_elm");
     }
 
 }
\ No newline at end of file
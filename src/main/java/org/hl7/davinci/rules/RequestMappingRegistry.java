@@ -0,0 +1,156 @@
+package org.hl7.davinci.rules;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * The request mapping table indexed by the (system, code) of its
+ * productOrService. The table is parsed once and replaced as a whole when it
+ * is reloaded, so lookups from any number of threads never read the file or
+ * take a lock.
+ */
+public class RequestMappingRegistry {
+
+    private static final Logger logger = PALogger.getLogger();
+
+    public static final String DEFAULT_TABLE = "requestMappingTable.json";
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private final String location;
+    private volatile Map<String, RequestMapping> mappings;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Create a registry for a request mapping table. The table is loaded on
+     * first use.
+     *
+     * @param location - path to the table file, or the name of a classpath
+     *                 resource when no such file exists.
+     */
+    public RequestMappingRegistry(String location) {
+        this.location = location;
+    }
+
+    /**
+     * Find the mapping for a concept. When more than one of its codings has a
+     * mapping the last of them is used, as it always has been.
+     *
+     * @param concept - the concept, e.g. Claim.item.productOrService.
+     * @return the mapping of the last coding with one or null if none have one
+     */
+    public RequestMapping lookup(CodeableConcept concept) {
+        lookups.incrementAndGet();
+        Map<String, RequestMapping> current = getMappings();
+        List<Coding> codings = concept.getCoding();
+        for (int i = codings.size() - 1; i >= 0; i--) {
+            Coding coding = codings.get(i);
+            RequestMapping mapping = current.get(key(coding.getSystem(), coding.getCode()));
+            if (mapping != null)
+                return mapping;
+        }
+        return null;
+    }
+
+    /**
+     * Read the table again, keeping the current mappings if it cannot be read
+     *
+     * @return true if the table was reloaded, false otherwise
+     */
+    public boolean reload() {
+        try {
+            mappings = load();
+            reloads.incrementAndGet();
+            logger.info("RequestMappingRegistry::reload:Loaded " + mappings.size() + " request mappings from " + location);
+            return true;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warning("RequestMappingRegistry::reload:Unable to read " + location + ":" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of (system, code) pairs in the table
+     */
+    public int size() {
+        return getMappings().size();
+    }
+
+    /**
+     * Get the state of the registry
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("location", location);
+        metrics.put("size", size());
+        metrics.put("lookups", lookups.get());
+        metrics.put("reloads", reloads.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private Map<String, RequestMapping> getMappings() {
+        Map<String, RequestMapping> current = mappings;
+        if (current == null) {
+            synchronized (this) {
+                if (mappings == null && !reload())
+                    mappings = Collections.emptyMap();
+                current = mappings;
+            }
+        }
+        return current;
+    }
+
+    private Map<String, RequestMapping> load() throws IOException {
+        List<RequestMapping> table;
+        try (InputStream in = open()) {
+            table = new ObjectMapper().readValue(in, new TypeReference<List<RequestMapping>>() {
+            });
+        }
+
+        // When a (system, code) appears more than once the first entry wins
+        Map<String, RequestMapping> index = new HashMap<>();
+        for (RequestMapping mapping : table) {
+            Coding productOrService = mapping.getProductOrService();
+            if (productOrService != null)
+                index.putIfAbsent(key(productOrService.getSystem(), productOrService.getCode()), mapping);
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    private InputStream open() throws IOException {
+        File file = new File(location);
+        if (file.isFile())
+            return new FileInputStream(file);
+        InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(location);
+        if (in == null)
+            throw new IOException(location + " not found");
+        return in;
+    }
+
+    private static String key(String system, String code) {
+        return String.valueOf(system) + KEY_SEPARATOR + String.valueOf(code);
+    }
+}
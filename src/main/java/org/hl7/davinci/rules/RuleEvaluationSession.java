@@ -0,0 +1,135 @@
+package org.hl7.davinci.rules;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.FhirUtils.Disposition;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * The rule evaluations of one Claim Bundle. A rule is evaluated against the
+ * whole Bundle, not a single item, so every item routed to the same rule file
+ * has the same disposition. The session evaluates each rule file once and the
+ * other items of the Bundle share the result, including items processed on
+ * other threads at the same time.
+ */
+public class RuleEvaluationSession {
+
+    private final Bundle bundle;
+    private volatile String encodedBundle;
+    private final Map<String, CompletableFuture<Disposition>> dispositions = new ConcurrentHashMap<>();
+    private final AtomicInteger evaluations = new AtomicInteger();
+    private final AtomicInteger reuses = new AtomicInteger();
+    private final AtomicReference<CompletableFuture<Map<Integer, Disposition>>> batch = new AtomicReference<>();
+
+    /**
+     * Start a session for a Claim Bundle
+     *
+     * @param bundle - the Claim Bundle the rules are evaluated against.
+     */
+    public RuleEvaluationSession(Bundle bundle) {
+        this.bundle = bundle;
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Get the Bundle encoded as FHIR JSON, encoding it on first use so items
+     * sent to an external rules engine share one encoding
+     *
+     * @return the JSON encoding of the Bundle
+     */
+    public String getEncodedBundle() {
+        String encoded = encodedBundle;
+        if (encoded == null) {
+            encoded = FhirUtils.json(bundle);
+            encodedBundle = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Get the disposition of a rule file, evaluating it if no other item of the
+     * Bundle has. If another thread is evaluating the rule this waits for it.
+     *
+     * @param elmFile   - path to the ELM XML rule file.
+     * @param evaluator - evaluates the rule file against the Bundle.
+     * @return the disposition of the rule
+     */
+    public Disposition evaluate(String elmFile, Function<String, Disposition> evaluator) {
+        CompletableFuture<Disposition> created = new CompletableFuture<>();
+        CompletableFuture<Disposition> existing = dispositions.putIfAbsent(elmFile, created);
+        if (existing != null) {
+            reuses.incrementAndGet();
+            return join(existing);
+        }
+
+        evaluations.incrementAndGet();
+        try {
+            created.complete(evaluator.apply(elmFile));
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        }
+        return join(created);
+    }
+
+    /**
+     * Get the dispositions of the items of the Bundle from a single batch
+     * request. The first item to ask makes the request and the other items,
+     * including items processed on other threads at the same time, wait for it
+     * and share its result.
+     *
+     * @param request - makes the batch request.
+     * @return map of item sequence to disposition, or whatever the request
+     *         returned if it was not a map, e.g. null
+     */
+    public Map<Integer, Disposition> getBatchDispositions(Supplier<Map<Integer, Disposition>> request) {
+        CompletableFuture<Map<Integer, Disposition>> created = new CompletableFuture<>();
+        if (!batch.compareAndSet(null, created)) {
+            reuses.incrementAndGet();
+            return join(batch.get());
+        }
+
+        try {
+            created.complete(request.get());
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        }
+        return join(created);
+    }
+
+    /**
+     * @return the number of rule files evaluated
+     */
+    public int getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of items which reused a disposition or a batch
+     */
+    public int getReuses() {
+        return reuses.get();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
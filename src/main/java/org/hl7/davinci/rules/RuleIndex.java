@@ -0,0 +1,114 @@
+package org.hl7.davinci.rules;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Row;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Immutable (system, code) to rule lookup built from the Rules table. The
+ * table only changes when the rules are populated so the index is built once
+ * and replaced as a whole, letting any number of threads read it without
+ * locking.
+ */
+public class RuleIndex {
+
+    public static final RuleIndex EMPTY = new RuleIndex(Collections.emptyMap());
+
+    private static final String KEY_SEPARATOR = "|";
+
+    /**
+     * The rule a code is routed to
+     */
+    public static class Route {
+        private final String topic;
+        private final String rule;
+
+        public Route(String topic, String rule) {
+            this.topic = topic;
+            this.rule = rule;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+    }
+
+    private final Map<String, Route> routes;
+
+    private RuleIndex(Map<String, Route> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Build an index from Rules table rows. When a (system, code) appears more
+     * than once the first row wins, so rows should be ordered most recent first.
+     *
+     * @param rows - rows with the system, code, topic and rule columns.
+     * @return the index
+     */
+    public static RuleIndex build(List<Row> rows) {
+        Map<String, Route> routes = new HashMap<>();
+        for (Row row : rows) {
+            String topic = row.getString("topic");
+            String rule = row.getString("rule");
+            if (topic != null && rule != null)
+                routes.putIfAbsent(key(row.getString("system"), row.getString("code")), new Route(topic, rule));
+        }
+        return new RuleIndex(Collections.unmodifiableMap(routes));
+    }
+
+    /**
+     * Find the rule for a single code
+     *
+     * @param system - the code system.
+     * @param code   - the code.
+     * @return the route or null if the code has no rule
+     */
+    public Route lookup(String system, String code) {
+        return routes.get(key(system, code));
+    }
+
+    /**
+     * Find the rule for a concept by trying each of its codings in order
+     *
+     * @param concept - the concept, e.g. Claim.item.productOrService.
+     * @return the route of the first coding with a rule or null if none have one
+     */
+    public Route lookup(CodeableConcept concept) {
+        for (Coding coding : concept.getCoding()) {
+            Route route = lookup(coding.getSystem(), coding.getCode());
+            if (route != null)
+                return route;
+        }
+        return null;
+    }
+
+    /**
+     * @return every route in the index, one per (system, code) pair
+     */
+    public Collection<Route> getRoutes() {
+        return routes.values();
+    }
+
+    /**
+     * @return the number of (system, code) pairs in the index
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    // Values the Database wrote as null are read back as the string "null"
+    private static String key(String system, String code) {
+        return String.valueOf(system) + KEY_SEPARATOR + String.valueOf(code);
+    }
+}
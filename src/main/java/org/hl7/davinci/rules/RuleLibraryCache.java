@@ -0,0 +1,136 @@
+package org.hl7.davinci.rules;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.ruleutils.CqlUtils;
+
+/**
+ * Keeps the deserialized ELM Library of each rule file in memory so a rule is
+ * only read and unmarshalled once. A Library is not modified while it is
+ * evaluated so one instance is shared by every Context. An entry is reloaded
+ * when its file changes on disk, checked at most once per check interval, or
+ * when it is invalidated.
+ */
+public class RuleLibraryCache {
+
+    private static final Logger logger = PALogger.getLogger();
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 5000;
+
+    private static class Entry {
+        final Library library;
+        final long lastModified;
+        volatile long lastChecked;
+
+        Entry(Library library, long lastModified, long lastChecked) {
+            this.library = library;
+            this.lastModified = lastModified;
+            this.lastChecked = lastChecked;
+        }
+    }
+
+    private final Map<String, Entry> libraries = new ConcurrentHashMap<>();
+    private final long checkIntervalMs;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Create a new cache
+     *
+     * @param checkIntervalMs - how often to check a rule file for changes, a
+     *                        negative value never checks.
+     */
+    public RuleLibraryCache(long checkIntervalMs) {
+        this.checkIntervalMs = checkIntervalMs;
+    }
+
+    /**
+     * Get the Library for a rule file, loading it if it is not cached or the
+     * file has changed
+     *
+     * @param elmFile - path to the ELM XML rule file.
+     * @return the Library or null if the file could not be read
+     */
+    public Library get(String elmFile) {
+        Entry cached = libraries.get(elmFile);
+        if (cached != null && !isStale(elmFile, cached)) {
+            hits.incrementAndGet();
+            return cached.library;
+        }
+
+        // Another thread may have reloaded the file while this one checked it
+        Entry entry = libraries.compute(elmFile,
+                (file, current) -> current == null || current == cached ? load(file) : current);
+        return entry != null ? entry.library : null;
+    }
+
+    /**
+     * Remove a rule file so it is loaded again on next use
+     *
+     * @param elmFile - path to the ELM XML rule file.
+     */
+    public void invalidate(String elmFile) {
+        libraries.remove(elmFile);
+    }
+
+    /**
+     * Remove every rule file
+     */
+    public void invalidateAll() {
+        logger.info("RuleLibraryCache::invalidateAll:Removing " + libraries.size() + " libraries");
+        libraries.clear();
+    }
+
+    /**
+     * Get the current state of the cache
+     *
+     * @return map of metric name to value
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("libraries", libraries.size());
+        metrics.put("hits", hits.get());
+        metrics.put("loads", loads.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private boolean isStale(String elmFile, Entry entry) {
+        if (checkIntervalMs < 0)
+            return false;
+        long now = System.currentTimeMillis();
+        if (now - entry.lastChecked < checkIntervalMs)
+            return false;
+        entry.lastChecked = now;
+        return new File(elmFile).lastModified() != entry.lastModified;
+    }
+
+    private Entry load(String elmFile) {
+        logger.info("RuleLibraryCache::load:" + elmFile);
+        long lastModified = new File(elmFile).lastModified();
+        String elm = CqlUtils.readFile(elmFile);
+        if (elm == null) {
+            failures.incrementAndGet();
+            return null;
+        }
+        // CqlUtils serializes every createLibrary call so only the first use of a
+        // rule pays for it
+        Library library = CqlUtils.createLibrary(elm);
+        if (library == null) {
+            failures.incrementAndGet();
+            logger.severe("RuleLibraryCache::load:Unable to deserialize " + elmFile);
+            return null;
+        }
+        loads.incrementAndGet();
+        return new Entry(library, lastModified, System.currentTimeMillis());
+    }
+}
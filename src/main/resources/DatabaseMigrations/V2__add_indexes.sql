@@ -0,0 +1,16 @@
+-- Indexes for the hot access paths. Every search and read orders by
+-- timestamp DESC so it is the trailing column of each index, followed by id
+-- for the keyset paging tie break.
+
+CREATE INDEX IF NOT EXISTS idx_bundle_patient ON Bundle ("patient", "timestamp" DESC, "id" DESC);
+
+CREATE INDEX IF NOT EXISTS idx_claim_patient ON Claim ("patient", "timestamp" DESC, "id" DESC);
+CREATE INDEX IF NOT EXISTS idx_claim_related ON Claim ("related", "timestamp" DESC);
+
+CREATE INDEX IF NOT EXISTS idx_claimresponse_patient ON ClaimResponse ("patient", "timestamp" DESC, "id" DESC);
+CREATE INDEX IF NOT EXISTS idx_claimresponse_claimid ON ClaimResponse ("claimId", "timestamp" DESC);
+
+CREATE INDEX IF NOT EXISTS idx_subscription_patient ON Subscription ("patient", "timestamp" DESC, "id" DESC);
+CREATE INDEX IF NOT EXISTS idx_subscription_orgid ON Subscription ("orgId", "timestamp" DESC);
+
+CREATE INDEX IF NOT EXISTS idx_client_token ON Client ("token");
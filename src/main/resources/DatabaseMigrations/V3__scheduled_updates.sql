@@ -0,0 +1,18 @@
+-- Pended claim updates waiting to run. A row is written when a pended claim
+-- is scheduled for an update and kept after it runs so the outcome can be
+-- inspected. Rows still scheduled when the server stops are picked up again
+-- on the next start. "claimedAt" is the time an update moved to running; a
+-- row left running by a server which stopped mid-update is moved back to
+-- scheduled once its lease has expired.
+
+CREATE TABLE IF NOT EXISTS ScheduledUpdate (
+    "id" varchar PRIMARY KEY,
+    "patient" varchar,
+    "dueAt" bigint,
+    "status" varchar,
+    "claimedAt" bigint,
+    "timestamp" datetime DEFAULT CURRENT_TIMESTAMP,
+    FOREIGN KEY ("id") REFERENCES Claim("id") ON DELETE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS idx_scheduledupdate_status ON ScheduledUpdate ("status", "dueAt");
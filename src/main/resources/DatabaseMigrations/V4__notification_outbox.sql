@@ -0,0 +1,25 @@
+-- Rest-hook notifications waiting to be delivered. A row is written for every
+-- notification before it is sent and kept afterwards as delivered, or as dead
+-- once it has failed too many times. Notifications to an endpoint are sent in
+-- "sequence" order. Rows still pending when the server stops are sent on the
+-- next start. Delivered rows are deleted once "deliveredAt" is older than the
+-- retention period.
+
+CREATE TABLE IF NOT EXISTS NotificationOutbox (
+    "id" varchar PRIMARY KEY,
+    "subscriptionId" varchar,
+    "endpoint" varchar,
+    "sequence" bigint,
+    "status" varchar,
+    "attempts" int DEFAULT 0,
+    "nextAttempt" bigint,
+    "lastError" varchar,
+    "deliveredAt" bigint,
+    "timestamp" datetime DEFAULT CURRENT_TIMESTAMP,
+    "payload" clob,
+    FOREIGN KEY ("subscriptionId") REFERENCES Subscription("id") ON DELETE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS idx_notificationoutbox_status ON NotificationOutbox ("status", "endpoint", "sequence");
+
+CREATE INDEX IF NOT EXISTS idx_notificationoutbox_delivered ON NotificationOutbox ("status", "deliveredAt");
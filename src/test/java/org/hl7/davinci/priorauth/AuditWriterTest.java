@@ -0,0 +1,158 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hl7.davinci.priorauth.AuditWriter.OverflowPolicy;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AuditWriterTest {
+
+  private Path spillFile;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    spillFile = Files.createTempFile("audit-spill", ".ndjson");
+    Files.delete(spillFile);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    Files.deleteIfExists(spillFile);
+    Files.deleteIfExists(replayFile());
+  }
+
+  private Path replayFile() {
+    return spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+  }
+
+  private static Map<String, Object> auditRow(String id) {
+    Map<String, Object> row = new HashMap<>();
+    row.put("id", id);
+    row.put("type", "110100");
+    row.put("action", "Read");
+    row.put("outcome", "0");
+    row.put("what", null);
+    row.put("query", null);
+    row.put("ip", null);
+    row.put("resource", "{}");
+    return row;
+  }
+
+  private static boolean isWritten(String id) {
+    return id.equals(App.getDB().readString(Table.AUDIT, Collections.singletonMap("id", id), "id"));
+  }
+
+  @Test
+  public void testRowsAreWrittenInBatches() {
+    AuditWriter writer = new AuditWriter(App.getDB(), 10, 2, OverflowPolicy.BLOCK, spillFile);
+    String[] ids = { UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString() };
+    writer.start();
+    for (String id : ids)
+      Assert.assertTrue(writer.submit(auditRow(id)));
+    writer.close();
+
+    for (String id : ids)
+      Assert.assertTrue(isWritten(id));
+    Assert.assertEquals(3L, writer.getMetrics().get("written"));
+
+    // A closed writer hands the row back to the caller
+    Assert.assertFalse(writer.submit(auditRow(UUID.randomUUID().toString())));
+  }
+
+  @Test
+  public void testDropWhenFull() {
+    AuditWriter writer = new AuditWriter(App.getDB(), 1, 10, OverflowPolicy.DROP, spillFile);
+    String kept = UUID.randomUUID().toString();
+    String overflow = UUID.randomUUID().toString();
+    Assert.assertTrue(writer.submit(auditRow(kept)));
+    Assert.assertTrue(writer.submit(auditRow(overflow)));
+    Assert.assertEquals(1L, writer.getMetrics().get("dropped"));
+    writer.close();
+
+    Assert.assertTrue(isWritten(kept));
+    Assert.assertFalse(isWritten(overflow));
+  }
+
+  @Test
+  public void testSpillWhenFull() {
+    AuditWriter writer = new AuditWriter(App.getDB(), 1, 10, OverflowPolicy.SPILL, spillFile);
+    String kept = UUID.randomUUID().toString();
+    String overflow = UUID.randomUUID().toString();
+    Assert.assertTrue(writer.submit(auditRow(kept)));
+    Assert.assertTrue(writer.submit(auditRow(overflow)));
+    Assert.assertEquals(1L, writer.getMetrics().get("spilled"));
+    Assert.assertTrue(Files.exists(spillFile));
+
+    // Spilled rows are replayed into the database on close
+    writer.close();
+    Assert.assertTrue(isWritten(kept));
+    Assert.assertTrue(isWritten(overflow));
+    Assert.assertEquals(1L, writer.getMetrics().get("replayed"));
+    Assert.assertFalse(Files.exists(spillFile));
+  }
+
+  @Test
+  public void testReplayWhileDatabaseIsDown() {
+    // A Database whose connections are closed, as during an outage
+    Database down = new Database();
+    down.close();
+    AuditWriter writer = new AuditWriter(down, 1, 10, OverflowPolicy.SPILL, spillFile);
+    String overflow = UUID.randomUUID().toString();
+    Assert.assertTrue(writer.submit(auditRow(UUID.randomUUID().toString())));
+    Assert.assertTrue(writer.submit(auditRow(overflow)));
+    Assert.assertEquals(1L, writer.getMetrics().get("spilled"));
+
+    // The replay fails and the spilled row is kept instead of being thrown away
+    writer.close();
+    Assert.assertFalse(isWritten(overflow));
+    Assert.assertEquals(0L, writer.getMetrics().get("replayed"));
+    Assert.assertTrue(Files.exists(replayFile()));
+
+    // Once the database is back the kept row is replayed
+    AuditWriter recovered = new AuditWriter(App.getDB(), 1, 10, OverflowPolicy.SPILL, spillFile);
+    recovered.close();
+    Assert.assertTrue(isWritten(overflow));
+    Assert.assertEquals(1L, recovered.getMetrics().get("replayed"));
+    Assert.assertFalse(Files.exists(replayFile()));
+  }
+
+  @Test
+  public void testUnexpectedFailure() {
+    AuditWriter writer = new AuditWriter(App.getDB(), 10, 1, OverflowPolicy.BLOCK, spillFile);
+    String broken = UUID.randomUUID().toString();
+    String next = UUID.randomUUID().toString();
+    Map<String, Object> row = auditRow(broken);
+    row.put("query", new Object() {
+      @Override
+      public String toString() {
+        throw new IllegalStateException("unencodable");
+      }
+    });
+    writer.start();
+    Assert.assertTrue(writer.submit(row));
+    Assert.assertTrue(writer.submit(auditRow(next)));
+    writer.close();
+
+    // The failed batch is counted and the writer carries on with the next one
+    Assert.assertFalse(isWritten(broken));
+    Assert.assertTrue(isWritten(next));
+    Assert.assertEquals(1L, writer.getMetrics().get("failed"));
+    Assert.assertEquals(1L, writer.getMetrics().get("written"));
+  }
+}
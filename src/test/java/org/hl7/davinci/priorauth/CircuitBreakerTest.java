@@ -0,0 +1,78 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.davinci.priorauth.CircuitBreaker.State;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  private AtomicLong now;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setup() {
+    now = new AtomicLong(1000);
+    breaker = new CircuitBreaker("Test", 3, 500, now::get);
+  }
+
+  private void failCalls(int times) {
+    for (int i = 0; i < times; i++) {
+      Assert.assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    failCalls(2);
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.onSuccess();
+    failCalls(2);
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+
+    failCalls(1);
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testHalfOpenAllowsOneProbe() {
+    failCalls(3);
+    now.addAndGet(500);
+    Assert.assertTrue(breaker.tryAcquire());
+    Assert.assertEquals(State.HALF_OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+
+    breaker.onSuccess();
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testFailedProbeReopens() {
+    failCalls(3);
+    now.addAndGet(500);
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+
+    now.addAndGet(499);
+    Assert.assertFalse(breaker.tryAcquire());
+    now.addAndGet(1);
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testIgnoredProbeIsReleased() {
+    failCalls(3);
+    now.addAndGet(500);
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.onIgnored();
+    Assert.assertTrue(breaker.tryAcquire());
+    Assert.assertEquals(1L, breaker.getMetrics().get("opened"));
+  }
+}
@@ -0,0 +1,111 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClaimItemExecutorTest {
+
+  private ClaimItemExecutor executor;
+  private CountDownLatch release;
+
+  @Before
+  public void setup() {
+    executor = new ClaimItemExecutor(1, 1, 200);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void cleanup() {
+    release.countDown();
+    executor.close();
+  }
+
+  private Boolean block() throws InterruptedException {
+    release.await();
+    return true;
+  }
+
+  @Test
+  public void testAwaitAll() {
+    CompletableFuture<Integer> first = executor.submit(() -> 1);
+    CompletableFuture<Integer> second = executor.submit(() -> 2);
+    Assert.assertTrue(executor.awaitAll(Arrays.asList(first, second), "test"));
+    Assert.assertEquals(Integer.valueOf(1), first.join());
+    Assert.assertEquals(Integer.valueOf(2), second.join());
+  }
+
+  @Test
+  public void testRejectedWhenQueueIsFull() {
+    executor.submit(this::block);
+    executor.submit(() -> 1);
+
+    // The only worker is busy and the queue is full, the item is not run on
+    // the caller's thread
+    CompletableFuture<String> overflow = executor.submit(() -> Thread.currentThread().getName());
+    Assert.assertTrue(overflow.isCompletedExceptionally());
+    Assert.assertEquals(1L, executor.getMetrics().get("rejected"));
+  }
+
+  @Test
+  public void testCancelClaim() throws Exception {
+    CompletableFuture<Boolean> blocked = executor.submit(this::block);
+    CompletableFuture<Integer> queued = executor.submit(() -> 1);
+    CompletableFuture<Boolean> result = CompletableFuture
+        .supplyAsync(() -> executor.awaitAll(Arrays.asList(blocked, queued), "claim"));
+
+    for (int i = 0; i < 50 && !executor.cancel("claim"); i++)
+      Thread.sleep(10);
+    Assert.assertFalse(result.get(5, TimeUnit.SECONDS));
+    Assert.assertTrue(blocked.isCancelled());
+    Assert.assertTrue(queued.isCancelled());
+    Assert.assertEquals(0L, executor.getMetrics().get("timeouts"));
+    Assert.assertFalse(executor.cancel("claim"));
+  }
+
+  @Test
+  public void testTimeoutCancelsQueuedItems() {
+    CompletableFuture<Boolean> blocked = executor.submit(this::block);
+    CompletableFuture<Integer> queued = executor.submit(() -> 1);
+
+    Assert.assertFalse(executor.awaitAll(Arrays.asList(blocked, queued), "test"));
+    Assert.assertTrue(queued.isCancelled());
+    Assert.assertEquals(1L, executor.getMetrics().get("timeouts"));
+  }
+
+  @Test
+  public void testFailedItem() {
+    CompletableFuture<Integer> failed = executor.submit(() -> {
+      throw new IllegalStateException("Unable to write claim item");
+    });
+    Assert.assertFalse(executor.awaitAll(Collections.singletonList(failed), "test"));
+    Assert.assertTrue(failed.isCompletedExceptionally());
+    Assert.assertEquals(1L, executor.getMetrics().get("failed"));
+  }
+
+  @Test
+  public void testCancelledItem() {
+    CompletableFuture<Integer> cancelled = executor.submit(() -> {
+      throw new CancellationException("Claim was cancelled");
+    });
+    Assert.assertFalse(executor.awaitAll(Collections.singletonList(cancelled), "test"));
+    Assert.assertTrue(cancelled.isCancelled());
+    // A cancelled item is counted once and not as a failure
+    Assert.assertEquals(1L, executor.getMetrics().get("cancelled"));
+    Assert.assertEquals(0L, executor.getMetrics().get("failed"));
+  }
+
+  @Test
+  public void testSubmitAfterClose() {
+    executor.close();
+    Assert.assertTrue(executor.submit(() -> 1).isCompletedExceptionally());
+  }
+}
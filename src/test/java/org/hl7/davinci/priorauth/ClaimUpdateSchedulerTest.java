@@ -0,0 +1,189 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.ClaimUpdateScheduler.Status;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Claim;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ClaimUpdateSchedulerTest {
+
+  private static final String ID = "scheduler-test";
+  private static final String PATIENT = "pat-scheduler";
+
+  private ClaimUpdateScheduler scheduler;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() {
+    Claim claim = new Claim();
+    claim.setId(ID);
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", ID);
+    dataMap.put("patient", PATIENT);
+    dataMap.put("status", "active");
+    dataMap.put("resource", claim);
+    App.getDB().write(Table.CLAIM, dataMap);
+    scheduler = new ClaimUpdateScheduler(App.getDB(), 1);
+  }
+
+  @After
+  public void cleanup() {
+    scheduler.close();
+    App.getDB().delete(Table.CLAIM, ID, PATIENT);
+  }
+
+  private String getStatus() {
+    return App.getDB().readStatus(Table.SCHEDULED_UPDATE, Collections.singletonMap("id", ID));
+  }
+
+  @Test
+  public void testScheduleAndCancel() {
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 60000));
+    Assert.assertEquals(Status.SCHEDULED.value(), getStatus());
+    Assert.assertEquals(1, scheduler.getMetrics().get("pending"));
+
+    Assert.assertTrue(scheduler.cancel(ID));
+    Assert.assertEquals(Status.CANCELLED.value(), getStatus());
+    Assert.assertEquals(0, scheduler.getMetrics().get("pending"));
+    Assert.assertFalse(scheduler.cancel(ID));
+  }
+
+  @Test
+  public void testRecover() {
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 60000));
+    scheduler.close();
+
+    // A new scheduler, as after a restart, picks the update up again
+    scheduler = new ClaimUpdateScheduler(App.getDB(), 1);
+    Assert.assertEquals(1, scheduler.recover());
+    Assert.assertEquals(1, scheduler.getMetrics().get("pending"));
+    Assert.assertEquals(0, scheduler.recover());
+    Assert.assertTrue(scheduler.cancel(ID));
+  }
+
+  private void waitForPending() throws InterruptedException {
+    for (int i = 0; i < 50 && !Integer.valueOf(0).equals(scheduler.getMetrics().get("pending")); i++)
+      Thread.sleep(100);
+  }
+
+  @Test
+  public void testUpdateRuns() throws InterruptedException {
+    // There is no Bundle for the claim so the update is dropped when it runs
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 0));
+    waitForPending();
+    Assert.assertEquals(Status.CANCELLED.value(), getStatus());
+    Assert.assertEquals(0, scheduler.getMetrics().get("pending"));
+    Assert.assertEquals(0L, scheduler.getMetrics().get("skipped"));
+  }
+
+  @Test
+  public void testCancelledElsewhereIsSkipped() throws InterruptedException {
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 200));
+
+    // Another server sharing the database cancels the update
+    ClaimUpdateScheduler other = new ClaimUpdateScheduler(App.getDB(), 1);
+    try {
+      Assert.assertTrue(other.cancel(ID));
+      Assert.assertFalse(other.cancel(ID));
+    } finally {
+      other.close();
+    }
+
+    waitForPending();
+    Assert.assertEquals(Status.CANCELLED.value(), getStatus());
+    Assert.assertEquals(1L, scheduler.getMetrics().get("skipped"));
+    Assert.assertEquals(0L, scheduler.getMetrics().get("completed"));
+  }
+
+  @Test
+  public void testReclaimAbandoned() throws InterruptedException {
+    // A server stopped after claiming the update
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", ID);
+    dataMap.put("patient", PATIENT);
+    dataMap.put("dueAt", 0);
+    dataMap.put("status", Status.RUNNING.value());
+    dataMap.put("claimedAt", System.currentTimeMillis());
+    Assert.assertTrue(App.getDB().write(Table.SCHEDULED_UPDATE, dataMap));
+
+    // Still within its lease
+    Assert.assertEquals(0, scheduler.recover());
+    Assert.assertEquals(Status.RUNNING.value(), getStatus());
+
+    // Once the lease has expired the update is scheduled again, without a
+    // restart
+    scheduler.close();
+    scheduler = new ClaimUpdateScheduler(App.getDB(), 1, 50);
+    for (int i = 0; i < 50 && !Long.valueOf(1).equals(scheduler.getMetrics().get("reclaimed")); i++)
+      Thread.sleep(100);
+    waitForPending();
+    // There is no Bundle for the claim so the update is dropped when it runs
+    Assert.assertEquals(Status.CANCELLED.value(), getStatus());
+    Assert.assertEquals(1L, scheduler.getMetrics().get("reclaimed"));
+  }
+
+  @Test
+  public void testReclaimNeedsLease() {
+    // A running update without claimedAt cannot be shown to be abandoned
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", ID);
+    dataMap.put("patient", PATIENT);
+    dataMap.put("dueAt", 0);
+    dataMap.put("status", Status.RUNNING.value());
+    Assert.assertTrue(App.getDB().write(Table.SCHEDULED_UPDATE, dataMap));
+
+    Assert.assertEquals(0, scheduler.reclaim());
+    Assert.assertEquals(0, scheduler.recover());
+    Assert.assertEquals(Status.RUNNING.value(), getStatus());
+    Assert.assertEquals(0L, scheduler.getMetrics().get("reclaimed"));
+    Assert.assertEquals(0L, scheduler.getMetrics().get("recovered"));
+  }
+
+  @Test
+  public void testCancelRunning() {
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 60000));
+    // Another server has claimed the update
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("status", Status.RUNNING.value());
+    dataMap.put("claimedAt", System.currentTimeMillis());
+    Assert.assertTrue(App.getDB().update(Table.SCHEDULED_UPDATE, Collections.singletonMap("id", ID), dataMap));
+
+    ClaimUpdateScheduler other = new ClaimUpdateScheduler(App.getDB(), 1);
+    try {
+      Assert.assertFalse(other.cancel(ID));
+    } finally {
+      other.close();
+    }
+    Assert.assertEquals(Status.RUNNING.value(), getStatus());
+    Assert.assertTrue(scheduler.cancel(ID));
+  }
+
+  @Test
+  public void testRunOnce() throws InterruptedException {
+    // Two servers recover the same row but only one of them runs it
+    Assert.assertTrue(scheduler.schedule(ID, PATIENT, 200));
+    ClaimUpdateScheduler other = new ClaimUpdateScheduler(App.getDB(), 1);
+    try {
+      Assert.assertEquals(1, other.recover());
+      waitForPending();
+      for (int i = 0; i < 50 && !Integer.valueOf(0).equals(other.getMetrics().get("pending")); i++)
+        Thread.sleep(100);
+      long skipped = (Long) scheduler.getMetrics().get("skipped") + (Long) other.getMetrics().get("skipped");
+      Assert.assertEquals(1L, skipped);
+    } finally {
+      other.close();
+    }
+  }
+}
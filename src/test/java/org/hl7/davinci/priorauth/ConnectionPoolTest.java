@@ -0,0 +1,174 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+  private static final String JDBC_STRING = "jdbc:h2:mem:connectionPoolTest;DB_CLOSE_DELAY=-1";
+
+  private ConnectionPool pool;
+
+  @Before
+  public void setup() throws ClassNotFoundException {
+    Class.forName("org.h2.Driver");
+    pool = new ConnectionPool(JDBC_STRING, 2, 200, 0, 4);
+  }
+
+  @After
+  public void cleanup() {
+    pool.close();
+  }
+
+  @Test
+  public void testConnectionIsReused() throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      Assert.assertTrue(connection.prepareStatement("SELECT 1").execute());
+    }
+    try (Connection connection = pool.getConnection()) {
+      Assert.assertFalse(connection.isClosed());
+    }
+
+    Map<String, Object> metrics = pool.getMetrics();
+    Assert.assertEquals(1L, metrics.get("created"));
+    Assert.assertEquals(2L, metrics.get("borrowed"));
+    Assert.assertEquals(0, metrics.get("active"));
+    Assert.assertEquals(1, metrics.get("idle"));
+  }
+
+  @Test
+  public void testClosedConnectionCannotBeUsed() throws SQLException {
+    Connection connection = pool.getConnection();
+    connection.close();
+    Assert.assertTrue(connection.isClosed());
+    Assert.assertThrows(SQLException.class, () -> connection.prepareStatement("SELECT 1"));
+  }
+
+  @Test
+  public void testPoolIsBounded() throws SQLException {
+    try (Connection first = pool.getConnection(); Connection second = pool.getConnection()) {
+      Assert.assertThrows(SQLTimeoutException.class, () -> pool.getConnection());
+      Assert.assertEquals(1L, pool.getMetrics().get("timeouts"));
+    }
+
+    // Both connections were returned so a new borrow succeeds
+    try (Connection connection = pool.getConnection()) {
+      Assert.assertNotNull(connection);
+    }
+  }
+
+  @Test
+  public void testAutoCommitIsRestored() throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      connection.setAutoCommit(false);
+    }
+    try (Connection connection = pool.getConnection()) {
+      Assert.assertTrue(connection.getAutoCommit());
+    }
+  }
+
+  @Test
+  public void testPreparedStatementIsReused() throws SQLException {
+    PreparedStatement first;
+    try (Connection connection = pool.getConnection()) {
+      first = connection.prepareStatement("SELECT ?");
+      first.setString(1, "a");
+      first.executeQuery().close();
+
+      // The cached statement is in use so a second one is prepared
+      PreparedStatement second = connection.prepareStatement("SELECT ?");
+      Assert.assertNotSame(first, second);
+    }
+    // The statement went back to the cache with the connection
+    Assert.assertTrue(first.isClosed());
+    Assert.assertThrows(SQLException.class, () -> first.setString(1, "c"));
+    try (Connection connection = pool.getConnection()) {
+      PreparedStatement reused = connection.prepareStatement("SELECT ?");
+      reused.setString(1, "b");
+      try (ResultSet rs = reused.executeQuery()) {
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals("b", rs.getString(1));
+      }
+    }
+
+    Map<String, Object> metrics = pool.getMetrics();
+    Assert.assertEquals(1L, metrics.get("statementCacheHits"));
+    Assert.assertEquals(2L, metrics.get("statementCacheMisses"));
+  }
+
+  @Test
+  public void testClosedStatementIsReturnedToCache() throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      PreparedStatement first = connection.prepareStatement("SELECT ?");
+      first.setString(1, "a");
+      ResultSet results = first.executeQuery();
+      first.close();
+      Assert.assertTrue(first.isClosed());
+      Assert.assertTrue(results.isClosed());
+
+      PreparedStatement reused = connection.prepareStatement("SELECT ?");
+      Assert.assertFalse(reused.isClosed());
+      Assert.assertSame(connection, reused.getConnection());
+      reused.setString(1, "b");
+      try (ResultSet rs = reused.executeQuery()) {
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals("b", rs.getString(1));
+      }
+    }
+
+    Map<String, Object> metrics = pool.getMetrics();
+    Assert.assertEquals(1L, metrics.get("statementCacheHits"));
+    Assert.assertEquals(1L, metrics.get("statementCacheMisses"));
+  }
+
+  @Test
+  public void testStatementInUseIsNotEvicted() throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      PreparedStatement held = connection.prepareStatement("SELECT 0");
+      // Fill the cache past its size of 4 while the first statement is open
+      for (int i = 1; i <= 5; i++) {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT " + i)) {
+          statement.executeQuery().close();
+        }
+      }
+
+      Assert.assertFalse(held.isClosed());
+      try (ResultSet rs = held.executeQuery()) {
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(0, rs.getInt(1));
+      }
+    }
+  }
+
+  @Test
+  public void testReusedStatementHasNoBatch() throws SQLException {
+    String sql = "INSERT INTO PoolBatch VALUES (?)";
+    try (Connection connection = pool.getConnection()) {
+      connection.createStatement().execute("CREATE TABLE IF NOT EXISTS PoolBatch (value varchar)");
+      // A lease which fails before executing its batch leaves it on the statement
+      PreparedStatement abandoned = connection.prepareStatement(sql);
+      abandoned.setString(1, "abandoned");
+      abandoned.addBatch();
+    }
+    try (Connection connection = pool.getConnection()) {
+      PreparedStatement reused = connection.prepareStatement(sql);
+      reused.setString(1, "written");
+      reused.addBatch();
+      Assert.assertEquals(1, reused.executeBatch().length);
+      try (ResultSet rs = connection.createStatement().executeQuery("SELECT COUNT(*) FROM PoolBatch")) {
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(1, rs.getInt(1));
+      }
+      connection.createStatement().execute("DROP TABLE PoolBatch");
+    }
+  }
+}
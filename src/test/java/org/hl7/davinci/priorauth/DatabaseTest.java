@@ -1,17 +1,32 @@
 package org.hl7.davinci.priorauth;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.hl7.davinci.priorauth.Database.ClaimLineage;
+import org.hl7.davinci.priorauth.Database.Row;
+import org.hl7.davinci.priorauth.Database.SearchPage;
 import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.endpoint.StreamingSearchBundle;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.After;
@@ -77,6 +92,95 @@ public class DatabaseTest {
     Assert.assertTrue(result.isSuccessful());
   }
 
+  @Test
+  public void testStreamingSearch() throws IOException {
+    Map<String, Object> constraintMap = Collections.singletonMap("patient", "pat013");
+    Assert.assertEquals(2, App.getDB().count(Table.BUNDLE, constraintMap));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new StreamingSearchBundle(Table.BUNDLE, constraintMap, RequestType.JSON).writeTo(out);
+    String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    Bundle results = (Bundle) App.getFhirContext().newJsonParser().parseResource(json);
+    Assert.assertEquals(BundleType.SEARCHSET, results.getType());
+    Assert.assertEquals(2, results.getTotal());
+    Assert.assertEquals(2, results.getEntry().size());
+    Assert.assertTrue(ValidationHelper.validate(results).isSuccessful());
+
+    out.reset();
+    new StreamingSearchBundle(Table.BUNDLE, constraintMap, RequestType.XML).writeTo(out);
+    String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    results = (Bundle) App.getFhirContext().newXmlParser().parseResource(xml);
+    Assert.assertEquals(2, results.getEntry().size());
+    Assert.assertTrue(ValidationHelper.validate(results).isSuccessful());
+
+    // No matches is still a valid Bundle
+    out.reset();
+    new StreamingSearchBundle(Table.BUNDLE, Collections.singletonMap("patient", "none"), RequestType.JSON)
+        .writeTo(out);
+    results = (Bundle) App.getFhirContext().newJsonParser()
+        .parseResource(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    Assert.assertEquals(0, results.getTotal());
+    Assert.assertFalse(results.hasEntry());
+  }
+
+  @Test
+  public void testStreamingSearchFailure() {
+    // A query failure must fail the response, not close the Bundle as complete
+    Map<String, Object> constraintMap = Collections.singletonMap("nosuchcolumn", "pat013");
+    for (RequestType requestType : RequestType.values()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+        new StreamingSearchBundle(Table.BUNDLE, constraintMap, requestType).writeTo(out);
+        Assert.fail("Expected the search to fail for " + requestType);
+      } catch (IOException e) {
+        // Expected
+      }
+      String body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+      Assert.assertFalse(body.contains("\"total\"") || body.endsWith("</Bundle>"));
+    }
+  }
+
+  @Test
+  public void testSearchReadsInPages() throws IOException {
+    Map<String, Object> constraintMap = Collections.singletonMap("patient", "pat013");
+    List<String> ids = new ArrayList<>();
+    // One result per query, each page carries on after the last one
+    int total = App.getDB().search(Table.BUNDLE, constraintMap, 1,
+        (fullUrl, resource) -> ids.add(resource.getIdElement().getIdPart()));
+    Assert.assertEquals(2, total);
+    Assert.assertEquals(2, ids.size());
+    Assert.assertTrue(ids.containsAll(Arrays.asList("minimal", "minimal-1")));
+  }
+
+  @Test
+  public void testSearchPage() {
+    Map<String, Object> constraintMap = Collections.singletonMap("patient", "pat013");
+    SearchPage first = App.getDB().searchPage(Table.CLAIM, constraintMap, 1, null);
+    Assert.assertEquals(1, first.getResources().size());
+    Assert.assertNull(first.getPreviousCursor());
+    Assert.assertNotNull(first.getNextCursor());
+
+    SearchPage second = App.getDB().searchPage(Table.CLAIM, constraintMap, 1, first.getNextCursor());
+    Assert.assertEquals(1, second.getResources().size());
+    Assert.assertNotEquals(first.getResources().get(0).getIdElement().getIdPart(),
+        second.getResources().get(0).getIdElement().getIdPart());
+    Assert.assertNull(second.getNextCursor());
+    Assert.assertNotNull(second.getPreviousCursor());
+
+    // Walking back returns the first page again
+    SearchPage back = App.getDB().searchPage(Table.CLAIM, constraintMap, 1, second.getPreviousCursor());
+    Assert.assertEquals(first.getResources().get(0).getIdElement().getIdPart(),
+        back.getResources().get(0).getIdElement().getIdPart());
+    Assert.assertNull(back.getPreviousCursor());
+
+    SearchPage all = App.getDB().searchPage(Table.CLAIM, constraintMap, 10, null);
+    Assert.assertEquals(2, all.getResources().size());
+    Assert.assertNull(all.getNextCursor());
+
+    Assert.assertThrows(IllegalArgumentException.class,
+        () -> App.getDB().searchPage(Table.CLAIM, constraintMap, 1, "not-a-cursor"));
+  }
+
   @Test
   public void testRead() {
     Bundle results = (Bundle) App.getDB().read(Table.BUNDLE, Collections.singletonMap("patient", "pat013"));
@@ -181,4 +285,138 @@ public class DatabaseTest {
     Assert.assertEquals("related-minimal", mostRecentId);
   }
 
+  @Test
+  public void testSelectColumns() {
+    Row row = App.getDB().readColumns(Table.CLAIM, Collections.singletonMap("id", "related-minimal"), "id",
+        "related", "resource");
+    Assert.assertEquals("related-minimal", row.getString("id"));
+    Assert.assertEquals("minimal", row.getString("related"));
+    Assert.assertFalse(row.has("patient"));
+    Assert.assertTrue(row.getResource() instanceof Claim);
+    Assert.assertSame(row.getResource(), row.getResource());
+
+    List<Row> rows = App.getDB().selectColumns(Table.CLAIM, Collections.singletonMap("patient", "pat013"), "id");
+    Assert.assertEquals(2, rows.size());
+    Assert.assertNull(rows.get(0).getResource());
+
+    Assert.assertNull(App.getDB().readColumns(Table.CLAIM, Collections.singletonMap("id", "does-not-exist"), "id"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSelectColumnsRejectsInvalidColumn() {
+    App.getDB().selectColumns(Table.CLAIM, Collections.singletonMap("id", "minimal"), "id; DROP TABLE Claim");
+  }
+
+  @Test
+  public void testGetClaimLineage() {
+    ClaimLineage lineage = App.getDB().getClaimLineage("related-minimal");
+    Assert.assertEquals(Arrays.asList("minimal", "related-minimal"), lineage.getIds());
+    Assert.assertEquals("related-minimal", lineage.getHeadId());
+    Assert.assertEquals(Collections.singletonList("minimal"), lineage.getAncestorIds());
+    Assert.assertTrue(lineage.getDescendantIds().isEmpty());
+
+    lineage = App.getDB().getClaimLineage("minimal");
+    Assert.assertEquals(Arrays.asList("minimal", "related-minimal"), lineage.getIds());
+    Assert.assertEquals(Collections.singletonList("related-minimal"), lineage.getDescendantIds());
+
+    lineage = App.getDB().getClaimLineage("does-not-exist");
+    Assert.assertTrue(lineage.getIds().isEmpty());
+    Assert.assertEquals("does-not-exist", lineage.getHeadId());
+  }
+
+  @Test
+  public void testGetClaimLineageFollowsMostRecentUpdate() throws InterruptedException {
+    // An older update of minimal which was itself updated
+    addClaim("stale-related-minimal", "minimal");
+    addClaim("stale-descendant", "stale-related-minimal");
+    Thread.sleep(20);
+    App.getDB().update(Table.CLAIM, Collections.singletonMap("id", "related-minimal"),
+        Collections.singletonMap("status", "active"));
+
+    ClaimLineage lineage = App.getDB().getClaimLineage("minimal");
+    Assert.assertEquals(Arrays.asList("minimal", "related-minimal"), lineage.getIds());
+    Assert.assertEquals("related-minimal", lineage.getHeadId());
+
+    // Changing the status bumps the timestamp, so the stale update is now the most recent
+    Thread.sleep(20);
+    App.getDB().updateClaimStatus(Collections.singletonList("stale-related-minimal"), ClaimStatus.ACTIVE);
+    lineage = App.getDB().getClaimLineage("minimal");
+    Assert.assertEquals(Arrays.asList("minimal", "stale-related-minimal", "stale-descendant"), lineage.getIds());
+    Assert.assertEquals("stale-descendant", lineage.getHeadId());
+  }
+
+  private static void addClaim(String id, String related) {
+    Claim claim = new Claim();
+    claim.setId(id);
+    claim.setStatus(ClaimStatus.ACTIVE);
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", id);
+    dataMap.put("patient", "pat013");
+    dataMap.put("related", related);
+    dataMap.put("resource", claim);
+    App.getDB().write(Table.CLAIM, dataMap);
+  }
+
+  @Test
+  public void testUpdateClaimStatus() {
+    List<String> ids = App.getDB().getClaimLineage("minimal").getIds();
+    Assert.assertEquals(2, ids.size());
+    // Ids which are not stored are skipped
+    List<String> update = new ArrayList<>(ids);
+    update.add("no-such-claim");
+    Assert.assertEquals(2, App.getDB().updateClaimStatus(update, ClaimStatus.CANCELLED));
+
+    for (String id : ids) {
+      Map<String, Object> constraintMap = Collections.singletonMap("id", id);
+      Claim claim = (Claim) App.getDB().read(Table.CLAIM, constraintMap);
+      Assert.assertEquals(ClaimStatus.CANCELLED, claim.getStatus());
+      Assert.assertEquals("cancelled", App.getDB().readStatus(Table.CLAIM, constraintMap));
+    }
+  }
+
+  @Test
+  public void testSchemaMigrated() {
+    Assert.assertTrue(App.getDB().getSchemaVersion() >= 2);
+  }
+
+  @Test
+  public void testMigrationsFolderOverride() throws SQLException, IOException {
+    // The packaged migrations and the same scripts read from a folder agree
+    try (Connection packaged = DriverManager.getConnection("jdbc:h2:mem:migrationsPackaged");
+        Connection folder = DriverManager.getConnection("jdbc:h2:mem:migrationsFolder")) {
+      int version = SchemaMigrator.migrate(packaged);
+      Assert.assertEquals(App.getDB().getSchemaVersion(), version);
+      Assert.assertEquals(version, SchemaMigrator.migrate(folder, Paths.get("src/main/resources/DatabaseMigrations")));
+      // Nothing is run twice
+      Assert.assertEquals(version, SchemaMigrator.migrate(packaged));
+    }
+  }
+
+  @Test
+  public void testHotQueriesUseIndexes() throws SQLException {
+    // The SQL the hot paths generate, with its values in binding order
+    Database db = App.getDB();
+    Timestamp cursor = new Timestamp(System.currentTimeMillis());
+    Map<String, Object> patient = Collections.singletonMap("patient", "pat013");
+    List<Object[]> queries = new ArrayList<>();
+    for (Table table : new Table[] { Table.BUNDLE, Table.CLAIM, Table.CLAIM_RESPONSE }) {
+      queries.add(new Object[] { db.getPageSql(table, patient, false), "pat013", 10 });
+      queries.add(new Object[] { db.getPageSql(table, patient, true), "pat013", cursor, cursor, "id", 10 });
+    }
+    queries.add(new Object[] {
+        db.getReadColumnsSql(Table.CLAIM_RESPONSE, Collections.singletonMap("claimId", "minimal"), "outcome"),
+        "minimal" });
+    queries.add(new Object[] { db.getReadColumnsSql(Table.CLIENT, Collections.singletonMap("token", "token"), "id"),
+        "token" });
+    for (Object[] query : queries) {
+      String plan = db.explain((String) query[0], Arrays.copyOfRange(query, 1, query.length));
+      Assert.assertFalse(plan, plan.contains("tableScan"));
+    }
+
+    // The lineage walks the related column through its index
+    String plan = db.explain(Database.getClaimLineageSql(), "minimal", 1000, "minimal", -1000);
+    Assert.assertFalse(plan, plan.contains("CLAIM.tableScan"));
+    Assert.assertTrue(plan, plan.contains("IDX_CLAIM_RELATED"));
+  }
+
 }
@@ -1,6 +1,8 @@
 package org.hl7.davinci.priorauth;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -202,4 +204,21 @@ public class FhirUtilsTest {
         Assert.assertEquals(type, outcome.getIssueFirstRep().getCode());
         Assert.assertEquals(message, outcome.getIssueFirstRep().getDiagnostics());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCompactSerialization() throws IOException {
+        String compact = FhirUtils.json(claim);
+        String pretty = FhirSerializer.encode(claim, RequestType.JSON, true);
+        Assert.assertFalse(compact.contains("\n"));
+        Assert.assertTrue(pretty.contains("\n"));
+        Assert.assertTrue(compact.length() < pretty.length());
+        Assert.assertEquals(compact, FhirUtils.json(FhirSerializer.parse(pretty, RequestType.JSON)));
+
+        // Outside of a request the wire format is compact too
+        Assert.assertEquals(compact, FhirUtils.getFormattedData(claim, RequestType.JSON));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FhirSerializer.encode(claim, RequestType.JSON, false, out);
+        Assert.assertEquals(compact, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,155 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.NotificationDispatcher.PayloadContent;
+import org.hl7.davinci.priorauth.endpoint.SubscriptionEndpoint;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ClaimResponse;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class NotificationDispatcherTest {
+
+  private static final String SUBSCRIPTION_ID = "dispatcher-test";
+
+  private HttpServer server;
+  private String address;
+  private NotificationOutbox outbox;
+  private NotificationDispatcher dispatcher;
+
+  private final List<String> bodies = new CopyOnWriteArrayList<>();
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    // Stub rest-hook subscriber
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      try (InputStream in = exchange.getRequestBody()) {
+        bodies.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.start();
+    address = "http://localhost:" + server.getAddress().getPort() + "/notify";
+    outbox = new NotificationOutbox(App.getDB(), 2, 3, 50, 200, 1000, 2000);
+    dispatcher = new NotificationDispatcher(2, 10, outbox);
+  }
+
+  @After
+  public void cleanup() {
+    dispatcher.close();
+    outbox.close();
+    server.stop(0);
+    App.getDB().delete(Table.SUBSCRIPTION, SUBSCRIPTION_ID);
+  }
+
+  private static Bundle getClaimResponseBundle() {
+    Bundle bundle = new Bundle();
+    ClaimResponse claimResponse = new ClaimResponse();
+    claimResponse.setId("notification-test");
+    bundle.addEntry().setFullUrl("http://localhost/ClaimResponse/notification-test").setResource(claimResponse);
+    return bundle;
+  }
+
+  private Subscription getSubscription() {
+    Subscription subscription = new Subscription();
+    subscription.setId(SUBSCRIPTION_ID);
+    subscription.setStatus(SubscriptionStatus.ACTIVE);
+    subscription.getChannel().setType(SubscriptionChannelType.RESTHOOK).setEndpoint(address);
+    return subscription;
+  }
+
+  private static void writeSubscription(Subscription subscription) {
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", SUBSCRIPTION_ID);
+    dataMap.put("patient", "pat-dispatcher");
+    dataMap.put("orgId", "org-dispatcher");
+    dataMap.put("status", "active");
+    dataMap.put("resource", subscription);
+    App.getDB().write(Table.SUBSCRIPTION, dataMap);
+  }
+
+  @Test
+  public void testNotification() throws Exception {
+    Subscription subscription = getSubscription();
+    writeSubscription(subscription);
+    List<Subscription> subscriptions = new ArrayList<>();
+    subscriptions.add(subscription);
+    dispatcher.dispatch(getClaimResponseBundle(), subscriptions).get(5, TimeUnit.SECONDS);
+    for (int i = 0; i < 50 && bodies.isEmpty(); i++)
+      Thread.sleep(100);
+
+    Assert.assertEquals(1, bodies.size());
+    Bundle notification = (Bundle) App.getFhirContext().newJsonParser().parseResource(bodies.get(0));
+    Assert.assertEquals(Bundle.BundleType.HISTORY, notification.getType());
+    Assert.assertEquals(2, notification.getEntry().size());
+    Parameters parameters = (Parameters) notification.getEntry().get(0).getResource();
+    Assert.assertEquals(NotificationDispatcher.STATUS_PROFILE, parameters.getMeta().getProfile().get(0).getValue());
+    Bundle focus = (Bundle) notification.getEntry().get(1).getResource();
+    Assert.assertEquals(ResourceType.ClaimResponse, focus.getEntryFirstRep().getResource().getResourceType());
+    Assert.assertEquals(1L, dispatcher.getMetrics().get("restHooks"));
+  }
+
+  @Test
+  public void testPayloadContent() {
+    Subscription subscription = getSubscription();
+    Assert.assertEquals(PayloadContent.FULL_RESOURCE, PayloadContent.fromSubscription(subscription));
+    subscription.getChannel().getPayloadElement().addExtension(SubscriptionEndpoint.SUBSCRIPTION_PAYLOAD_EXTENSION_URL,
+        new CodeType(PayloadContent.ID_ONLY.value()));
+    Assert.assertEquals(PayloadContent.ID_ONLY, PayloadContent.fromSubscription(subscription));
+
+    String focus = "http://localhost/ClaimResponse/notification-test";
+    Bundle idOnly = (Bundle) App.getFhirContext().newJsonParser()
+        .parseResource(NotificationDispatcher.getNotification(subscription, 1, focus, PayloadContent.ID_ONLY, null));
+    Assert.assertEquals(2, idOnly.getEntry().size());
+    Assert.assertEquals(focus, idOnly.getEntry().get(1).getFullUrl());
+    Assert.assertFalse(idOnly.getEntry().get(1).hasResource());
+
+    Bundle empty = (Bundle) App.getFhirContext().newJsonParser()
+        .parseResource(NotificationDispatcher.getNotification(subscription, 1, focus, PayloadContent.EMPTY, null));
+    Assert.assertEquals(1, empty.getEntry().size());
+    Parameters parameters = (Parameters) empty.getEntryFirstRep().getResource();
+    Assert.assertFalse(parameters.getParameter().stream().flatMap(parameter -> parameter.getPart().stream())
+        .anyMatch(part -> part.getName().equals("focus")));
+  }
+
+  @Test
+  public void testUnknownSubscription() throws Exception {
+    // The notification cannot be stored for a Subscription which is not in the
+    // database
+    List<Subscription> subscriptions = new ArrayList<>();
+    subscriptions.add(getSubscription());
+    dispatcher.dispatch(getClaimResponseBundle(), subscriptions).get(5, TimeUnit.SECONDS);
+
+    Assert.assertEquals(1L, dispatcher.getMetrics().get("failed"));
+    Assert.assertEquals(0L, dispatcher.getMetrics().get("restHooks"));
+  }
+}
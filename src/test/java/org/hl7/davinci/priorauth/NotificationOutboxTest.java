@@ -0,0 +1,200 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.NotificationOutbox.Status;
+import org.hl7.fhir.r4.model.Subscription;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class NotificationOutboxTest {
+
+  private static final String SUBSCRIPTION_ID = "outbox-test";
+
+  private HttpServer server;
+  private String address;
+  private NotificationOutbox outbox;
+
+  // Number of requests the stub subscriber fails before it succeeds
+  private final AtomicInteger failures = new AtomicInteger();
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private final List<String> delivered = new CopyOnWriteArrayList<>();
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+      received.add(body);
+      boolean fail = failures.getAndUpdate(count -> Math.max(count - 1, 0)) > 0;
+      if (!fail)
+        delivered.add(body);
+      exchange.sendResponseHeaders(fail ? 503 : 200, -1);
+      exchange.close();
+    });
+    server.start();
+    address = "http://localhost:" + server.getAddress().getPort() + "/notify";
+    outbox = new NotificationOutbox(App.getDB(), 2, 3, 20, 100, 1000, 2000);
+
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", SUBSCRIPTION_ID);
+    dataMap.put("patient", "pat-outbox");
+    dataMap.put("orgId", "org-outbox");
+    dataMap.put("status", "active");
+    dataMap.put("resource", new Subscription());
+    App.getDB().write(Table.SUBSCRIPTION, dataMap);
+  }
+
+  @After
+  public void cleanup() {
+    outbox.close();
+    server.stop(0);
+    // Cascades to the outbox rows
+    App.getDB().delete(Table.SUBSCRIPTION, SUBSCRIPTION_ID);
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 50 && !condition.getAsBoolean(); i++)
+      Thread.sleep(100);
+    Assert.assertTrue(condition.getAsBoolean());
+  }
+
+  private static int countOutbox(Status status) {
+    Map<String, Object> constraintMap = new HashMap<>();
+    constraintMap.put("subscriptionId", SUBSCRIPTION_ID);
+    constraintMap.put("status", status.value());
+    return App.getDB().count(Table.NOTIFICATION_OUTBOX, constraintMap);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> getEndpointMetrics() {
+    return (Map<String, Object>) outbox.getMetrics().get("endpoints");
+  }
+
+  @Test
+  public void testRetryThenDeliver() throws InterruptedException {
+    failures.set(2);
+    Assert.assertTrue(outbox.enqueue(SUBSCRIPTION_ID, address, "{\"n\":1}"));
+    waitFor(() -> countOutbox(Status.DELIVERED) == 1);
+
+    Assert.assertEquals(3, received.size());
+    waitFor(() -> outbox.getMetrics().get("delivered").equals(1L));
+    Assert.assertEquals(2L, outbox.getMetrics().get("retries"));
+    // The endpoint is dropped once nothing is queued for it
+    waitFor(() -> !getEndpointMetrics().containsKey(address));
+  }
+
+  @Test
+  public void testOrderPerEndpoint() throws InterruptedException {
+    // The first notification fails once, the others wait for it
+    failures.set(1);
+    for (int i = 1; i <= 3; i++)
+      Assert.assertTrue(outbox.enqueue(SUBSCRIPTION_ID, address, "{\"n\":" + i + "}"));
+    waitFor(() -> countOutbox(Status.DELIVERED) == 3);
+
+    Assert.assertEquals("{\"n\":1}", received.get(0));
+    Assert.assertEquals("{\"n\":1}", received.get(1));
+    Assert.assertEquals(3, delivered.size());
+    for (int i = 1; i <= 3; i++)
+      Assert.assertEquals("{\"n\":" + i + "}", delivered.get(i - 1));
+  }
+
+  @Test
+  public void testDeadLetter() throws InterruptedException {
+    failures.set(3);
+    Assert.assertTrue(outbox.enqueue(SUBSCRIPTION_ID, address, "{\"n\":1}"));
+    Assert.assertTrue(outbox.enqueue(SUBSCRIPTION_ID, address, "{\"n\":2}"));
+    waitFor(() -> countOutbox(Status.DELIVERED) == 1);
+
+    // The first notification is dead after 3 attempts and the next one is sent
+    Assert.assertEquals(1, countOutbox(Status.DEAD));
+    Assert.assertEquals(Collections.singletonList("{\"n\":2}"), delivered);
+    Assert.assertEquals(1L, outbox.getMetrics().get("markedDead"));
+
+    Assert.assertEquals(1, outbox.redeliver());
+    waitFor(() -> countOutbox(Status.DELIVERED) == 2);
+    Assert.assertEquals(0, countOutbox(Status.DEAD));
+  }
+
+  @Test
+  public void testRecover() throws InterruptedException {
+    // A notification left pending by a previous run
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", "outbox-recover");
+    dataMap.put("subscriptionId", SUBSCRIPTION_ID);
+    dataMap.put("endpoint", address);
+    dataMap.put("sequence", 1);
+    dataMap.put("status", Status.PENDING.value());
+    dataMap.put("attempts", 1);
+    dataMap.put("nextAttempt", 0);
+    dataMap.put("lastError", "HTTP 503");
+    dataMap.put("payload", "{\"n\":0}");
+    Assert.assertTrue(App.getDB().write(Table.NOTIFICATION_OUTBOX, dataMap));
+
+    Assert.assertEquals(1, outbox.recover());
+    waitFor(() -> countOutbox(Status.DELIVERED) == 1);
+    Assert.assertEquals(0, outbox.recover());
+    Assert.assertEquals(Collections.singletonList("{\"n\":0}"), delivered);
+  }
+
+  private static void writeDelivered(String id, long deliveredAt) {
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", id);
+    dataMap.put("subscriptionId", SUBSCRIPTION_ID);
+    dataMap.put("endpoint", "http://localhost/purge");
+    dataMap.put("sequence", 1);
+    dataMap.put("status", Status.DELIVERED.value());
+    dataMap.put("attempts", 0);
+    dataMap.put("nextAttempt", 0);
+    dataMap.put("lastError", "");
+    dataMap.put("deliveredAt", deliveredAt);
+    dataMap.put("payload", "{}");
+    Assert.assertTrue(App.getDB().write(Table.NOTIFICATION_OUTBOX, dataMap));
+  }
+
+  @Test
+  public void testPurge() {
+    writeDelivered("outbox-old", System.currentTimeMillis() - NotificationOutbox.DEFAULT_RETENTION_MS - 1000);
+    writeDelivered("outbox-recent", System.currentTimeMillis());
+
+    // Only the notification delivered before the retention period is deleted
+    Assert.assertEquals(1, outbox.purge());
+    Assert.assertEquals(1, countOutbox(Status.DELIVERED));
+    Assert.assertEquals(1L, outbox.getMetrics().get("purged"));
+    Assert.assertEquals(0, outbox.purge());
+  }
+
+  @Test
+  public void testBackoff() {
+    for (int attempts = 1; attempts <= 40; attempts++) {
+      long expected = Math.min(20L << Math.min(attempts - 1, 30), 100);
+      long backoff = outbox.getBackoff(attempts);
+      Assert.assertTrue(backoff >= expected / 2);
+      Assert.assertTrue(backoff <= expected);
+    }
+  }
+}
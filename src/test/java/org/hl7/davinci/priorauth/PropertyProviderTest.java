@@ -0,0 +1,83 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertyProviderTest {
+
+  private Path file;
+
+  @Before
+  public void setup() throws IOException {
+    file = Files.createTempFile("config", ".properties");
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void testTypedProperties() {
+    Assert.assertNotNull(PropertyProvider.getProperty("CDS_library"));
+    Assert.assertEquals("fallback", PropertyProvider.getProperty("missing_property", "fallback"));
+    Assert.assertEquals(7, PropertyProvider.getIntProperty("missing_property", 7));
+    Assert.assertEquals(7L, PropertyProvider.getLongProperty("missing_property", 7L));
+    Assert.assertTrue(PropertyProvider.getBooleanProperty("rules_warmup", false));
+    Assert.assertTrue(PropertyProvider.getBooleanProperty("missing_property", true));
+  }
+
+  @Test
+  public void testParsedOnce() throws IOException {
+    write("a=1");
+    PropertyProvider.Source source = new PropertyProvider.Source(file.toFile(), -1);
+    Assert.assertEquals("1", source.get().getProperty("a"));
+
+    // Never checked for changes so the file is not read again
+    write("a=2");
+    Assert.assertEquals("1", source.get().getProperty("a"));
+    Assert.assertEquals(1L, source.getMetrics().get("loads"));
+
+    Assert.assertTrue(source.reload());
+    Assert.assertEquals("2", source.get().getProperty("a"));
+  }
+
+  @Test
+  public void testReloadedWhenModified() throws IOException {
+    write("a=1");
+    PropertyProvider.Source source = new PropertyProvider.Source(file.toFile(), 0);
+    Assert.assertEquals("1", source.get().getProperty("a"));
+    Assert.assertEquals("1", source.get().getProperty("a"));
+    Assert.assertEquals(1L, source.getMetrics().get("loads"));
+
+    write("a=22");
+    Assert.assertEquals("22", source.get().getProperty("a"));
+    Assert.assertEquals(2L, source.getMetrics().get("loads"));
+  }
+
+  @Test
+  public void testMissingFileKeepsProperties() throws IOException {
+    write("a=1");
+    PropertyProvider.Source source = new PropertyProvider.Source(file.toFile(), 0);
+    Assert.assertEquals("1", source.get().getProperty("a"));
+
+    Files.delete(file);
+    Assert.assertFalse(source.reload());
+    Assert.assertEquals("1", source.get().getProperty("a"));
+
+    PropertyProvider.Source missing = new PropertyProvider.Source(new File(file.toString() + ".missing"), 0);
+    Assert.assertNull(missing.get().getProperty("a"));
+  }
+
+  private void write(String contents) throws IOException {
+    Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,181 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.hl7.davinci.priorauth.FhirUtils.Disposition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RulesEngineClientTest {
+
+  private HttpServer server;
+  private String address;
+  private RulesEngineClient client;
+
+  private volatile int status = 200;
+  private volatile String answer = "Granted";
+  private final List<String> queries = new CopyOnWriteArrayList<>();
+  private final List<String> contentTypes = new CopyOnWriteArrayList<>();
+  private final List<String> bodies = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setup() throws IOException {
+    // Stub rules engine answering every item with the current answer
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/rules", exchange -> {
+      try (InputStream in = exchange.getRequestBody()) {
+        bodies.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      queries.add(exchange.getRequestURI().getQuery());
+      contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+      byte[] response = answer.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    address = "http://localhost:" + server.getAddress().getPort() + "/rules";
+    client = new RulesEngineClient(1000, 1000, 2000, 2, 60000, false, 100, new CircuitBreaker("Test", 2, 60000));
+  }
+
+  @After
+  public void cleanup() {
+    client.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testGetDisposition() throws IOException {
+    String bundle = "{\"resourceType\":\"Bundle\"}";
+    Assert.assertEquals(Disposition.GRANTED, client.getDisposition(address, bundle, 1));
+    answer = "Denied";
+    Assert.assertEquals(Disposition.DENIED, client.getDisposition(address, bundle, 2));
+
+    Assert.assertEquals("seq=1", queries.get(0));
+    Assert.assertEquals("seq=2", queries.get(1));
+    Assert.assertEquals(bundle, bodies.get(0));
+    Assert.assertTrue(contentTypes.get(0).startsWith("application/fhir+json"));
+  }
+
+  @Test
+  public void testConnectionReused() throws IOException {
+    for (int i = 1; i <= 5; i++)
+      client.getDisposition(address, "{}", i);
+    Assert.assertEquals(1, client.getMetrics().get("connections"));
+    Assert.assertEquals(5L, client.getMetrics().get("requests"));
+    Assert.assertEquals(0, client.getMetrics().get("inFlight"));
+  }
+
+  @Test
+  public void testUnrecognizedAnswer() throws IOException {
+    answer = "Maybe";
+    Assert.assertEquals(Disposition.UNKNOWN, client.getDisposition(address, "{}", 1));
+  }
+
+  @Test
+  public void testGetDispositions() throws IOException {
+    answer = "{\"1\": \"Granted\", \"2\": \"Denied\", \"3\": \"Maybe\"}";
+    Map<Integer, Disposition> dispositions = client.getDispositions(address, "{}", Arrays.asList(1, 2, 3));
+    Assert.assertEquals(Disposition.GRANTED, dispositions.get(1));
+    Assert.assertEquals(Disposition.DENIED, dispositions.get(2));
+    Assert.assertEquals(Disposition.UNKNOWN, dispositions.get(3));
+    Assert.assertEquals("seq=1&seq=2&seq=3", queries.get(0));
+    Assert.assertEquals(1, queries.size());
+  }
+
+  @Test
+  public void testBatchFallback() throws IOException {
+    // An engine which only knows the single item protocol
+    Assert.assertNull(client.getDispositions(address, "{}", Arrays.asList(1, 2)));
+    Assert.assertEquals(1L, client.getMetrics().get("batchFallbacks"));
+
+    // The engine is not asked for a batch again
+    Assert.assertNull(client.getDispositions(address, "{}", Arrays.asList(1, 2)));
+    Assert.assertEquals(1, queries.size());
+
+    status = 404;
+    String otherAddress = "http://localhost:" + server.getAddress().getPort() + "/rules/other";
+    Assert.assertNull(client.getDispositions(otherAddress, "{}", Arrays.asList(1, 2)));
+    Assert.assertEquals(2L, client.getMetrics().get("batchFallbacks"));
+  }
+
+  @Test
+  public void testBatchRetry() throws IOException, InterruptedException {
+    RulesEngineClient retrying = new RulesEngineClient(1000, 1000, 2000, 2, 60000, false, 100,
+        new CircuitBreaker("Test", 2, 60000), 100);
+    try {
+      status = 400;
+      Assert.assertNull(retrying.getDispositions(address, "{}", Arrays.asList(1, 2)));
+      Assert.assertEquals(1L, retrying.getMetrics().get("unbatchedEngines"));
+
+      // Once the retry time has passed the engine is asked for a batch again
+      Thread.sleep(200);
+      Assert.assertEquals(0L, retrying.getMetrics().get("unbatchedEngines"));
+      status = 200;
+      answer = "{\"1\": \"Granted\", \"2\": \"Denied\"}";
+      Map<Integer, Disposition> dispositions = retrying.getDispositions(address, "{}", Arrays.asList(1, 2));
+      Assert.assertEquals(Disposition.GRANTED, dispositions.get(1));
+      Assert.assertEquals(2, queries.size());
+    } finally {
+      retrying.close();
+    }
+  }
+
+  @Test
+  public void testErrorStatus() {
+    status = 500;
+    try {
+      client.getDisposition(address, "{}", 1);
+      Assert.fail();
+    } catch (IOException e) {
+      // Expected
+    }
+    Assert.assertEquals(1L, client.getMetrics().get("failures"));
+  }
+
+  @Test
+  public void testBreakerFailsFast() {
+    status = 503;
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.getDisposition(address, "{}", 1);
+        Assert.fail();
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+    // The breaker opened after two failures so the third call was not sent
+    Assert.assertEquals(2, queries.size());
+    @SuppressWarnings("unchecked")
+    Map<String, Object> breaker = (Map<String, Object>) client.getMetrics().get("breaker");
+    Assert.assertEquals("OPEN", breaker.get("state"));
+    Assert.assertEquals(1L, breaker.get("rejected"));
+  }
+
+  @Test
+  public void testClientErrorsDoNotOpenBreaker() {
+    status = 400;
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.getDisposition(address, "{}", 1);
+        Assert.fail();
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+    Assert.assertEquals(3, queries.size());
+  }
+}
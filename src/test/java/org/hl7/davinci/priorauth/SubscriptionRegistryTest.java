@@ -0,0 +1,102 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.SubscriptionRegistry.Registration;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SubscriptionRegistryTest {
+
+  private static final String ORG_ID = "http://example.org|registry-test";
+  private static final String REST_HOOK_ID = "registry-resthook";
+  private static final String WEBSOCKET_ID = "registry-websocket";
+
+  private SubscriptionRegistry registry;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() {
+    registry = new SubscriptionRegistry(App.getDB());
+    Assert.assertTrue(add(REST_HOOK_ID, SubscriptionChannelType.RESTHOOK));
+    Assert.assertTrue(add(WEBSOCKET_ID, SubscriptionChannelType.WEBSOCKET));
+  }
+
+  @After
+  public void cleanup() {
+    App.getDB().delete(Table.SUBSCRIPTION, REST_HOOK_ID);
+    App.getDB().delete(Table.SUBSCRIPTION, WEBSOCKET_ID);
+  }
+
+  private boolean add(String id, SubscriptionChannelType type) {
+    Subscription subscription = new Subscription();
+    subscription.setId(id);
+    subscription.setStatus(SubscriptionStatus.ACTIVE);
+    subscription.getChannel().setType(type).setEndpoint("http://localhost/" + id);
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("id", id);
+    dataMap.put("orgId", ORG_ID);
+    dataMap.put("status", "active");
+    dataMap.put("resource", subscription);
+    return registry.add(ORG_ID, subscription, dataMap);
+  }
+
+  @Test
+  public void testGetSubscriptions() {
+    Assert.assertEquals(2, registry.getSubscriptions(ORG_ID).size());
+    Assert.assertEquals(REST_HOOK_ID, registry.getSubscriptions(ORG_ID).get(0).getId());
+    Assert.assertEquals(1, registry.getSubscriptions(ORG_ID, SubscriptionChannelType.WEBSOCKET).size());
+    Assert.assertEquals(WEBSOCKET_ID,
+        registry.getSubscriptions(ORG_ID, SubscriptionChannelType.WEBSOCKET).get(0).getId());
+    Assert.assertTrue(registry.getSubscriptions("http://example.org|other").isEmpty());
+  }
+
+  @Test
+  public void testBind() {
+    Assert.assertNull(registry.get(WEBSOCKET_ID).getWebsocketId());
+    Assert.assertTrue(registry.bind(WEBSOCKET_ID, "user-1"));
+    Assert.assertEquals("user-1", registry.get(WEBSOCKET_ID).getWebsocketId());
+    Assert.assertEquals("user-1", App.getDB().readString(Table.SUBSCRIPTION,
+        Collections.singletonMap("id", WEBSOCKET_ID), "websocketId"));
+    Assert.assertEquals(2, registry.getSubscriptions(ORG_ID).size());
+
+    Assert.assertFalse(registry.bind("registry-missing", "user-1"));
+    Assert.assertNull(registry.get("registry-missing"));
+  }
+
+  @Test
+  public void testDelete() {
+    Assert.assertTrue(registry.delete(REST_HOOK_ID));
+    Assert.assertNull(registry.get(REST_HOOK_ID));
+    Assert.assertEquals(1, registry.getSubscriptions(ORG_ID).size());
+    Assert.assertEquals(0, App.getDB().count(Table.SUBSCRIPTION, Collections.singletonMap("id", REST_HOOK_ID)));
+    Assert.assertFalse(registry.delete(REST_HOOK_ID));
+  }
+
+  @Test
+  public void testReload() {
+    Assert.assertTrue(registry.bind(WEBSOCKET_ID, "user-2"));
+
+    // A new registry, as after a restart, loads what was written
+    SubscriptionRegistry reloaded = new SubscriptionRegistry(App.getDB());
+    Assert.assertTrue(reloaded.reload() >= 2);
+    Registration registration = reloaded.get(WEBSOCKET_ID);
+    Assert.assertEquals(ORG_ID, registration.getOrgId());
+    Assert.assertEquals("user-2", registration.getWebsocketId());
+    Assert.assertEquals(SubscriptionChannelType.WEBSOCKET, registration.getChannelType());
+    Assert.assertEquals(2, reloaded.getSubscriptions(ORG_ID).size());
+  }
+}
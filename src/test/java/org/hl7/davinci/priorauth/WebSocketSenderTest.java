@@ -0,0 +1,140 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WebSocketSenderTest {
+
+  private static final String USER = "websocket-user";
+
+  private final List<Map<String, Object>> sent = new CopyOnWriteArrayList<>();
+  private final List<String> messages = new CopyOnWriteArrayList<>();
+  private WebSocketSender sender;
+
+  @Before
+  public void setup() {
+    sender = new WebSocketSender(2, 2, 500, (websocketId, message, headers) -> {
+      sent.add(headers);
+      messages.add(message);
+    });
+  }
+
+  @After
+  public void cleanup() {
+    sender.close();
+  }
+
+  private void handed(int index) {
+    sender.handed((String) sent.get(index).get(WebSocketSender.NOTIFICATION_ID_HEADER));
+  }
+
+  private void waitForSent(int count) throws InterruptedException {
+    for (int i = 0; i < 50 && sent.size() < count; i++)
+      Thread.sleep(100);
+    Assert.assertEquals(count, sent.size());
+  }
+
+  @Test
+  public void testInFlightLimit() throws InterruptedException {
+    Assert.assertTrue(sender.send(USER, "sub-1", "Claim/1", "1"));
+    Assert.assertTrue(sender.send(USER, "sub-2", "Claim/1", "2"));
+    Assert.assertTrue(sender.send(USER, "sub-3", "Claim/1", "3"));
+
+    // Only two notifications are sent until one reaches the session
+    Assert.assertEquals(2, sent.size());
+    Assert.assertEquals(1, sender.getMetrics().get("queued"));
+    Assert.assertEquals("sub-1", sent.get(0).get(WebSocketSender.SUBSCRIPTION_ID_HEADER));
+
+    handed(0);
+    waitForSent(3);
+    Assert.assertEquals("3", messages.get(2));
+    Assert.assertEquals(0, sender.getMetrics().get("queued"));
+    Assert.assertEquals(1L, sender.getMetrics().get("handed"));
+  }
+
+  @Test
+  public void testCoalesce() throws InterruptedException {
+    sender.send(USER, "sub-1", "Claim/1", "1");
+    sender.send(USER, "sub-1", "Claim/1", "2");
+    sender.send(USER, "sub-1", "Claim/1", "3");
+    sender.send(USER, "sub-1", "Claim/2", "4");
+    sender.send(USER, "sub-1", "Claim/1", "5");
+
+    // The waiting notification about Claim/1 is replaced by the latest one, the
+    // one about Claim/2 waits next to it
+    Assert.assertEquals(2, sender.getMetrics().get("queued"));
+    Assert.assertEquals(1L, sender.getMetrics().get("coalesced"));
+
+    handed(0);
+    handed(1);
+    waitForSent(4);
+    Assert.assertEquals("5", messages.get(2));
+    Assert.assertEquals("4", messages.get(3));
+  }
+
+  @Test
+  public void testDropOldest() throws InterruptedException {
+    sender.send(USER, "sub-1", "Claim/1", "1");
+    sender.send(USER, "sub-2", "Claim/1", "2");
+    sender.send(USER, "sub-3", "Claim/1", "3");
+    sender.send(USER, "sub-4", "Claim/1", "4");
+    sender.send(USER, "sub-5", "Claim/1", "5");
+
+    Assert.assertEquals(2, sender.getMetrics().get("queued"));
+    Assert.assertEquals(1L, sender.getMetrics().get("dropped"));
+
+    handed(0);
+    handed(1);
+    waitForSent(4);
+    Assert.assertEquals("4", messages.get(2));
+    Assert.assertEquals("5", messages.get(3));
+  }
+
+  @Test
+  public void testExpire() throws InterruptedException {
+    sender.send(USER, "sub-1", "Claim/1", "1");
+    sender.send(USER, "sub-2", "Claim/1", "2");
+    sender.send(USER, "sub-3", "Claim/1", "3");
+
+    // Never handed to a session, the first two expire after the send time limit
+    waitForSent(3);
+    for (int i = 0; i < 50 && (Long) sender.getMetrics().get("expired") < 2L; i++)
+      Thread.sleep(100);
+    Assert.assertTrue((Long) sender.getMetrics().get("expired") >= 2L);
+    Assert.assertEquals(0L, sender.getMetrics().get("handed"));
+  }
+
+  @Test
+  public void testDisconnect() {
+    sender.send(USER, "sub-1", "Claim/1", "1");
+    sender.send(USER, "sub-2", "Claim/1", "2");
+    sender.send(USER, "sub-3", "Claim/1", "3");
+
+    sender.disconnect(USER);
+    Assert.assertEquals(0, sender.getMetrics().get("clients"));
+    Assert.assertEquals(0, sender.getMetrics().get("inFlight"));
+    Assert.assertEquals(1L, sender.getMetrics().get("dropped"));
+  }
+
+  @Test
+  public void testTransportFailure() {
+    WebSocketSender failing = new WebSocketSender(1, 1, 500, (websocketId, message, headers) -> {
+      throw new IllegalStateException("no session");
+    });
+    try {
+      Assert.assertFalse(failing.send(USER, "sub-1", "Claim/1", "1"));
+      // The slot is freed, so the next notification is sent too
+      Assert.assertFalse(failing.send(USER, "sub-2", "Claim/1", "2"));
+      Assert.assertEquals(2L, failing.getMetrics().get("failed"));
+      Assert.assertEquals(0, failing.getMetrics().get("inFlight"));
+    } finally {
+      failing.close();
+    }
+  }
+}
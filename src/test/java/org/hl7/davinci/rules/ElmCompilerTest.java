@@ -0,0 +1,90 @@
+package org.hl7.davinci.rules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ElmCompilerTest {
+
+  private static final String CQL = "library TestPriorAuthRule version '0.0.1'\n"
+      + "define \"PRIORAUTH_GRANTED\": true\n"
+      + "define \"PRIORAUTH_PENDED\": false\n";
+
+  private Path libraryDir;
+  private Path outputDir;
+
+  @Before
+  public void setup() throws IOException {
+    libraryDir = Files.createTempDirectory("cds-library");
+    outputDir = Files.createTempDirectory("cds-elm");
+    Files.createDirectories(libraryDir.resolve("TestTopic"));
+    Files.write(libraryDir.resolve("TestTopic/TestRule.cql"), CQL.getBytes(StandardCharsets.UTF_8));
+    Files.createDirectories(libraryDir.resolve("Shared"));
+    Files.write(libraryDir.resolve("Shared/SharedRule.cql"), CQL.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    delete(libraryDir);
+    delete(outputDir);
+  }
+
+  @Test
+  public void testCompileLibrary() throws IOException {
+    List<File> elmFiles = ElmCompiler.compileLibrary(libraryDir.toFile(), outputDir.toFile(), "abc1234");
+
+    Assert.assertEquals(1, elmFiles.size());
+    Path elmFile = outputDir.resolve("TestTopic/TestRule.elm.xml");
+    Assert.assertEquals(elmFile.toFile(), elmFiles.get(0));
+    Assert.assertTrue(Files.isRegularFile(elmFile));
+
+    // The compiled rule loads like any other
+    Assert.assertEquals("TestPriorAuthRule",
+        new RuleLibraryCache(-1).get(elmFile.toString()).getIdentifier().getId());
+
+    // Nothing is written to the library, Shared is not compiled
+    Assert.assertFalse(Files.exists(libraryDir.resolve("TestTopic/TestRule.elm.xml")));
+    Assert.assertFalse(Files.exists(libraryDir.resolve(ElmCompiler.MANIFEST_FILE)));
+    Assert.assertFalse(Files.exists(outputDir.resolve("Shared")));
+  }
+
+  @Test
+  public void testManifestIsReproducible() throws IOException {
+    ElmCompiler.compileLibrary(libraryDir.toFile(), outputDir.toFile(), "abc1234");
+    List<String> manifest = Files.readAllLines(outputDir.resolve(ElmCompiler.MANIFEST_FILE));
+
+    Assert.assertTrue(manifest.contains("version=abc1234"));
+    Assert.assertTrue(manifest.stream().anyMatch(line -> line.matches("TestTopic/TestRule.cql=[0-9a-f]{64}")));
+    Assert.assertFalse(manifest.stream().anyMatch(line -> line.startsWith("Shared/")));
+
+    ElmCompiler.compileLibrary(libraryDir.toFile(), outputDir.toFile(), "abc1234");
+    Assert.assertEquals(manifest, Files.readAllLines(outputDir.resolve(ElmCompiler.MANIFEST_FILE)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testVersionIsRequired() throws IOException {
+    ElmCompiler.compileLibrary(libraryDir.toFile(), outputDir.toFile(), null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCql() throws IOException {
+    Files.write(libraryDir.resolve("TestTopic/Broken.cql"), "library Broken define".getBytes(StandardCharsets.UTF_8));
+    ElmCompiler.compileLibrary(libraryDir.toFile(), outputDir.toFile(), "abc1234");
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.hl7.davinci.rules;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestMappingRegistryTest {
+
+  private static final String CPT = "http://www.ama-assn.org/go/cpt";
+
+  @Test
+  public void testLookup() {
+    RequestMappingRegistry registry = new RequestMappingRegistry(RequestMappingRegistry.DEFAULT_TABLE);
+    RequestMapping mapping = registry.lookup(new CodeableConcept(new Coding(CPT, "73722", null)));
+    Assert.assertNotNull(mapping);
+    Assert.assertEquals("18748-4", mapping.getContentModifier().getCode());
+    Assert.assertEquals("1111111", mapping.getTraceNumber().getCode());
+
+    Assert.assertNull(registry.lookup(new CodeableConcept(new Coding(CPT, "00000", null))));
+    Assert.assertNull(registry.lookup(new CodeableConcept(new Coding("http://example.org/other", "73722", null))));
+  }
+
+  @Test
+  public void testLookupTriesEveryCoding() {
+    RequestMappingRegistry registry = new RequestMappingRegistry(RequestMappingRegistry.DEFAULT_TABLE);
+    CodeableConcept concept = new CodeableConcept();
+    concept.addCoding(new Coding("http://example.org/other", "unknown", null));
+    concept.addCoding(new Coding(CPT, "73720", null));
+    Assert.assertEquals("1111112", registry.lookup(concept).getTraceNumber().getCode());
+  }
+
+  @Test
+  public void testLookupUsesLastMatchingCoding() {
+    RequestMappingRegistry registry = new RequestMappingRegistry(RequestMappingRegistry.DEFAULT_TABLE);
+    CodeableConcept concept = new CodeableConcept();
+    concept.addCoding(new Coding(CPT, "73722", null));
+    concept.addCoding(new Coding(CPT, "73720", null));
+    Assert.assertEquals("1111112", registry.lookup(concept).getTraceNumber().getCode());
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    Path table = Files.createTempFile("requestMappingTable", ".json");
+    try {
+      write(table, "test-1");
+      RequestMappingRegistry registry = new RequestMappingRegistry(table.toString());
+      Assert.assertEquals(1, registry.size());
+      Assert.assertNotNull(registry.lookup(new CodeableConcept(new Coding(CPT, "test-1", null))));
+
+      write(table, "test-2");
+      Assert.assertNotNull(registry.lookup(new CodeableConcept(new Coding(CPT, "test-1", null))));
+      Assert.assertTrue(registry.reload());
+      Assert.assertNull(registry.lookup(new CodeableConcept(new Coding(CPT, "test-1", null))));
+      Assert.assertNotNull(registry.lookup(new CodeableConcept(new Coding(CPT, "test-2", null))));
+
+      // A table which cannot be read keeps the current mappings
+      Files.write(table, "not json".getBytes(StandardCharsets.UTF_8));
+      Assert.assertFalse(registry.reload());
+      Assert.assertNotNull(registry.lookup(new CodeableConcept(new Coding(CPT, "test-2", null))));
+    } finally {
+      Files.deleteIfExists(table);
+    }
+  }
+
+  private static void write(Path table, String code) throws IOException {
+    String json = "[{\"productOrService\": {\"code\": \"" + code + "\", \"system\": \"" + CPT + "\"}}]";
+    Files.write(table, json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,76 @@
+package org.hl7.davinci.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.davinci.priorauth.FhirUtils.Disposition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleEvaluationSessionTest {
+
+  @Test
+  public void testRuleEvaluatedOncePerSession() {
+    RuleEvaluationSession session = new RuleEvaluationSession(new Bundle());
+    AtomicInteger calls = new AtomicInteger();
+    List<CompletableFuture<Disposition>> items = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      items.add(CompletableFuture.supplyAsync(() -> session.evaluate("TopicA", file -> {
+        calls.incrementAndGet();
+        return Disposition.GRANTED;
+      })));
+    }
+    for (CompletableFuture<Disposition> item : items)
+      Assert.assertEquals(Disposition.GRANTED, item.join());
+
+    Assert.assertEquals(Disposition.DENIED, session.evaluate("TopicB", file -> Disposition.DENIED));
+    Assert.assertEquals(1, calls.get());
+    Assert.assertEquals(2, session.getEvaluations());
+    Assert.assertEquals(7, session.getReuses());
+  }
+
+  @Test
+  public void testBatchRequestedOncePerSession() {
+    RuleEvaluationSession session = new RuleEvaluationSession(new Bundle());
+    AtomicInteger calls = new AtomicInteger();
+    List<CompletableFuture<Map<Integer, Disposition>>> items = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      items.add(CompletableFuture.supplyAsync(() -> session.getBatchDispositions(() -> {
+        calls.incrementAndGet();
+        return Collections.singletonMap(1, Disposition.GRANTED);
+      })));
+    }
+    for (CompletableFuture<Map<Integer, Disposition>> item : items)
+      Assert.assertEquals(Disposition.GRANTED, item.join().get(1));
+    Assert.assertEquals(1, calls.get());
+
+    // A batch the engine does not support is shared too
+    RuleEvaluationSession unbatched = new RuleEvaluationSession(new Bundle());
+    Assert.assertNull(unbatched.getBatchDispositions(() -> null));
+    Assert.assertNull(unbatched.getBatchDispositions(() -> Collections.emptyMap()));
+  }
+
+  @Test
+  public void testFailureIsSharedWithinSession() {
+    RuleEvaluationSession session = new RuleEvaluationSession(new Bundle());
+    try {
+      session.evaluate("TopicA", file -> {
+        throw new IllegalStateException("rule failed");
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    try {
+      session.evaluate("TopicA", file -> Disposition.GRANTED);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("rule failed", e.getMessage());
+    }
+  }
+}
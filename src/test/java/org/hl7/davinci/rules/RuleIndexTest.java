@@ -0,0 +1,68 @@
+package org.hl7.davinci.rules;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RuleIndexTest {
+
+  private static final String SYSTEM = "http://example.org/test-codes";
+
+  private RuleIndex index;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() {
+    Map<String, Object> dataMap = new HashMap<>();
+    dataMap.put("system", SYSTEM);
+    dataMap.put("code", "test-1");
+    dataMap.put("topic", "TestTopic");
+    dataMap.put("rule", "TestTopicPriorAuthRule.elm.xml");
+    App.getDB().write(Table.RULES, dataMap);
+
+    index = RuleIndex.build(App.getDB().selectColumns(Table.RULES, Collections.emptyMap(), "system", "code",
+        "topic", "rule"));
+  }
+
+  @After
+  public void cleanup() {
+    Map<String, Object> constraintMap = new HashMap<>();
+    constraintMap.put("system", SYSTEM);
+    constraintMap.put("code", "test-1");
+    App.getDB().delete(Table.RULES, constraintMap);
+  }
+
+  @Test
+  public void testLookup() {
+    RuleIndex.Route route = index.lookup(SYSTEM, "test-1");
+    Assert.assertNotNull(route);
+    Assert.assertEquals("TestTopic", route.getTopic());
+    Assert.assertEquals("TestTopicPriorAuthRule.elm.xml", route.getRule());
+    Assert.assertNull(index.lookup(SYSTEM, "test-2"));
+    Assert.assertNull(index.lookup("http://example.org/other", "test-1"));
+  }
+
+  @Test
+  public void testLookupTriesEveryCoding() {
+    CodeableConcept concept = new CodeableConcept();
+    concept.addCoding(new Coding("http://example.org/other", "unknown", null));
+    concept.addCoding(new Coding(SYSTEM, "test-1", null));
+    Assert.assertEquals("TestTopic", index.lookup(concept).getTopic());
+
+    Assert.assertNull(index.lookup(new CodeableConcept(new Coding(SYSTEM, "test-2", null))));
+  }
+}
@@ -0,0 +1,69 @@
+package org.hl7.davinci.rules;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RuleLibraryCacheTest {
+
+  private Path ruleFile;
+
+  @Before
+  public void setup() throws IOException {
+    ruleFile = Files.createTempFile("rule", ".elm.xml");
+    Files.copy(Paths.get("src/test/resources/rule-granted.elm.xml"), ruleFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    Files.deleteIfExists(ruleFile);
+  }
+
+  @Test
+  public void testLibraryIsCached() {
+    RuleLibraryCache cache = new RuleLibraryCache(-1);
+    Library library = cache.get(ruleFile.toString());
+    Assert.assertNotNull(library);
+    Assert.assertEquals("TestPriorAuthRule", library.getIdentifier().getId());
+    Assert.assertSame(library, cache.get(ruleFile.toString()));
+    Assert.assertEquals(1L, cache.getMetrics().get("loads"));
+    Assert.assertEquals(1L, cache.getMetrics().get("hits"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    RuleLibraryCache cache = new RuleLibraryCache(-1);
+    Library library = cache.get(ruleFile.toString());
+    cache.invalidate(ruleFile.toString());
+    Assert.assertNotSame(library, cache.get(ruleFile.toString()));
+
+    library = cache.get(ruleFile.toString());
+    cache.invalidateAll();
+    Assert.assertNotSame(library, cache.get(ruleFile.toString()));
+  }
+
+  @Test
+  public void testModifiedFileIsReloaded() throws IOException {
+    RuleLibraryCache cache = new RuleLibraryCache(0);
+    Library library = cache.get(ruleFile.toString());
+    Files.setLastModifiedTime(ruleFile, FileTime.fromMillis(Files.getLastModifiedTime(ruleFile).toMillis() + 1000));
+    Assert.assertNotSame(library, cache.get(ruleFile.toString()));
+  }
+
+  @Test
+  public void testMissingFile() {
+    RuleLibraryCache cache = new RuleLibraryCache(-1);
+    Assert.assertNull(cache.get(ruleFile.toString() + ".missing"));
+    Assert.assertEquals(0, cache.getMetrics().get("libraries"));
+    Assert.assertEquals(1L, cache.getMetrics().get("failures"));
+  }
+}